@@ -0,0 +1,18 @@
+uniform sampler2D m_Texture;
+
+varying vec3 direction;
+
+// Samples the same image on all six faces of a cube, like a cube map whose faces are
+// identical, without uploading the image six times.
+void main() {
+    vec3 a = abs(direction);
+    vec2 uv;
+    if (a.x >= a.y && a.x >= a.z) {
+        uv = direction.zy / a.x;
+    } else if (a.y >= a.z) {
+        uv = direction.xz / a.y;
+    } else {
+        uv = direction.xy / a.z;
+    }
+    gl_FragColor = texture2D(m_Texture, uv * 0.5 + 0.5);
+}
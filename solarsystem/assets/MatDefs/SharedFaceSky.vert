@@ -0,0 +1,17 @@
+uniform mat4 g_ViewMatrix;
+uniform mat4 g_ProjectionMatrix;
+uniform mat4 g_WorldMatrix;
+
+attribute vec3 inPosition;
+
+varying vec3 direction;
+
+void main(){
+    // rotate by the view only, so the sky is always around the camera
+    vec4 pos = vec4(inPosition, 0.0);
+    pos = g_ViewMatrix * pos;
+    pos.w = 1.0;
+    gl_Position = g_ProjectionMatrix * pos;
+
+    direction = (g_WorldMatrix * vec4(inPosition, 0.0)).xyz;
+}
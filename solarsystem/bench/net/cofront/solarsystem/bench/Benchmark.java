@@ -0,0 +1,37 @@
+package net.cofront.solarsystem.bench;
+
+/**
+ * A benchmark run by {@link BenchmarkRunner}. One operation covers the whole catalogue, so its
+ * time grows with the catalogue size.
+ */
+public abstract class Benchmark {
+
+	private final String name;
+
+	protected Benchmark(String name) {
+		this.name = name;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Builds the state for a catalogue of bodies. Not timed.
+	 * @param size The number of bodies.
+	 * @throws Exception
+	 */
+	public abstract void setUp(int size) throws Exception;
+
+	/**
+	 * Runs one operation.
+	 * @return A value derived from the work, which the runner consumes so it can't be optimized away.
+	 */
+	public abstract double run();
+
+	/**
+	 * Frees the state built by {@link #setUp(int)}.
+	 */
+	public void tearDown() {
+	}
+}
@@ -0,0 +1,237 @@
+package net.cofront.solarsystem.bench;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Runs benchmarks for each catalogue size and reports the time and the bytes allocated per
+ * operation. Each size is warmed up, then measured over several fixed length iterations.
+ * Results can be saved as a baseline, and later runs compared against it.
+ * <p>
+ * Usage:
+ * <pre>
+ * java -cp ... net.cofront.solarsystem.bench.BenchmarkRunner [options] [benchmark ...]
+ *   -w n          warmup iterations (3)
+ *   -i n          measured iterations (5)
+ *   -t ms         iteration length (500)
+ *   -p 9,90,900   catalogue sizes
+ *   -o file       save the results as a baseline
+ *   -b file       compare with a baseline
+ * </pre>
+ * Run with a fixed heap (e.g. <code>-Xms1g -Xmx1g</code>) on an idle machine for comparable results.
+ */
+public class BenchmarkRunner {
+
+	public static class Result {
+		public final String benchmark;
+		public final int size;
+		public final double nanosPerOp;
+		public final double error;
+		public final double bytesPerOp;
+		public Result(String benchmark, int size, double nanosPerOp, double error, double bytesPerOp) {
+			this.benchmark = benchmark;
+			this.size = size;
+			this.nanosPerOp = nanosPerOp;
+			this.error = error;
+			this.bytesPerOp = bytesPerOp;
+		}
+		String id() {
+			return benchmark + ":" + size;
+		}
+	}
+
+	// consumes the benchmarks' results.
+	static volatile double sink;
+
+	private int warmups = 3;
+	private int iterations = 5;
+	private long iterationNanos = 500 * 1000000L;
+	private int[] sizes = new int[] { 9, 90, 900 };
+	private final com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+
+	public void setWarmups(int warmups) {
+		this.warmups = warmups;
+	}
+
+	public void setIterations(int iterations) {
+		this.iterations = iterations;
+	}
+
+	public void setIterationMillis(long millis) {
+		this.iterationNanos = millis * 1000000L;
+	}
+
+	public void setSizes(int[] sizes) {
+		this.sizes = sizes;
+	}
+
+	/**
+	 * Runs a benchmark at every size.
+	 * @param b
+	 * @return One result per size.
+	 * @throws Exception If the benchmark can't be set up.
+	 */
+	public List<Result> run(Benchmark b) throws Exception {
+		List<Result> results = new ArrayList<Result>();
+		for (int size : sizes) {
+			System.gc();
+			b.setUp(size);
+			try {
+				results.add(measure(b, size));
+			} finally {
+				b.tearDown();
+			}
+		}
+		return results;
+	}
+
+	private Result measure(Benchmark b, int size) {
+		// batch enough operations to take about a millisecond between clock reads.
+		int batch = 1;
+		long start = System.nanoTime();
+		while (System.nanoTime() - start < 1000000) {
+			sink += b.run();
+			batch++;
+		}
+		for (int i = 0; i < warmups; i++) {
+			iteration(b, batch, null);
+		}
+		double[] nanos = new double[iterations];
+		long[] allocated = new long[1];
+		long ops = 0;
+		for (int i = 0; i < iterations; i++) {
+			long[] r = iteration(b, batch, allocated);
+			nanos[i] = (double)r[0] / r[1];
+			ops += r[1];
+		}
+		double mean = 0;
+		for (double n : nanos) {
+			mean += n;
+		}
+		mean /= nanos.length;
+		double variance = 0;
+		for (double n : nanos) {
+			variance += (n - mean) * (n - mean);
+		}
+		double sd = nanos.length > 1 ? Math.sqrt(variance / (nanos.length - 1)) : 0;
+		return new Result(b.getName(), size, mean, sd, (double)allocated[0] / ops);
+	}
+
+	// returns the elapsed nanoseconds and operations, and adds the bytes allocated.
+	private long[] iteration(Benchmark b, int batch, long[] allocated) {
+		long thread = Thread.currentThread().getId();
+		long bytes = threads.getThreadAllocatedBytes(thread);
+		long ops = 0;
+		double s = 0;
+		long start = System.nanoTime();
+		long elapsed;
+		do {
+			for (int k = 0; k < batch; k++) {
+				s += b.run();
+			}
+			ops += batch;
+			elapsed = System.nanoTime() - start;
+		} while (elapsed < iterationNanos);
+		if (allocated != null) {
+			allocated[0] += threads.getThreadAllocatedBytes(thread) - bytes;
+		}
+		sink += s;
+		return new long[] { elapsed, ops };
+	}
+
+	public static void write(List<Result> results, File file) throws IOException {
+		PrintWriter out = new PrintWriter(new FileWriter(file));
+		try {
+			out.println("benchmark,size,ns_per_op,error_ns,bytes_per_op");
+			for (Result r : results) {
+				out.println(r.benchmark + "," + r.size + "," + r.nanosPerOp + "," + r.error + "," + r.bytesPerOp);
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	public static Map<String, Result> read(File file) throws IOException {
+		Map<String, Result> results = new HashMap<String, Result>();
+		BufferedReader in = new BufferedReader(new FileReader(file));
+		try {
+			String line = in.readLine();
+			while ((line = in.readLine()) != null) {
+				String[] f = line.split(",");
+				if (f.length < 5) {
+					continue;
+				}
+				Result r = new Result(f[0], Integer.parseInt(f[1]), Double.parseDouble(f[2]), Double.parseDouble(f[3]), Double.parseDouble(f[4]));
+				results.put(r.id(), r);
+			}
+		} finally {
+			in.close();
+		}
+		return results;
+	}
+
+	static String format(Result r, Result baseline) {
+		String line = String.format("%-24s %6d %14.1f +- %-10.1f ns/op %10.1f B/op", r.benchmark, r.size, r.nanosPerOp, r.error, r.bytesPerOp);
+		if (baseline != null) {
+			line += String.format("  %+6.1f%% time, %+.1f B/op vs baseline", 
+					100 * (r.nanosPerOp - baseline.nanosPerOp) / baseline.nanosPerOp, r.bytesPerOp - baseline.bytesPerOp);
+		}
+		return line;
+	}
+
+	public static void main(String[] args) throws Exception {
+		BenchmarkRunner runner = new BenchmarkRunner();
+		File output = null;
+		Map<String, Result> baseline = null;
+		List<String> names = new ArrayList<String>();
+		for (int i = 0; i < args.length; i++) {
+			String a = args[i];
+			if (a.equals("-w")) {
+				runner.setWarmups(Integer.parseInt(args[++i]));
+			}
+			else if (a.equals("-i")) {
+				runner.setIterations(Integer.parseInt(args[++i]));
+			}
+			else if (a.equals("-t")) {
+				runner.setIterationMillis(Long.parseLong(args[++i]));
+			}
+			else if (a.equals("-p")) {
+				String[] s = args[++i].split(",");
+				int[] sizes = new int[s.length];
+				for (int k = 0; k < s.length; k++) {
+					sizes[k] = Integer.parseInt(s[k].trim());
+				}
+				runner.setSizes(sizes);
+			}
+			else if (a.equals("-o")) {
+				output = new File(args[++i]);
+			}
+			else if (a.equals("-b")) {
+				baseline = read(new File(args[++i]));
+			}
+			else {
+				names.add(a);
+			}
+		}
+		List<Result> results = new ArrayList<Result>();
+		System.out.println(String.format("%-24s %6s %14s", "benchmark", "size", "time"));
+		for (Benchmark b : EphemerisBenchmarks.select(names.toArray(new String[names.size()]))) {
+			for (Result r : runner.run(b)) {
+				results.add(r);
+				System.out.println(format(r, baseline == null ? null : baseline.get(r.id())));
+			}
+		}
+		if (output != null) {
+			write(results, output);
+		}
+	}
+}
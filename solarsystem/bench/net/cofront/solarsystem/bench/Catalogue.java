@@ -0,0 +1,49 @@
+package net.cofront.solarsystem.bench;
+
+import net.cofront.solarsystem.OrbitalElements;
+
+/**
+ * Orbital elements for benchmarks: the nine planets repeated as often as needed, each copy
+ * starting at a different point of its orbit.
+ */
+public final class Catalogue {
+
+	public final static OrbitalElements[] PLANETS = new OrbitalElements[] {
+		OrbitalElements.Mercury,
+		OrbitalElements.Venus,
+		OrbitalElements.Earth,
+		OrbitalElements.Mars,
+		OrbitalElements.Jupiter,
+		OrbitalElements.Saturn,
+		OrbitalElements.Uranus,
+		OrbitalElements.Neptune,
+		OrbitalElements.Pluto
+	};
+
+	public final static String[] NAMES = new String[] {
+		"Mercury", "Venus", "Earth", "Mars", "Jupiter", "Saturn", "Uranus", "Neptune", "Pluto"
+	};
+
+	private Catalogue() {}
+
+	/**
+	 * @param size
+	 * @return <code>size</code> bodies; the first nine are the planets themselves.
+	 */
+	public static OrbitalElements[] create(int size) {
+		OrbitalElements[] elements = new OrbitalElements[size];
+		for (int n = 0; n < size; n++) {
+			OrbitalElements p = PLANETS[n % PLANETS.length];
+			int copy = n / PLANETS.length;
+			elements[n] = copy == 0 ? p : new OrbitalElements(p.a, p.e, p.P, 
+					(p.M0 * OrbitalElements.RAD_TO_DEG + copy * 37) % 360, p.i * OrbitalElements.RAD_TO_DEG, 
+					p.L * OrbitalElements.RAD_TO_DEG, p.w * OrbitalElements.RAD_TO_DEG, p.radius, p.tilt, p.rev);
+		}
+		return elements;
+	}
+
+	public static String name(int n) {
+		String name = NAMES[n % NAMES.length];
+		return n < NAMES.length ? name : name + "-" + n / NAMES.length;
+	}
+}
@@ -0,0 +1,258 @@
+package net.cofront.solarsystem.bench;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.List;
+import java.util.TimeZone;
+
+import javax.vecmath.Vector3d;
+
+import net.cofront.solarsystem.IndicatorLayer;
+import net.cofront.solarsystem.OrbitalElements;
+import net.cofront.solarsystem.Planet;
+
+import com.jme3.asset.DesktopAssetManager;
+import com.jme3.font.BitmapFont;
+import com.jme3.material.Material;
+import com.jme3.math.Quaternion;
+import com.jme3.math.Vector3f;
+import com.jme3.renderer.Camera;
+import com.jme3.scene.Node;
+
+/**
+ * Benchmarks of the ephemeris and the per-frame scene work. The scales match
+ * {@link net.cofront.solarsystem.Main}'s.
+ */
+public final class EphemerisBenchmarks {
+
+	private final static float PR_SCALE = 0.0040f;
+	private final static float D_SCALE = 0.000070f;
+
+	private EphemerisBenchmarks() {}
+
+	// a fixed date, so runs are comparable.
+	static Calendar date() {
+		Calendar c = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+		c.clear();
+		c.set(2011, Calendar.JUNE, 1, 12, 0, 0);
+		return c;
+	}
+
+	static Planet[] planets(OrbitalElements[] elements, Node parent) {
+		Planet[] planets = new Planet[elements.length];
+		for (int n = 0; n < planets.length; n++) {
+			planets[n] = new Planet(Catalogue.name(n), elements[n], PR_SCALE);
+			if (parent != null) {
+				parent.attachChild(planets[n]);
+			}
+		}
+		return planets;
+	}
+
+	/**
+	 * @return Every benchmark, in the order they're run.
+	 */
+	public static List<Benchmark> all() {
+		List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+
+		// Kepler's equation from near circular to highly eccentric orbits.
+		benchmarks.add(new Benchmark("E") {
+			private double[] M;
+			private double[] e;
+			@Override
+			public void setUp(int size) {
+				M = new double[size];
+				e = new double[size];
+				for (int n = 0; n < size; n++) {
+					M[n] = OrbitalElements.TWO_PI * n / size;
+					e[n] = size == 1 ? 0 : 0.9 * n / (size - 1);
+				}
+			}
+			@Override
+			public double run() {
+				double sum = 0;
+				for (int n = 0; n < M.length; n++) {
+					sum += OrbitalElements.E(M[n], M[n], e[n], OrbitalElements.ACCURACY, OrbitalElements.MAX_ITERATIONS);
+				}
+				return sum;
+			}
+		});
+
+		benchmarks.add(new Benchmark("heliocentric.calendar") {
+			private OrbitalElements[] elements;
+			private Calendar c;
+			private final Vector3d store = new Vector3d();
+			@Override
+			public void setUp(int size) {
+				elements = Catalogue.create(size);
+				c = date();
+			}
+			@Override
+			public double run() {
+				double sum = 0;
+				for (OrbitalElements oe : elements) {
+					oe.getHeliocentricPosition(c, store, true);
+					sum += store.x;
+				}
+				return sum;
+			}
+		});
+
+		benchmarks.add(new Benchmark("heliocentric.days") {
+			private OrbitalElements[] elements;
+			private double t;
+			private final Vector3d store = new Vector3d();
+			@Override
+			public void setUp(int size) {
+				elements = Catalogue.create(size);
+				t = OrbitalElements.getDaysJ2000(date());
+			}
+			@Override
+			public double run() {
+				double sum = 0;
+				for (OrbitalElements oe : elements) {
+					oe.getHeliocentricPosition(t, store, true);
+					sum += store.x;
+				}
+				return sum;
+			}
+		});
+
+		// one date per body, as when each body is evaluated at its own time.
+		benchmarks.add(new Benchmark("daysJ2000") {
+			private Calendar[] dates;
+			@Override
+			public void setUp(int size) {
+				dates = new Calendar[size];
+				for (int n = 0; n < size; n++) {
+					dates[n] = date();
+					dates[n].add(Calendar.DAY_OF_YEAR, n);
+				}
+			}
+			@Override
+			public double run() {
+				double sum = 0;
+				for (Calendar c : dates) {
+					sum += OrbitalElements.getDaysJ2000(c);
+				}
+				return sum;
+			}
+		});
+
+		benchmarks.add(new Benchmark("createOrbit") {
+			private Planet[] planets;
+			private Calendar c;
+			private final Vector3d tmp = new Vector3d();
+			@Override
+			public void setUp(int size) {
+				planets = planets(Catalogue.create(size), null);
+				c = date();
+			}
+			@Override
+			public double run() {
+				double sum = 0;
+				for (Planet p : planets) {
+					sum += p.createOrbit(c, tmp, D_SCALE).length;
+				}
+				return sum;
+			}
+			@Override
+			public void tearDown() {
+				planets = null;
+			}
+		});
+
+		benchmarks.add(new Benchmark("adjustLocation") {
+			private Planet[] planets;
+			private Calendar c;
+			private final Vector3d tmp = new Vector3d();
+			@Override
+			public void setUp(int size) {
+				planets = planets(Catalogue.create(size), null);
+				c = date();
+			}
+			@Override
+			public double run() {
+				double sum = 0;
+				for (Planet p : planets) {
+					p.adjustLocation(c, D_SCALE, tmp);
+					sum += p.getLocalTranslation().x;
+				}
+				return sum;
+			}
+			@Override
+			public void tearDown() {
+				planets = null;
+			}
+		});
+
+		// the indicator loop of Main.simpleUpdate, and the layer's per-frame update.
+		benchmarks.add(new Benchmark("indicatorProjection") {
+			private Planet[] planets;
+			private int[] slots;
+			private IndicatorLayer indicators;
+			private Camera cam;
+			private final Vector3f iLoc = new Vector3f();
+			@Override
+			public void setUp(int size) {
+				DesktopAssetManager am = LoaderBenchmark.newAssetManager();
+				BitmapFont font = am.loadFont("Interface/Fonts/Default.fnt");
+				Material icon = am.loadMaterial("Materials/Indicators.j3m");
+				indicators = new IndicatorLayer("Indicators", font, icon);
+				indicators.setDecluttering(true);
+				Node root = new Node("Root");
+				planets = planets(Catalogue.create(size), root);
+				slots = new int[size];
+				Calendar c = date();
+				Vector3d tmp = new Vector3d();
+				for (int n = 0; n < size; n++) {
+					planets[n].adjustLocation(c, D_SCALE, tmp);
+					slots[n] = indicators.add(planets[n].getName(), planets[n].getOrbitalElements().getRadius());
+				}
+				root.updateGeometricState();
+				cam = new Camera(1024, 768);
+				cam.setFrustumPerspective(45, 1024f / 768, 1, 1905000);
+				cam.setLocation(new Vector3f(-28378.906f, 4143.0205f, 9969.55f));
+				cam.setRotation(new Quaternion(0.035670176f, 0.80625373f, -0.04887279f, 0.5884676f));
+				cam.update();
+			}
+			@Override
+			public double run() {
+				for (int n = 0; n < planets.length; n++) {
+					cam.getScreenCoordinates(planets[n].getWorldTranslation(), iLoc);
+					indicators.setScreenLocation(slots[n], iLoc.x, iLoc.y);
+					indicators.setVisible(slots[n], iLoc.z <= 1);
+				}
+				indicators.updateLogicalState(1 / 60f);
+				return indicators.getSuppressedCount();
+			}
+			@Override
+			public void tearDown() {
+				planets = null;
+				indicators = null;
+			}
+		});
+
+		return benchmarks;
+	}
+
+	/**
+	 * @param names
+	 * @return The benchmarks with the given names, or all of them if none are given.
+	 */
+	public static List<Benchmark> select(String... names) {
+		List<Benchmark> all = all();
+		if (names.length == 0) {
+			return all;
+		}
+		List<String> wanted = Arrays.asList(names);
+		List<Benchmark> selected = new ArrayList<Benchmark>();
+		for (Benchmark b : all) {
+			if (wanted.contains(b.getName())) {
+				selected.add(b);
+			}
+		}
+		return selected;
+	}
+}
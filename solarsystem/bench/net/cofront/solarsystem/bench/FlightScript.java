@@ -0,0 +1,219 @@
+package net.cofront.solarsystem.bench;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+import java.util.TimeZone;
+
+import net.cofront.solarsystem.Main;
+import net.cofront.solarsystem.Planet;
+
+import com.jme3.math.Vector3f;
+import com.jme3.renderer.Camera;
+
+/**
+ * A scripted flight for {@link FrameLoopBenchmark}: a start date and a list of legs. Each leg flies
+ * the camera in a straight line to a point relative to a body, looking at the body, while the date
+ * moves some days every frame.
+ * <p>
+ * Scripts are text, one leg per line:
+ * <pre>
+ * date 2011-06-01
+ * # frames  body     dx    dy    dz   days per frame
+ *   300     Earth     0    40   120   1
+ * </pre>
+ * The body is a planet or <code>Sun</code>, and the offset is in scene units. The date is UTC.
+ * The first leg holds the camera at its point instead of flying there.
+ */
+public class FlightScript {
+
+	public static class Leg {
+		public final int frames;
+		public final String body;
+		public final Vector3f offset;
+		public final int days;
+		public Leg(int frames, String body, Vector3f offset, int days) {
+			this.frames = frames;
+			this.body = body;
+			this.offset = offset;
+			this.days = days;
+		}
+	}
+
+	private final String name;
+	private final Calendar start;
+	private final List<Leg> legs;
+
+	public FlightScript(String name, Calendar start, List<Leg> legs) {
+		this.name = name;
+		this.start = start;
+		this.legs = legs;
+	}
+
+	/**
+	 * Reads the flight the benchmark flies by default.
+	 * @return
+	 * @throws IOException
+	 */
+	public static FlightScript readDefault() throws IOException {
+		InputStream in = FlightScript.class.getResourceAsStream("flight.txt");
+		if (in == null) {
+			throw new IOException("flight.txt isn't on the class path");
+		}
+		return read("flight.txt", in);
+	}
+
+	public static FlightScript read(File file) throws IOException {
+		return read(file.getName(), new FileInputStream(file));
+	}
+
+	private static FlightScript read(String name, InputStream in) throws IOException {
+		Reader r = new InputStreamReader(in, "UTF-8");
+		try {
+			return read(name, r);
+		} finally {
+			r.close();
+		}
+	}
+
+	/**
+	 * Parses a script.
+	 * @param name Identifies the script in the results.
+	 * @param in
+	 * @return
+	 * @throws IOException If it can't be read or a line can't be parsed.
+	 */
+	public static FlightScript read(String name, Reader in) throws IOException {
+		SimpleDateFormat df = new SimpleDateFormat("yyyy-MM-dd");
+		df.setTimeZone(TimeZone.getTimeZone("UTC"));
+		Calendar start = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+		List<Leg> legs = new ArrayList<Leg>();
+		BufferedReader lines = new BufferedReader(in);
+		String line;
+		int n = 0;
+		while ((line = lines.readLine()) != null) {
+			n++;
+			line = line.trim();
+			if (line.length() == 0 || line.startsWith("#")) {
+				continue;
+			}
+			String[] f = line.split("\\s+");
+			try {
+				if (f[0].equals("date") && f.length == 2) {
+					start.setTime(df.parse(f[1]));
+				}
+				else if (f.length == 6 && Integer.parseInt(f[0]) > 0) {
+					Vector3f offset = new Vector3f(Float.parseFloat(f[2]), Float.parseFloat(f[3]), Float.parseFloat(f[4]));
+					legs.add(new Leg(Integer.parseInt(f[0]), f[1], offset, Integer.parseInt(f[5])));
+				}
+				else {
+					throw new IOException(name + ":" + n + ": expected 'date yyyy-MM-dd' or 'frames body dx dy dz days', with frames > 0");
+				}
+			} catch (NumberFormatException e) {
+				throw new IOException(name + ":" + n + ": " + e.getMessage(), e);
+			} catch (ParseException e) {
+				throw new IOException(name + ":" + n + ": " + e.getMessage(), e);
+			}
+		}
+		return new FlightScript(name, start, legs);
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public Calendar getStart() {
+		return (Calendar)start.clone();
+	}
+
+	public List<Leg> getLegs() {
+		return legs;
+	}
+
+	/**
+	 * Returns the number of frames the flight takes.
+	 * @return
+	 */
+	public int getFrames() {
+		int frames = 0;
+		for (Leg leg : legs) {
+			frames += leg.frames;
+		}
+		return frames;
+	}
+
+	/**
+	 * Flies the script in an app, one frame at a time. Render thread only.
+	 */
+	public class Player {
+
+		private final Main app;
+		private final Vector3f from = new Vector3f();
+		private final Vector3f to = new Vector3f();
+		private final Vector3f target = new Vector3f();
+		private int leg;
+		private int frame;
+
+		public Player(Main app) {
+			this.app = app;
+		}
+
+		/**
+		 * Moves the camera and the date for the next frame. The first call sets the start date.
+		 * @return <code>false</code> when the flight is over.
+		 */
+		public boolean step() {
+			if (leg == 0 && frame == 0) {
+				app.setDate(start);
+			}
+			if (leg == legs.size()) {
+				return false;
+			}
+			Leg l = legs.get(leg);
+			Camera cam = app.getCamera();
+			if (l.days != 0) {
+				app.advanceDate(l.days);
+			}
+			if (l.body.equals("Sun")) {
+				target.set(Vector3f.ZERO);
+			}
+			else {
+				Planet p = app.getPlanet(l.body);
+				if (p == null) {
+					throw new IllegalStateException("No planet named " + l.body);
+				}
+				target.set(p.getWorldTranslation());
+			}
+			to.set(target).addLocal(l.offset);
+			if (frame == 0) {
+				// the first leg starts at its point, so every flight takes the same path
+				from.set(leg == 0 ? to : cam.getLocation());
+			}
+			frame++;
+			cam.setLocation(to.interpolate(from, to, (float)frame / l.frames));
+			cam.lookAt(target, Vector3f.UNIT_Y);
+			if (frame == l.frames) {
+				leg++;
+				frame = 0;
+			}
+			return true;
+		}
+
+		/**
+		 * Starts the flight over.
+		 */
+		public void rewind() {
+			leg = 0;
+			frame = 0;
+		}
+	}
+}
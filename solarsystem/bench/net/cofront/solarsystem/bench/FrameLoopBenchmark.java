@@ -0,0 +1,436 @@
+package net.cofront.solarsystem.bench;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import net.cofront.jme3.FrameMetrics;
+import net.cofront.solarsystem.Main;
+
+import com.jme3.system.AppSettings;
+import com.jme3.system.JmeContext;
+
+/**
+ * Runs the app without a display: loading, the ephemeris, the scene update and the indicators all
+ * run every frame, but nothing is drawn, so it runs on machines without a GPU. Once everything has
+ * loaded it flies a {@link FlightScript} as fast as it can and reports the load time, the frame
+ * time percentiles and the bytes the render thread allocated, in all and in each stage of a frame,
+ * as JSON.
+ * <p>
+ * Results can be saved as a baseline, and later runs compared against it. The run fails when a
+ * frame time percentile or the bytes allocated per frame got worse than the baseline by more than
+ * the threshold. With an allocation budget, it also fails when any measured frame allocated more
+ * than the budget, to keep the steady state from making garbage.
+ * <p>
+ * Usage:
+ * <pre>
+ * java -cp ... net.cofront.solarsystem.bench.FrameLoopBenchmark [options]
+ *   -s file       the flight to fly (the built in flight.txt)
+ *   -w n          flights before measuring (1)
+ *   -r n          measured flights (3)
+ *   -o file       save the results as a baseline
+ *   -b file       compare with a baseline
+ *   -t percent    how much worse than the baseline fails the run (10)
+ *   -l seconds    give up if loading and flying take longer (600)
+ *   -a bytes      the most a measured frame may allocate (no limit)
+ * </pre>
+ * Exits with <code>0</code> if it passed, <code>1</code> if it regressed, and <code>2</code> if it
+ * couldn't run.
+ */
+public class FrameLoopBenchmark {
+
+	private final static Logger log = Logger.getLogger(FrameLoopBenchmark.class.getName());
+
+	public final static int PASSED = 0;
+	public final static int REGRESSED = 1;
+	public final static int FAILED = 2;
+
+	// compared with the baseline, with the least change that counts so noise in small numbers doesn't fail the run.
+	private final static String[] COMPARED = { "frameMillisP50", "frameMillisP90", "frameMillisP99", "allocatedBytesPerFrame" };
+	private final static double[] MIN_CHANGE = { 0.05, 0.05, 0.1, 256 };
+
+	private final static Pattern NUMBER = Pattern.compile("\"(\\w+)\"\\s*:\\s*(-?[0-9.]+(?:[eE][-+]?[0-9]+)?)");
+
+	/**
+	 * The app, flying the script after it has loaded. Render thread only, except where noted.
+	 */
+	static class HeadlessMain extends Main {
+
+		private final com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+		private final CountDownLatch finished = new CountDownLatch(1);
+		private final FlightScript script;
+		private final int warmups;
+		private final int flights;
+		private final long[] frameNanos;
+		private final long allocationBudget;
+		private final long started = System.nanoTime();
+		private FlightScript.Player player;
+		private volatile boolean indicators;
+		private long loadNanos;
+		private int flight;
+		private int frame;
+		private long last;
+		private long measureStarted;
+		private long measureBytes;
+		private long[] stageBytes;
+		private long[] stageCounts;
+		private long maxFrameBytes;
+		private int overAllocationBudget;
+		private String worstFrame;
+		private volatile Map<String, Object> results;
+		private volatile Throwable error;
+
+		HeadlessMain(FlightScript script, int warmups, int flights, long allocationBudget) {
+			this.script = script;
+			this.warmups = warmups;
+			this.flights = flights;
+			this.allocationBudget = allocationBudget;
+			this.frameNanos = new long[script.getFrames() * flights];
+			metrics.setAllocationTracking(true);
+			// every run loads with the same progress weights, and leaves nothing behind
+			loadHistory = null;
+		}
+
+		@Override
+		protected void initIndicators() throws Exception {
+			super.initIndicators();
+			indicators = true;
+		}
+
+		@Override
+		public void update() {
+			super.update();
+			long now = System.nanoTime();
+			if (results != null) {
+				// done, waiting to be stopped
+				return;
+			}
+			if (player == null) {
+				// loaded once the indicators are up and everything queued for the render thread has run
+				if (!indicators || scheduler.size() > 0) {
+					return;
+				}
+				loadNanos = now - started;
+				player = script.new Player(this);
+				begin(now);
+			}
+			else if (flight >= warmups) {
+				frameNanos[frame++] = now - last;
+				long bytes = metrics.getLastFrameAllocatedBytes();
+				if (allocationBudget >= 0 && bytes > allocationBudget) {
+					overAllocationBudget++;
+					if (bytes > maxFrameBytes) {
+						worstFrame = metrics.getLastFrameAllocations();
+					}
+				}
+				maxFrameBytes = Math.max(maxFrameBytes, bytes);
+			}
+			if (!player.step()) {
+				flight++;
+				if (flight == warmups + flights) {
+					finish(now);
+					return;
+				}
+				player.rewind();
+				begin(now);
+				player.step();
+			}
+			last = System.nanoTime();
+		}
+
+		// starts a flight, measuring from the first one after the warmups
+		private void begin(long now) {
+			if (flight == warmups) {
+				measureStarted = now;
+				measureBytes = threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+				List<FrameMetrics.Histogram> stages = metrics.getStages();
+				stageBytes = new long[stages.size()];
+				stageCounts = new long[stages.size()];
+				for (int i = 0; i < stageBytes.length; i++) {
+					stageBytes[i] = stages.get(i).getTotalAllocatedBytes();
+					stageCounts[i] = stages.get(i).getTotalAllocatedCount();
+				}
+			}
+		}
+
+		private void finish(long now) {
+			long bytes = threads.getThreadAllocatedBytes(Thread.currentThread().getId()) - measureBytes;
+			long[] sorted = frameNanos.clone();
+			Arrays.sort(sorted);
+			long sum = 0;
+			for (long n : sorted) {
+				sum += n;
+			}
+			Map<String, Object> r = new LinkedHashMap<String, Object>();
+			r.put("script", script.getName());
+			r.put("frames", sorted.length);
+			r.put("loadMillis", loadNanos / 1e6);
+			r.put("frameMillisMean", sum / 1e6 / sorted.length);
+			r.put("frameMillisP50", percentile(sorted, 0.5) / 1e6);
+			r.put("frameMillisP90", percentile(sorted, 0.9) / 1e6);
+			r.put("frameMillisP99", percentile(sorted, 0.99) / 1e6);
+			r.put("frameMillisMax", sorted[sorted.length - 1] / 1e6);
+			r.put("allocatedBytesPerFrame", (double)bytes / sorted.length);
+			r.put("allocatedMBPerSecond", bytes / 1048576.0 / ((now - measureStarted) / 1e9));
+			r.put("allocatedBytesPerFrameMax", maxFrameBytes);
+			Map<String, Object> byStage = new LinkedHashMap<String, Object>();
+			List<FrameMetrics.Histogram> stages = metrics.getStages();
+			for (int i = 0; i < stageBytes.length; i++) {
+				long n = stages.get(i).getTotalAllocatedCount() - stageCounts[i];
+				if (n > 0) {
+					byStage.put(stages.get(i).getName(), (double)(stages.get(i).getTotalAllocatedBytes() - stageBytes[i]) / n);
+				}
+			}
+			r.put("allocatedBytesByStage", byStage);
+			if (allocationBudget >= 0) {
+				r.put("allocationBudget", allocationBudget);
+				r.put("framesOverAllocationBudget", overAllocationBudget);
+			}
+			results = r;
+			finished.countDown();
+		}
+
+		@Override
+		public void handleError(String errMsg, Throwable t) {
+			error = t;
+			finished.countDown();
+			super.handleError(errMsg, t);
+		}
+
+		/**
+		 * Describes the stages of the frame that went furthest over the allocation budget.
+		 * @return <code>null</code> if none went over.
+		 */
+		String getWorstFrame() {
+			return worstFrame;
+		}
+
+		/**
+		 * Waits for the flights to finish. Any thread.
+		 * @param seconds
+		 * @return The results.
+		 * @throws Exception If the app failed or didn't finish in time.
+		 */
+		Map<String, Object> await(long seconds) throws Exception {
+			if (!finished.await(seconds, TimeUnit.SECONDS)) {
+				throw new IllegalStateException("Didn't finish within " + seconds + " seconds");
+			}
+			if (error != null) {
+				throw new IllegalStateException("The app failed", error);
+			}
+			return results;
+		}
+	}
+
+	// nearest rank
+	static long percentile(long[] sorted, double p) {
+		int i = (int)Math.ceil(p * sorted.length) - 1;
+		return sorted[Math.max(0, Math.min(sorted.length - 1, i))];
+	}
+
+	/**
+	 * Starts the app without a display or sound, flies the script and stops it.
+	 * @param script
+	 * @param warmups Flights before measuring.
+	 * @param flights Measured flights.
+	 * @param allocationBudget The most a measured frame may allocate, or <code>-1</code>.
+	 * @param timeoutSeconds
+	 * @return The results, in the order they're written.
+	 * @throws Exception If the app failed or didn't finish in time.
+	 */
+	public static Map<String, Object> run(FlightScript script, int warmups, int flights, long allocationBudget, long timeoutSeconds) throws Exception {
+		HeadlessMain app = new HeadlessMain(script, warmups, flights, allocationBudget);
+		AppSettings settings = new AppSettings(true);
+		settings.setResolution(1280, 720);
+		settings.setAudioRenderer(null);
+		// the headless context runs at 60 frames per second unless asked for more
+		settings.setFrameRate(Integer.MAX_VALUE);
+		app.setSettings(settings);
+		app.setShowSettings(false);
+		app.start(JmeContext.Type.Headless);
+		Map<String, Object> results;
+		try {
+			results = app.await(timeoutSeconds);
+		} catch (Exception e) {
+			// the context's thread may be gone or stuck, so don't wait for it
+			app.stop();
+			throw e;
+		}
+		app.stop(true);
+		if (app.getWorstFrame() != null) {
+			System.err.println("Bytes by stage of the frame that allocated the most: " + app.getWorstFrame());
+		}
+		return results;
+	}
+
+	public static void write(Map<String, Object> results, File file) throws IOException {
+		PrintWriter out = new PrintWriter(new FileWriter(file));
+		try {
+			out.print(toJson(results));
+		} finally {
+			out.close();
+		}
+	}
+
+	static String toJson(Map<String, Object> results) {
+		StringBuilder json = new StringBuilder();
+		toJson(results, json, "");
+		return json.append('\n').toString();
+	}
+
+	@SuppressWarnings("unchecked")
+	private static void toJson(Map<String, Object> map, StringBuilder json, String indent) {
+		json.append("{\n");
+		String sep = "";
+		for (Map.Entry<String, Object> e : map.entrySet()) {
+			json.append(sep).append(indent).append("  \"").append(e.getKey()).append("\": ");
+			sep = ",\n";
+			Object v = e.getValue();
+			if (v instanceof Number) {
+				json.append(v);
+			}
+			else if (v instanceof Map) {
+				toJson((Map<String, Object>)v, json, indent + "  ");
+			}
+			else {
+				json.append('"').append(String.valueOf(v).replace("\\", "\\\\").replace("\"", "\\\"")).append('"');
+			}
+		}
+		json.append('\n').append(indent).append('}');
+	}
+
+	/**
+	 * Reads the numbers from results written by {@link #write(Map, File)}.
+	 * @param file
+	 * @return
+	 * @throws IOException
+	 */
+	public static Map<String, Double> read(File file) throws IOException {
+		Map<String, Double> baseline = new HashMap<String, Double>();
+		BufferedReader in = new BufferedReader(new FileReader(file));
+		try {
+			String line;
+			while ((line = in.readLine()) != null) {
+				Matcher m = NUMBER.matcher(line);
+				while (m.find()) {
+					baseline.put(m.group(1), Double.valueOf(m.group(2)));
+				}
+			}
+		} finally {
+			in.close();
+		}
+		return baseline;
+	}
+
+	/**
+	 * Compares results with a baseline.
+	 * @param results
+	 * @param baseline
+	 * @param threshold How much worse fails, e.g. <code>0.1</code> for 10%.
+	 * @return A description of each regression; empty if there are none.
+	 */
+	public static List<String> compare(Map<String, Object> results, Map<String, Double> baseline, double threshold) {
+		List<String> regressions = new ArrayList<String>();
+		for (int i = 0; i < COMPARED.length; i++) {
+			String key = COMPARED[i];
+			Double before = baseline.get(key);
+			if (before == null) {
+				continue;
+			}
+			double after = ((Number)results.get(key)).doubleValue();
+			double change = after - before;
+			if (change > MIN_CHANGE[i] && change > before * threshold) {
+				regressions.add(String.format("%s: %.3f -> %.3f (%+.1f%%)", key, before, after,
+						before == 0 ? Double.POSITIVE_INFINITY : 100 * change / before));
+			}
+		}
+		return regressions;
+	}
+
+	public static void main(String[] args) {
+		Logger.getLogger("").setLevel(Level.SEVERE);
+		File script = null;
+		File output = null;
+		File baseline = null;
+		int warmups = 1;
+		int flights = 3;
+		double threshold = 0.1;
+		long timeout = 600;
+		long allocationBudget = -1;
+		for (int i = 0; i < args.length; i++) {
+			String a = args[i];
+			if (a.equals("-s")) {
+				script = new File(args[++i]);
+			}
+			else if (a.equals("-w")) {
+				warmups = Integer.parseInt(args[++i]);
+			}
+			else if (a.equals("-r")) {
+				flights = Math.max(1, Integer.parseInt(args[++i]));
+			}
+			else if (a.equals("-o")) {
+				output = new File(args[++i]);
+			}
+			else if (a.equals("-b")) {
+				baseline = new File(args[++i]);
+			}
+			else if (a.equals("-t")) {
+				threshold = Double.parseDouble(args[++i]) / 100;
+			}
+			else if (a.equals("-l")) {
+				timeout = Long.parseLong(args[++i]);
+			}
+			else if (a.equals("-a")) {
+				allocationBudget = Long.parseLong(args[++i]);
+			}
+			else {
+				System.err.println("Unknown option: " + a);
+				System.exit(FAILED);
+			}
+		}
+		int status = PASSED;
+		try {
+			FlightScript flight = script == null ? FlightScript.readDefault() : FlightScript.read(script);
+			Map<String, Object> results = run(flight, warmups, flights, allocationBudget, timeout);
+			System.out.print(toJson(results));
+			if (output != null) {
+				write(results, output);
+			}
+			if (baseline != null) {
+				List<String> regressions = compare(results, read(baseline), threshold);
+				for (String r : regressions) {
+					System.err.println("Regressed " + r);
+				}
+				if (!regressions.isEmpty()) {
+					status = REGRESSED;
+				}
+			}
+			Number over = (Number)results.get("framesOverAllocationBudget");
+			if (over != null && over.intValue() > 0) {
+				System.err.println(over + " frames allocated more than " + allocationBudget + " bytes, the most " + results.get("allocatedBytesPerFrameMax"));
+				status = REGRESSED;
+			}
+		} catch (Exception e) {
+			log.log(Level.SEVERE, "The frame loop benchmark couldn't run.", e);
+			status = FAILED;
+		}
+		// the loader's and the metrics' threads would keep the VM alive
+		System.exit(status);
+	}
+}
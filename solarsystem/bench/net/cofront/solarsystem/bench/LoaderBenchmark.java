@@ -0,0 +1,160 @@
+package net.cofront.solarsystem.bench;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import net.cofront.jme3.FutureAssetLoaderState;
+import net.cofront.jme3.MipImageLoader;
+
+import com.jme3.asset.AssetManager;
+import com.jme3.asset.DesktopAssetManager;
+import com.jme3.asset.plugins.FileLocator;
+
+/**
+ * Times loading every material the app loads, and the textures they use, with each of the
+ * asset loader's threading modes and with the fixed pool it had before them, which loads each
+ * asset in one task and has no texture pipeline. Every run starts from an empty asset cache.
+ * With <code>-c</code> the page cache is dropped before every run too, so the disk is included;
+ * that needs root on Linux.
+ * <p>
+ * In the split mode only texture reads move to the I/O threads, still bounded by the texture
+ * pipeline's limit on read textures waiting to be decoded. Materials, definitions and shaders
+ * are read in the loader's pool in every mode.
+ * <p>
+ * Usage:
+ * <pre>
+ * java -cp ... net.cofront.solarsystem.bench.LoaderBenchmark [options]
+ *   -m modes      the modes to compare (fixed,shared,split)
+ *   -t n          the loader's threads (each mode's default)
+ *   -w n          runs of each mode before measuring (1)
+ *   -r n          measured runs of each mode (3)
+ *   -d dir        the assets (assets)
+ *   -c            drop the page cache before every run
+ * </pre>
+ * Prints each mode's run times and their median, in milliseconds. The modes take turns, so
+ * anything else slowing the machine down is spread over all of them.
+ */
+public class LoaderBenchmark {
+
+	/**
+	 * Creates an asset manager set up like the desktop app's, without a display.
+	 * @return
+	 */
+	static DesktopAssetManager newAssetManager() {
+		return new DesktopAssetManager(DesktopAssetManager.class.getResource("Desktop.cfg"));
+	}
+
+	// drops the clean pages of the page cache, so the next run reads the assets from disk.
+	static void dropPageCache() throws IOException {
+		FileWriter w = new FileWriter("/proc/sys/vm/drop_caches");
+		try {
+			w.write("3\n");
+		} finally {
+			w.close();
+		}
+	}
+
+	// loads every material and returns the milliseconds it took. A null mode is the fixed pool.
+	static long run(File assets, List<String> materials, FutureAssetLoaderState.ThreadingMode mode, int threads) throws Exception {
+		AssetManager am = newAssetManager();
+		am.registerLocator(assets.getPath(), FileLocator.class);
+		am.registerLoader(MipImageLoader.class, "mip");
+		FutureAssetLoaderState loader;
+		if (mode == null) {
+			loader = new FutureAssetLoaderState(am, threads > 0 ? threads : FutureAssetLoaderState.DEFAULT_THREAD_COUNT);
+		}
+		else {
+			loader = threads > 0 ? new FutureAssetLoaderState(am, mode, threads) : new FutureAssetLoaderState(am, mode);
+		}
+		try {
+			long start = System.nanoTime();
+			List<CompletableFuture<?>> loads = new ArrayList<CompletableFuture<?>>();
+			for (String name : materials) {
+				loads.add(loader.loadMaterial(name));
+			}
+			for (CompletableFuture<?> f : loads) {
+				f.get();
+			}
+			return (System.nanoTime() - start) / 1000000;
+		} finally {
+			loader.shutdown();
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		Logger.getLogger("").setLevel(Level.SEVERE);
+		String[] modes = { "fixed", "shared", "split" };
+		int threads = 0;
+		int warmups = 1;
+		int runs = 3;
+		boolean cold = false;
+		File assets = new File("assets");
+		for (int i = 0; i < args.length; i++) {
+			String a = args[i];
+			if (a.equals("-m")) {
+				modes = args[++i].split(",");
+			}
+			else if (a.equals("-t")) {
+				threads = Integer.parseInt(args[++i]);
+			}
+			else if (a.equals("-w")) {
+				warmups = Integer.parseInt(args[++i]);
+			}
+			else if (a.equals("-r")) {
+				runs = Math.max(1, Integer.parseInt(args[++i]));
+			}
+			else if (a.equals("-d")) {
+				assets = new File(args[++i]);
+			}
+			else if (a.equals("-c")) {
+				cold = true;
+			}
+			else {
+				System.err.println("Unknown option: " + a);
+				System.exit(2);
+			}
+		}
+		List<String> materials = new ArrayList<String>();
+		File[] files = new File(assets, "Materials").listFiles();
+		if (files == null) {
+			System.err.println("No materials in " + assets);
+			System.exit(2);
+		}
+		Arrays.sort(files);
+		for (File f : files) {
+			if (f.getName().endsWith(".j3m")) {
+				materials.add("Materials/" + f.getName());
+			}
+		}
+		FutureAssetLoaderState.ThreadingMode[] threading = new FutureAssetLoaderState.ThreadingMode[modes.length];
+		for (int m = 0; m < modes.length; m++) {
+			modes[m] = modes[m].trim().toLowerCase();
+			threading[m] = modes[m].equals("fixed") ? null : FutureAssetLoaderState.ThreadingMode.valueOf(modes[m].toUpperCase());
+		}
+		long[][] millis = new long[modes.length][runs];
+		for (int r = -warmups; r < runs; r++) {
+			for (int m = 0; m < modes.length; m++) {
+				if (cold) {
+					dropPageCache();
+				}
+				long t = run(assets, materials, threading[m], threads);
+				if (r >= 0) {
+					millis[m][r] = t;
+				}
+			}
+		}
+		System.out.println(materials.size() + " materials, " + Runtime.getRuntime().availableProcessors() + " cores, " + (cold ? "cold" : "warm") + " page cache");
+		for (int m = 0; m < modes.length; m++) {
+			long[] sorted = millis[m].clone();
+			Arrays.sort(sorted);
+			System.out.println(String.format("%-8s median %6d ms  runs %s", modes[m], sorted[runs / 2], Arrays.toString(millis[m])));
+		}
+	}
+}
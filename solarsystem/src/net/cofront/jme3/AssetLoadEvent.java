@@ -0,0 +1,36 @@
+package net.cofront.jme3;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * A flight recorder event from requesting an asset until it's loaded, including the time it
+ * waited in the queue. Committed by {@link FutureAssetLoaderState} on the thread that finished it.
+ */
+@Name("net.cofront.AssetLoad")
+@Label("Asset Load")
+@Description("An asset from request to completion")
+@Category({"Solar System", "Loader"})
+@StackTrace(false)
+class AssetLoadEvent extends Event {
+
+	@Label("Key")
+	String key;
+
+	@Label("Type")
+	String type;
+
+	@Label("Priority")
+	@Description("The load priority when it was requested, NaN if unprioritized")
+	float priority;
+
+	@Label("Failed")
+	boolean failed;
+
+	@Label("Cancelled")
+	boolean cancelled;
+}
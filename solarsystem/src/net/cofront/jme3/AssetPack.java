@@ -0,0 +1,129 @@
+package net.cofront.jme3;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+
+/**
+ * A read-only, memory mapped archive of assets, written by {@link AssetPackBuilder}.
+ * Entries are found through a hash index and returned as slices of the mapping, so reading
+ * an asset neither copies it nor makes a system call.
+ * <p>
+ * Layout (little endian):
+ * <pre>
+ * header:  int magic, int version, int entry count, int slot count (a power of two)
+ * slots:   int entry index per slot, -1 when empty; open addressing with linear probing
+ *          on the name's {@link String#hashCode()}
+ * entries: long data offset, int data length, int name offset, int name length
+ * names:   UTF-8
+ * data:    each entry's bytes, 8 byte aligned
+ * </pre>
+ * Packs are limited to 2 GB. Thread safe.
+ */
+public class AssetPack {
+
+	final static int MAGIC = 0x4b415041; // "APAK"
+	final static int VERSION = 1;
+	final static int HEADER_SIZE = 16;
+	final static int ENTRY_SIZE = 20;
+	final static Charset UTF8 = Charset.forName("UTF-8");
+
+	private final File file;
+	private final ByteBuffer buffer;
+	private final int entryCount;
+	private final int slotCount;
+	private final int slotsAt;
+	private final int entriesAt;
+
+	/**
+	 * Maps the pack.
+	 * @param file
+	 * @throws IOException If the file can't be mapped or isn't a pack.
+	 */
+	public AssetPack(File file) throws IOException {
+		this.file = file;
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()).order(ByteOrder.LITTLE_ENDIAN);
+		} finally {
+			raf.close();
+		}
+		if (buffer.limit() < HEADER_SIZE || buffer.getInt(0) != MAGIC) {
+			throw new IOException("Not an asset pack: " + file);
+		}
+		if (buffer.getInt(4) != VERSION) {
+			throw new IOException("Unsupported asset pack version " + buffer.getInt(4) + ": " + file);
+		}
+		entryCount = buffer.getInt(8);
+		slotCount = buffer.getInt(12);
+		slotsAt = HEADER_SIZE;
+		entriesAt = slotsAt + slotCount * 4;
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	public int size() {
+		return entryCount;
+	}
+
+	/**
+	 * Finds an entry.
+	 * @param name The asset name, e.g. <code>Textures/Sky/GenericStars/face.jpg</code>.
+	 * @return A read-only slice of the mapping holding the entry's bytes, or <code>null</code>.
+	 */
+	public ByteBuffer get(String name) {
+		if (slotCount == 0) {
+			return null;
+		}
+		byte[] key = name.getBytes(UTF8);
+		int mask = slotCount - 1;
+		for (int slot = name.hashCode() & mask, probes = 0; probes < slotCount; slot = (slot + 1) & mask, probes++) {
+			int entry = buffer.getInt(slotsAt + slot * 4);
+			if (entry == -1) {
+				return null;
+			}
+			int e = entriesAt + entry * ENTRY_SIZE;
+			if (nameEquals(buffer.getInt(e + 12), buffer.getInt(e + 16), key)) {
+				int offset = (int)buffer.getLong(e);
+				int length = buffer.getInt(e + 8);
+				ByteBuffer slice = buffer.duplicate();
+				slice.limit(offset + length).position(offset);
+				return slice.slice().asReadOnlyBuffer();
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Returns the name of an entry.
+	 * @param entry From <code>0</code> to <code>size() - 1</code>.
+	 * @return
+	 */
+	public String getName(int entry) {
+		int e = entriesAt + entry * ENTRY_SIZE;
+		byte[] name = new byte[buffer.getInt(e + 16)];
+		ByteBuffer b = buffer.duplicate();
+		b.position(buffer.getInt(e + 12));
+		b.get(name);
+		return new String(name, UTF8);
+	}
+
+	private boolean nameEquals(int offset, int length, byte[] key) {
+		if (length != key.length) {
+			return false;
+		}
+		for (int i = 0; i < length; i++) {
+			if (buffer.get(offset + i) != key[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
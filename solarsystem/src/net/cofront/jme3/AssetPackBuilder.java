@@ -0,0 +1,146 @@
+package net.cofront.jme3;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Writes an {@link AssetPack} from a directory of assets. Entries are named by their path
+ * relative to the directory, with <code>/</code> as separator, the way assets are loaded.
+ * <pre>
+ * java -cp ... net.cofront.jme3.AssetPackBuilder assets assets.pack
+ * </pre>
+ */
+public class AssetPackBuilder {
+
+	private final static int ALIGNMENT = 8;
+
+	public static void main(String[] args) throws IOException {
+		if (args.length != 2) {
+			System.err.println("usage: AssetPackBuilder <assets directory> <pack file>");
+			System.exit(1);
+		}
+		File dir = new File(args[0]);
+		File pack = new File(args[1]);
+		int n = build(dir, pack);
+		System.out.println("Packed " + n + " assets from " + dir + " into " + pack + " (" + pack.length() + " bytes)");
+	}
+
+	/**
+	 * Packs every file under <code>dir</code>.
+	 * @param dir
+	 * @param pack
+	 * @return The number of entries.
+	 * @throws IOException
+	 */
+	public static int build(File dir, File pack) throws IOException {
+		if (!dir.isDirectory()) {
+			throw new IOException("Not a directory: " + dir);
+		}
+		List<File> files = new ArrayList<File>();
+		List<String> names = new ArrayList<String>();
+		collect(dir, "", files, names);
+
+		int count = files.size();
+		int slotCount = Integer.highestOneBit(Math.max(1, count * 2 - 1)) << 1; // load factor at most 1/2
+		byte[][] nameBytes = new byte[count][];
+		int namesSize = 0;
+		for (int i = 0; i < count; i++) {
+			nameBytes[i] = names.get(i).getBytes(AssetPack.UTF8);
+			namesSize += nameBytes[i].length;
+		}
+		int slotsAt = AssetPack.HEADER_SIZE;
+		int entriesAt = slotsAt + slotCount * 4;
+		int namesAt = entriesAt + count * AssetPack.ENTRY_SIZE;
+		long dataAt = align(namesAt + namesSize);
+
+		int[] slots = new int[slotCount];
+		Arrays.fill(slots, -1);
+		for (int i = 0; i < count; i++) {
+			int slot = names.get(i).hashCode() & (slotCount - 1);
+			while (slots[slot] != -1) {
+				slot = (slot + 1) & (slotCount - 1);
+			}
+			slots[slot] = i;
+		}
+
+		ByteBuffer index = ByteBuffer.allocate((int)dataAt).order(ByteOrder.LITTLE_ENDIAN);
+		index.putInt(AssetPack.MAGIC).putInt(AssetPack.VERSION).putInt(count).putInt(slotCount);
+		for (int slot : slots) {
+			index.putInt(slot);
+		}
+		long offset = dataAt;
+		int nameOffset = namesAt;
+		for (int i = 0; i < count; i++) {
+			long length = files.get(i).length();
+			if (offset + length > Integer.MAX_VALUE) {
+				throw new IOException("Asset pack would exceed 2 GB at " + names.get(i));
+			}
+			index.putLong(offset).putInt((int)length).putInt(nameOffset).putInt(nameBytes[i].length);
+			offset = align(offset + length);
+			nameOffset += nameBytes[i].length;
+		}
+		for (byte[] name : nameBytes) {
+			index.put(name);
+		}
+
+		OutputStream out = new BufferedOutputStream(new FileOutputStream(pack), 64 * 1024);
+		try {
+			out.write(index.array());
+			byte[] buffer = new byte[64 * 1024];
+			for (File file : files) {
+				long length = 0;
+				InputStream in = new FileInputStream(file);
+				try {
+					int r;
+					while ((r = in.read(buffer)) != -1) {
+						out.write(buffer, 0, r);
+						length += r;
+					}
+				} finally {
+					in.close();
+				}
+				if (length != file.length()) {
+					throw new IOException("File changed while packing: " + file);
+				}
+				for (long p = length; p != align(length); p++) {
+					out.write(0);
+				}
+			}
+		} finally {
+			out.close();
+		}
+		return count;
+	}
+
+	// sorted, so the same assets always give the same pack.
+	private static void collect(File dir, String prefix, List<File> files, List<String> names) {
+		File[] children = dir.listFiles();
+		if (children == null) {
+			return;
+		}
+		Arrays.sort(children);
+		for (File child : children) {
+			if (child.isDirectory()) {
+				collect(child, prefix + child.getName() + "/", files, names);
+			}
+			else if (child.isFile()) {
+				files.add(child);
+				names.add(prefix + child.getName());
+			}
+		}
+	}
+
+	private static long align(long offset) {
+		return (offset + ALIGNMENT - 1) & ~(long)(ALIGNMENT - 1);
+	}
+}
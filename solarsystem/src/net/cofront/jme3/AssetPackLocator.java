@@ -0,0 +1,82 @@
+package net.cofront.jme3;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.jme3.asset.AssetInfo;
+import com.jme3.asset.AssetKey;
+import com.jme3.asset.AssetLocator;
+import com.jme3.asset.AssetManager;
+
+/**
+ * Locates assets in an {@link AssetPack}. Register it with the pack's path:
+ * <pre>
+ * assetManager.registerLocator("assets.pack", AssetPackLocator.class);
+ * </pre>
+ * The asset manager creates a locator per loading thread; they all share one mapping of the pack.
+ */
+public class AssetPackLocator implements AssetLocator {
+
+	/**
+	 * An asset in a pack. {@link #getBuffer()} returns its bytes without copying them.
+	 */
+	public static class PackedAssetInfo extends AssetInfo {
+		private final ByteBuffer buffer;
+		private PackedAssetInfo(AssetManager manager, AssetKey<?> key, ByteBuffer buffer) {
+			super(manager, key);
+			this.buffer = buffer;
+		}
+		/**
+		 * Returns a read-only slice of the pack's mapping. Each call returns a new buffer.
+		 * @return
+		 */
+		public ByteBuffer getBuffer() {
+			return buffer.duplicate();
+		}
+		@Override
+		public InputStream openStream() {
+			return new ByteBufferInputStream(getBuffer());
+		}
+	}
+
+	private final static Logger logger = Logger.getLogger(AssetPackLocator.class.getName());
+	private final static ConcurrentMap<String, AssetPack> packs = new ConcurrentHashMap<String, AssetPack>();
+
+	private AssetPack pack;
+
+	@Override
+	public void setRootPath(String rootPath) {
+		File file = new File(rootPath).getAbsoluteFile();
+		String path = file.getPath();
+		pack = packs.get(path);
+		if (pack == null) {
+			try {
+				AssetPack p = new AssetPack(file);
+				AssetPack previous = packs.putIfAbsent(path, p);
+				pack = previous == null ? p : previous;
+				if (previous == null) {
+					logger.log(Level.INFO, "Mapped asset pack {0}, {1} entries", new Object[]{path, pack.size()});
+				}
+			} catch (IOException e) {
+				logger.log(Level.WARNING, "Can't open asset pack " + path, e);
+			}
+		}
+	}
+
+	// AssetLocator declares the key raw, so the override has to match it.
+	@Override
+	@SuppressWarnings("rawtypes")
+	public AssetInfo locate(AssetManager manager, AssetKey key) {
+		if (pack == null) {
+			return null;
+		}
+		ByteBuffer buffer = pack.get(key.getName());
+		return buffer == null ? null : new PackedAssetInfo(manager, key, buffer);
+	}
+}
@@ -0,0 +1,617 @@
+package net.cofront.jme3;
+
+import java.util.Arrays;
+
+import com.jme3.math.Matrix4f;
+import com.jme3.math.Ray;
+import com.jme3.math.Vector3f;
+
+/**
+ * An axis aligned bounding box hierarchy over items identified by an <code>int</code>.
+ * Supports culling every item against a view frustum in one pass, skipping whole branches
+ * that are outside (or entirely inside) the frustum, picking the nearest item along a ray,
+ * and finding the items containing a point or nearest to it.
+ * <p>
+ * Culling keeps each item's visibility and only reports the items that changed since the last
+ * cull, so its cost follows the visible items and the nodes visited, not the number of items.
+ * <p>
+ * Adding or removing items marks the hierarchy for a rebuild. Moving items only refits the existing
+ * boxes bottom-up, which is linear and keeps the queries exact; the hierarchy is rebuilt every
+ * {@link #getRebuildInterval()} refits, or by {@link #rebuild()}, once items moved far enough
+ * for the partitioning to become poor.
+ * <p>
+ * Not thread safe. Queries do not allocate.
+ */
+public class BoundingVolumeHierarchy {
+
+	/**
+	 * Exact ray test for a single item, called for items whose box the ray passes through.
+	 */
+	public interface RayTest {
+		/**
+		 * @param item The item id.
+		 * @param ray The pick ray. The direction is normalized.
+		 * @param tolerance Extra pick radius per unit of distance along the ray.
+		 * @return The distance along the ray to the hit or {@link Float#POSITIVE_INFINITY} for a miss.
+		 */
+		public float intersect(int item, Ray ray, float tolerance);
+	}
+
+	/**
+	 * Told about items that came into or went out of view in a {@link BoundingVolumeHierarchy#cull(Matrix4f, VisibilityListener)}.
+	 */
+	public interface VisibilityListener {
+		public void visibilityChanged(int item, boolean visible);
+	}
+
+	private final static int LEAF_SIZE = 4;
+	private final static int MAX_DEPTH = 64;
+
+	private final static int OUTSIDE = 0;
+	private final static int INTERSECTS = 1;
+	private final static int INSIDE = 2;
+
+	// per item: minX, minY, minZ, maxX, maxY, maxZ
+	private float[] items = new float[16 * 6];
+	private int itemCount;
+	// ids of removed items, reused by add
+	private boolean[] removed = new boolean[16];
+	private int[] free = new int[16];
+	private int freeCount;
+	// per item: whether it was visible in the last cull, and the last cull it was seen in
+	private boolean[] visible = new boolean[16];
+	private int[] seen = new int[16];
+	// the items visible in the last cull, and the list the next cull fills
+	private int[] visibleItems = new int[16];
+	private int[] nextVisible = new int[16];
+	private int visibleCount;
+	private int culls;
+
+	private int[] perm = new int[0];
+	// per node: first and last (exclusive) entry in perm, children (-1 for leaves), box
+	private int[] lo = new int[0];
+	private int[] hi = new int[0];
+	private int[] left = new int[0];
+	private int[] right = new int[0];
+	private float[] box = new float[0];
+	private int nodes;
+
+	private final int[] stack = new int[MAX_DEPTH * 2];
+	private final float[] planes = new float[6 * 4];
+
+	private boolean needsBuild = true;
+	private boolean needsRefit;
+	private int refits;
+	private int rebuildInterval;
+	private float lastPickDistance = Float.POSITIVE_INFINITY;
+
+	/**
+	 * Adds an item.
+	 * @return The item id. Ids of removed items are reused first, otherwise ids are assigned sequentially from zero.
+	 */
+	public int add(float minX, float minY, float minZ, float maxX, float maxY, float maxZ) {
+		if (freeCount > 0) {
+			int id = free[--freeCount];
+			removed[id] = false;
+			setBox(id, minX, minY, minZ, maxX, maxY, maxZ);
+			needsBuild = true;
+			return id;
+		}
+		if ((itemCount + 1) * 6 > items.length) {
+			items = Arrays.copyOf(items, items.length * 2);
+			int capacity = items.length / 6;
+			visible = Arrays.copyOf(visible, capacity);
+			seen = Arrays.copyOf(seen, capacity);
+			visibleItems = Arrays.copyOf(visibleItems, capacity);
+			nextVisible = new int[capacity];
+			removed = Arrays.copyOf(removed, capacity);
+			free = new int[capacity];
+		}
+		int id = itemCount++;
+		setBox(id, minX, minY, minZ, maxX, maxY, maxZ);
+		needsBuild = true;
+		return id;
+	}
+
+	/**
+	 * Moves an item. The hierarchy is refit on the next {@link #update()}.
+	 */
+	public void set(int item, float minX, float minY, float minZ, float maxX, float maxY, float maxZ) {
+		setBox(item, minX, minY, minZ, maxX, maxY, maxZ);
+		needsRefit = true;
+	}
+
+	/**
+	 * Removes an item. Its id may be returned by a later {@link #add(float, float, float, float, float, float)}.
+	 * @param item
+	 */
+	public void remove(int item) {
+		removed[item] = true;
+		// a removed item isn't reported as going out of view
+		visible[item] = false;
+		free[freeCount++] = item;
+		needsBuild = true;
+	}
+
+	/**
+	 * The number of items.
+	 * @return
+	 */
+	public int size() {
+		return itemCount - freeCount;
+	}
+
+	/**
+	 * Builds the hierarchy if items were added and refits it if items were moved.
+	 */
+	public void update() {
+		if (needsBuild || (needsRefit && rebuildInterval > 0 && refits >= rebuildInterval)) {
+			rebuild();
+		}
+		else if (needsRefit) {
+			refit();
+		}
+	}
+
+	/**
+	 * The number of refits after which the hierarchy is rebuilt. Zero, the default, never rebuilds.
+	 * @return
+	 */
+	public int getRebuildInterval() {
+		return rebuildInterval;
+	}
+
+	public void setRebuildInterval(int rebuildInterval) {
+		this.rebuildInterval = rebuildInterval;
+	}
+
+	/**
+	 * Re-partitions the hierarchy from scratch.
+	 */
+	public void rebuild() {
+		int live = itemCount - freeCount;
+		int maxNodes = Math.max(1, 2 * live);
+		if (lo.length < maxNodes) {
+			lo = new int[maxNodes];
+			hi = new int[maxNodes];
+			left = new int[maxNodes];
+			right = new int[maxNodes];
+			box = new float[maxNodes * 6];
+		}
+		if (perm.length < live) {
+			perm = new int[live];
+		}
+		live = 0;
+		for (int i = 0; i < itemCount; i++) {
+			if (!removed[i]) {
+				perm[live++] = i;
+			}
+		}
+		nodes = 0;
+		if (live > 0) {
+			build(0, live, 0);
+		}
+		needsBuild = false;
+		needsRefit = false;
+		refits = 0;
+	}
+
+	/**
+	 * Culls the items against the frustum and reports the ones that came into or went out of
+	 * view since the last cull. Items start out of view.
+	 *
+	 * @param viewProjection The camera's view projection matrix.
+	 * @param listener Told about every item whose visibility changed.
+	 * @return The number of visible items.
+	 */
+	public int cull(Matrix4f viewProjection, VisibilityListener listener) {
+		update();
+		culls++;
+		int count = 0;
+		if (nodes > 0) {
+			setFrustum(viewProjection);
+			int sp = 0;
+			stack[sp++] = 0;
+			while (sp > 0) {
+				int n = stack[--sp];
+				int side = testFrustum(box, n);
+				if (side == OUTSIDE) {
+					continue;
+				}
+				// everything below a node that is entirely inside is visible without further tests
+				boolean inside = side == INSIDE;
+				if (left[n] == -1 || inside) {
+					for (int i = lo[n]; i < hi[n]; i++) {
+						int item = perm[i];
+						if (inside || testFrustum(items, item) != OUTSIDE) {
+							seen[item] = culls;
+							nextVisible[count++] = item;
+							if (!visible[item]) {
+								visible[item] = true;
+								listener.visibilityChanged(item, true);
+							}
+						}
+					}
+				}
+				else {
+					stack[sp++] = left[n];
+					stack[sp++] = right[n];
+				}
+			}
+		}
+		// the items visible last time that weren't seen this time
+		for (int i = 0; i < visibleCount; i++) {
+			int item = visibleItems[i];
+			if (visible[item] && seen[item] != culls) {
+				visible[item] = false;
+				listener.visibilityChanged(item, false);
+			}
+		}
+		int[] t = visibleItems;
+		visibleItems = nextVisible;
+		nextVisible = t;
+		visibleCount = count;
+		return count;
+	}
+
+	/**
+	 * Whether the item was visible in the last cull.
+	 * @param item
+	 * @return
+	 */
+	public boolean isVisible(int item) {
+		return visible[item];
+	}
+
+	/**
+	 * Finds the items whose box contains the point.
+	 * @param x
+	 * @param y
+	 * @param z
+	 * @param store Receives the item ids. Must be able to hold every item.
+	 * @return The number of ids written to <code>store</code>.
+	 */
+	public int findContaining(float x, float y, float z, int[] store) {
+		update();
+		int found = 0;
+		if (nodes > 0) {
+			int sp = 0;
+			stack[sp++] = 0;
+			while (sp > 0) {
+				int n = stack[--sp];
+				if (!contains(box, n, x, y, z)) {
+					continue;
+				}
+				if (left[n] == -1) {
+					for (int i = lo[n]; i < hi[n]; i++) {
+						if (contains(items, perm[i], x, y, z)) {
+							store[found++] = perm[i];
+						}
+					}
+				}
+				else {
+					stack[sp++] = left[n];
+					stack[sp++] = right[n];
+				}
+			}
+		}
+		return found;
+	}
+
+	/**
+	 * Finds the item whose box center is nearest to the point.
+	 * @param x
+	 * @param y
+	 * @param z
+	 * @return The item id or <code>-1</code> if there are no items.
+	 */
+	public int findNearest(float x, float y, float z) {
+		update();
+		int best = -1;
+		if (nodes > 0) {
+			float bestDist = Float.POSITIVE_INFINITY;
+			int sp = 0;
+			stack[sp++] = 0;
+			while (sp > 0) {
+				int n = stack[--sp];
+				// the box encloses every center below n, so it bounds their distance from below
+				if (boxDistanceSquared(n, x, y, z) >= bestDist) {
+					continue;
+				}
+				if (left[n] == -1) {
+					for (int i = lo[n]; i < hi[n]; i++) {
+						int item = perm[i];
+						float dx = x - centroid(item, 0) / 2;
+						float dy = y - centroid(item, 1) / 2;
+						float dz = z - centroid(item, 2) / 2;
+						float d = dx * dx + dy * dy + dz * dz;
+						if (d < bestDist) {
+							bestDist = d;
+							best = item;
+						}
+					}
+				}
+				else {
+					// visit the closer child first so the farther one is more likely pruned
+					int l = left[n];
+					int r = right[n];
+					if (boxDistanceSquared(l, x, y, z) <= boxDistanceSquared(r, x, y, z)) {
+						stack[sp++] = r;
+						stack[sp++] = l;
+					}
+					else {
+						stack[sp++] = l;
+						stack[sp++] = r;
+					}
+				}
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * Finds the nearest item along a ray.
+	 *
+	 * @param ray The pick ray. The direction must be normalized.
+	 * @param tolerance Extra pick radius per unit of distance along the ray, e.g. the world size of a few pixels at distance one.
+	 * @param test The exact test for items whose box is hit.
+	 * @return The item id or <code>-1</code> if nothing was hit.
+	 * @see #getLastPickDistance()
+	 */
+	public int pick(Ray ray, float tolerance, RayTest test) {
+		update();
+		int best = -1;
+		float bestDist = Float.POSITIVE_INFINITY;
+		if (nodes > 0) {
+			int sp = 0;
+			stack[sp++] = 0;
+			while (sp > 0) {
+				int n = stack[--sp];
+				float t = intersectBox(box, n, ray, tolerance);
+				if (t >= bestDist) {
+					continue;
+				}
+				if (left[n] == -1) {
+					for (int i = lo[n]; i < hi[n]; i++) {
+						int item = perm[i];
+						if (intersectBox(items, item, ray, tolerance) >= bestDist) {
+							continue;
+						}
+						float d = test.intersect(item, ray, tolerance);
+						if (d < bestDist) {
+							bestDist = d;
+							best = item;
+						}
+					}
+				}
+				else {
+					stack[sp++] = left[n];
+					stack[sp++] = right[n];
+				}
+			}
+		}
+		lastPickDistance = bestDist;
+		return best;
+	}
+
+	/**
+	 * The distance along the ray of the last {@link #pick(Ray, float, RayTest)} hit.
+	 * @return
+	 */
+	public float getLastPickDistance() {
+		return lastPickDistance;
+	}
+
+	private void setBox(int item, float minX, float minY, float minZ, float maxX, float maxY, float maxZ) {
+		int b = item * 6;
+		items[b] = minX;
+		items[b + 1] = minY;
+		items[b + 2] = minZ;
+		items[b + 3] = maxX;
+		items[b + 4] = maxY;
+		items[b + 5] = maxZ;
+	}
+
+	// nodes are created in pre-order, so children always have a higher index than their parent.
+	private int build(int from, int to, int depth) {
+		int n = nodes++;
+		lo[n] = from;
+		hi[n] = to;
+		left[n] = -1;
+		right[n] = -1;
+		if (to - from > LEAF_SIZE && depth < MAX_DEPTH - 1) {
+			int axis = widestAxis(from, to);
+			int mid = (from + to) >>> 1;
+			select(from, to - 1, mid, axis);
+			left[n] = build(from, mid, depth + 1);
+			right[n] = build(mid, to, depth + 1);
+		}
+		fit(n);
+		return n;
+	}
+
+	private void refit() {
+		for (int n = nodes - 1; n >= 0; n--) {
+			fit(n);
+		}
+		needsRefit = false;
+		refits++;
+	}
+
+	private void fit(int n) {
+		int b = n * 6;
+		if (left[n] == -1) {
+			box[b] = box[b + 1] = box[b + 2] = Float.POSITIVE_INFINITY;
+			box[b + 3] = box[b + 4] = box[b + 5] = Float.NEGATIVE_INFINITY;
+			for (int i = lo[n]; i < hi[n]; i++) {
+				int ib = perm[i] * 6;
+				for (int a = 0; a < 3; a++) {
+					box[b + a] = Math.min(box[b + a], items[ib + a]);
+					box[b + 3 + a] = Math.max(box[b + 3 + a], items[ib + 3 + a]);
+				}
+			}
+		}
+		else {
+			int l = left[n] * 6;
+			int r = right[n] * 6;
+			for (int a = 0; a < 3; a++) {
+				box[b + a] = Math.min(box[l + a], box[r + a]);
+				box[b + 3 + a] = Math.max(box[l + 3 + a], box[r + 3 + a]);
+			}
+		}
+	}
+
+	private static boolean contains(float[] boxes, int i, float x, float y, float z) {
+		int b = i * 6;
+		return x >= boxes[b] && y >= boxes[b + 1] && z >= boxes[b + 2]
+				&& x <= boxes[b + 3] && y <= boxes[b + 4] && z <= boxes[b + 5];
+	}
+
+	private float boxDistanceSquared(int n, float x, float y, float z) {
+		int b = n * 6;
+		float dx = Math.max(0, Math.max(box[b] - x, x - box[b + 3]));
+		float dy = Math.max(0, Math.max(box[b + 1] - y, y - box[b + 4]));
+		float dz = Math.max(0, Math.max(box[b + 2] - z, z - box[b + 5]));
+		return dx * dx + dy * dy + dz * dz;
+	}
+
+	// twice the center of the item's box along the axis
+	private float centroid(int item, int axis) {
+		int b = item * 6;
+		return items[b + axis] + items[b + 3 + axis];
+	}
+
+	private int widestAxis(int from, int to) {
+		float minX = Float.POSITIVE_INFINITY, minY = minX, minZ = minX;
+		float maxX = Float.NEGATIVE_INFINITY, maxY = maxX, maxZ = maxX;
+		for (int i = from; i < to; i++) {
+			int item = perm[i];
+			float x = centroid(item, 0), y = centroid(item, 1), z = centroid(item, 2);
+			minX = Math.min(minX, x); maxX = Math.max(maxX, x);
+			minY = Math.min(minY, y); maxY = Math.max(maxY, y);
+			minZ = Math.min(minZ, z); maxZ = Math.max(maxZ, z);
+		}
+		float dx = maxX - minX, dy = maxY - minY, dz = maxZ - minZ;
+		if (dx >= dy && dx >= dz) {
+			return 0;
+		}
+		return dy >= dz ? 1 : 2;
+	}
+
+	// quickselect on the item centroids
+	private void select(int from, int to, int k, int axis) {
+		while (to > from) {
+			float pivot = centroid(perm[(from + to) >>> 1], axis);
+			int i = from;
+			int j = to;
+			while (i <= j) {
+				while (centroid(perm[i], axis) < pivot) i++;
+				while (centroid(perm[j], axis) > pivot) j--;
+				if (i <= j) {
+					int t = perm[i];
+					perm[i] = perm[j];
+					perm[j] = t;
+					i++;
+					j--;
+				}
+			}
+			if (k <= j) {
+				to = j;
+			}
+			else if (k >= i) {
+				from = i;
+			}
+			else {
+				return;
+			}
+		}
+	}
+
+	// Gribb/Hartmann plane extraction. Planes point into the frustum.
+	private void setFrustum(Matrix4f m) {
+		setPlane(0, m.m30 + m.m00, m.m31 + m.m01, m.m32 + m.m02, m.m33 + m.m03); // left
+		setPlane(1, m.m30 - m.m00, m.m31 - m.m01, m.m32 - m.m02, m.m33 - m.m03); // right
+		setPlane(2, m.m30 + m.m10, m.m31 + m.m11, m.m32 + m.m12, m.m33 + m.m13); // bottom
+		setPlane(3, m.m30 - m.m10, m.m31 - m.m11, m.m32 - m.m12, m.m33 - m.m13); // top
+		setPlane(4, m.m30 + m.m20, m.m31 + m.m21, m.m32 + m.m22, m.m33 + m.m23); // near
+		setPlane(5, m.m30 - m.m20, m.m31 - m.m21, m.m32 - m.m22, m.m33 - m.m23); // far
+	}
+
+	private void setPlane(int p, float a, float b, float c, float d) {
+		float len = (float)Math.sqrt(a * a + b * b + c * c);
+		planes[p * 4] = a / len;
+		planes[p * 4 + 1] = b / len;
+		planes[p * 4 + 2] = c / len;
+		planes[p * 4 + 3] = d / len;
+	}
+
+	private int testFrustum(float[] boxes, int i) {
+		int b = i * 6;
+		int result = INSIDE;
+		for (int p = 0; p < 6; p++) {
+			float a = planes[p * 4], pb = planes[p * 4 + 1], c = planes[p * 4 + 2], d = planes[p * 4 + 3];
+			// the corner furthest along the plane normal and the one opposite to it
+			float px = a >= 0 ? boxes[b + 3] : boxes[b];
+			float py = pb >= 0 ? boxes[b + 4] : boxes[b + 1];
+			float pz = c >= 0 ? boxes[b + 5] : boxes[b + 2];
+			if (a * px + pb * py + c * pz + d < 0) {
+				return OUTSIDE;
+			}
+			float nx = a >= 0 ? boxes[b] : boxes[b + 3];
+			float ny = pb >= 0 ? boxes[b + 1] : boxes[b + 4];
+			float nz = c >= 0 ? boxes[b + 2] : boxes[b + 5];
+			if (a * nx + pb * ny + c * nz + d < 0) {
+				result = INTERSECTS;
+			}
+		}
+		return result;
+	}
+
+	/*
+	 * Slab test against the box grown by the pick tolerance at the box's far side. Returns
+	 * the entry distance or infinity for a miss.
+	 */
+	private static float intersectBox(float[] boxes, int i, Ray ray, float tolerance) {
+		int b = i * 6;
+		Vector3f o = ray.origin;
+		Vector3f d = ray.direction;
+		float grow = 0;
+		if (tolerance > 0) {
+			float cx = (boxes[b] + boxes[b + 3]) / 2 - o.x;
+			float cy = (boxes[b + 1] + boxes[b + 4]) / 2 - o.y;
+			float cz = (boxes[b + 2] + boxes[b + 5]) / 2 - o.z;
+			float ex = (boxes[b + 3] - boxes[b]) / 2;
+			float ey = (boxes[b + 4] - boxes[b + 1]) / 2;
+			float ez = (boxes[b + 5] - boxes[b + 2]) / 2;
+			float far = (float)Math.sqrt(cx * cx + cy * cy + cz * cz) + (float)Math.sqrt(ex * ex + ey * ey + ez * ez);
+			grow = tolerance * far;
+		}
+		float tMin = 0;
+		float tMax = Float.POSITIVE_INFINITY;
+		for (int a = 0; a < 3; a++) {
+			float origin = a == 0 ? o.x : a == 1 ? o.y : o.z;
+			float dir = a == 0 ? d.x : a == 1 ? d.y : d.z;
+			float min = boxes[b + a] - grow;
+			float max = boxes[b + 3 + a] + grow;
+			if (dir == 0) {
+				if (origin < min || origin > max) {
+					return Float.POSITIVE_INFINITY;
+				}
+				continue;
+			}
+			float t0 = (min - origin) / dir;
+			float t1 = (max - origin) / dir;
+			if (t0 > t1) {
+				float t = t0;
+				t0 = t1;
+				t1 = t;
+			}
+			tMin = Math.max(tMin, t0);
+			tMax = Math.min(tMax, t1);
+			if (tMin > tMax) {
+				return Float.POSITIVE_INFINITY;
+			}
+		}
+		return tMin;
+	}
+}
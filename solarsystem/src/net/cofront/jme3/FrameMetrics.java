@@ -0,0 +1,658 @@
+package net.cofront.jme3;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+/**
+ * Records how long each stage of a frame takes, and counters such as how many bodies were
+ * updated, so frame times can be watched on a running application. Stages are timed by marking
+ * the end of each one in the order they run:
+ * <pre>
+ * metrics.beginFrame();
+ * ...
+ * metrics.mark(update);  // time since beginFrame()
+ * ...
+ * metrics.mark(render);  // time since the last mark
+ * metrics.endFrame(frame);
+ * </pre>
+ * Recording is lock free and doesn't allocate, so it can be done every frame on the render thread.
+ * With {@link #setAllocationTracking(boolean) allocation tracking}, the marks also record the
+ * bytes the render thread allocated in each stage, to find what makes garbage every frame.
+ * Every {@link #start(long, boolean) window} a timer thread takes the histograms' counts for the
+ * window that ended, which the MBeans report, and optionally logs them.
+ * <p>
+ * Stages, counters and gauges must be added before {@link #start(long, boolean)}. Frames over the
+ * {@link #setBudget(float) budget} are also reported to the flight recorder.
+ */
+public class FrameMetrics {
+
+	private final static Logger log = Logger.getLogger(FrameMetrics.class.getName());
+
+	/**
+	 * Percentiles of a stage's times over the last window, in milliseconds, and the bytes it
+	 * allocated if allocations are tracked.
+	 */
+	public interface HistogramMBean {
+		long getCount();
+		long getTotalCount();
+		double getMeanMillis();
+		double getP50Millis();
+		double getP90Millis();
+		double getP99Millis();
+		double getMaxMillis();
+		double getMeanAllocatedBytes();
+		long getMaxAllocatedBytes();
+	}
+
+	/**
+	 * A counter's total and its increase over the last window.
+	 */
+	public interface CounterMBean {
+		long getValue();
+		long getWindowValue();
+	}
+
+	/**
+	 * A gauge's last value and its highest value over the last window.
+	 */
+	public interface GaugeMBean {
+		long getValue();
+		long getWindowMax();
+	}
+
+	/*
+	 * Log-linear buckets over microseconds: 16 per power of two, so a bucket is within 6.25% of
+	 * the times in it. Up to 2^31 us, longer times go in the last bucket.
+	 */
+	private final static int SUB_BITS = 4;
+	private final static int SUB = 1 << SUB_BITS;
+	private final static int BUCKETS = (31 - SUB_BITS + 1) * SUB;
+
+	static int bucket(long micros) {
+		if (micros < SUB) {
+			return (int)Math.max(0, micros);
+		}
+		int e = 63 - Long.numberOfLeadingZeros(micros);
+		int i = (e - SUB_BITS + 1) * SUB + (int)((micros >>> (e - SUB_BITS)) & (SUB - 1));
+		return Math.min(i, BUCKETS - 1);
+	}
+
+	// the exclusive upper bound of a bucket, in microseconds.
+	static long upperBound(int bucket) {
+		if (bucket < SUB) {
+			return bucket + 1;
+		}
+		int e = bucket / SUB + SUB_BITS - 1;
+		long lower = (long)(SUB + bucket % SUB) << (e - SUB_BITS);
+		return lower + (1L << (e - SUB_BITS));
+	}
+
+	/**
+	 * A histogram of a stage's times.
+	 */
+	public static class Histogram implements HistogramMBean {
+		private final String name;
+		private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+		private final AtomicLong count = new AtomicLong();
+		private final AtomicLong sum = new AtomicLong();
+		private final AtomicLong allocated = new AtomicLong();
+		private final AtomicLong allocatedCount = new AtomicLong();
+		private final AtomicLong maxAllocated = new AtomicLong();
+		// owned by the timer thread
+		private final long[] previous = new long[BUCKETS];
+		private long previousCount;
+		private long previousSum;
+		private long previousAllocated;
+		private long previousAllocatedCount;
+		private volatile long[] window = new long[BUCKETS];
+		private volatile long windowCount;
+		private volatile long windowSum;
+		private volatile long windowAllocated;
+		private volatile long windowAllocatedCount;
+		private volatile long windowMaxAllocated;
+
+		private Histogram(String name) {
+			this.name = name;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		/**
+		 * Records a time.
+		 * @param nanos
+		 */
+		public void record(long nanos) {
+			counts.incrementAndGet(bucket(nanos / 1000));
+			count.incrementAndGet();
+			sum.addAndGet(nanos);
+		}
+
+		/**
+		 * Records the bytes allocated in the time last recorded.
+		 * @param bytes
+		 */
+		public void recordAllocated(long bytes) {
+			allocated.addAndGet(bytes);
+			allocatedCount.incrementAndGet();
+			long m;
+			while (bytes > (m = maxAllocated.get()) && !maxAllocated.compareAndSet(m, bytes)) {
+				// retry
+			}
+		}
+
+		// takes the counts since the last roll as the new window.
+		private void roll() {
+			long[] w = new long[BUCKETS];
+			for (int i = 0; i < BUCKETS; i++) {
+				long c = counts.get(i);
+				w[i] = c - previous[i];
+				previous[i] = c;
+			}
+			long c = count.get();
+			long s = sum.get();
+			long a = allocated.get();
+			long ac = allocatedCount.get();
+			window = w;
+			windowSum = s - previousSum;
+			windowCount = c - previousCount;
+			windowAllocated = a - previousAllocated;
+			windowAllocatedCount = ac - previousAllocatedCount;
+			windowMaxAllocated = maxAllocated.getAndSet(0);
+			previousCount = c;
+			previousSum = s;
+			previousAllocated = a;
+			previousAllocatedCount = ac;
+		}
+
+		/**
+		 * Returns the number of times recorded in the last window.
+		 */
+		public long getCount() {
+			return windowCount;
+		}
+
+		public long getTotalCount() {
+			return count.get();
+		}
+
+		public double getMeanMillis() {
+			long c = windowCount;
+			return c == 0 ? 0 : windowSum / 1e6 / c;
+		}
+
+		public double getP50Millis() {
+			return getPercentileMillis(0.5);
+		}
+
+		public double getP90Millis() {
+			return getPercentileMillis(0.9);
+		}
+
+		public double getP99Millis() {
+			return getPercentileMillis(0.99);
+		}
+
+		public double getMaxMillis() {
+			return getPercentileMillis(1);
+		}
+
+		/**
+		 * Returns the mean bytes allocated each time over the last window.
+		 * @return <code>0</code> unless allocations are tracked.
+		 */
+		public double getMeanAllocatedBytes() {
+			long c = windowAllocatedCount;
+			return c == 0 ? 0 : (double)windowAllocated / c;
+		}
+
+		public long getMaxAllocatedBytes() {
+			return windowMaxAllocated;
+		}
+
+		public long getTotalAllocatedBytes() {
+			return allocated.get();
+		}
+
+		/**
+		 * Returns how many times allocations were recorded; <code>0</code> for stages that are
+		 * recorded rather than marked.
+		 * @return
+		 */
+		public long getTotalAllocatedCount() {
+			return allocatedCount.get();
+		}
+
+		/**
+		 * Returns a percentile of the last window, rounded up to its bucket's upper bound.
+		 * @param p <code>0 -> 1</code>
+		 * @return The time in milliseconds, or <code>0</code> if nothing was recorded.
+		 */
+		public double getPercentileMillis(double p) {
+			long[] w = window;
+			long total = 0;
+			for (long c : w) {
+				total += c;
+			}
+			if (total == 0) {
+				return 0;
+			}
+			long rank = Math.max(1, (long)Math.ceil(p * total));
+			long seen = 0;
+			for (int i = 0; i < w.length; i++) {
+				seen += w[i];
+				if (seen >= rank) {
+					return upperBound(i) / 1000.0;
+				}
+			}
+			return upperBound(w.length - 1) / 1000.0;
+		}
+	}
+
+	/**
+	 * A running total, e.g. bodies updated.
+	 */
+	public static class Counter implements CounterMBean {
+		private final String name;
+		private final AtomicLong value = new AtomicLong();
+		private long previous;
+		private volatile long window;
+
+		private Counter(String name) {
+			this.name = name;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public void add(long n) {
+			value.addAndGet(n);
+		}
+
+		public long getValue() {
+			return value.get();
+		}
+
+		public long getWindowValue() {
+			return window;
+		}
+
+		private void roll() {
+			long v = value.get();
+			window = v - previous;
+			previous = v;
+		}
+	}
+
+	/**
+	 * A value that is set rather than added to, e.g. a queue depth.
+	 */
+	public static class Gauge implements GaugeMBean {
+		private final String name;
+		private final AtomicLong value = new AtomicLong();
+		private final AtomicLong max = new AtomicLong();
+		private volatile long window;
+
+		private Gauge(String name) {
+			this.name = name;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public void set(long v) {
+			value.set(v);
+			long m;
+			while (v > (m = max.get()) && !max.compareAndSet(m, v)) {
+				// retry
+			}
+		}
+
+		public long getValue() {
+			return value.get();
+		}
+
+		public long getWindowMax() {
+			return window;
+		}
+
+		private void roll() {
+			window = max.getAndSet(value.get());
+		}
+	}
+
+	private final String domain;
+	private final Map<String, Histogram> stages = new LinkedHashMap<String, Histogram>();
+	private final Map<String, Counter> counters = new LinkedHashMap<String, Counter>();
+	private final Map<String, Gauge> gauges = new LinkedHashMap<String, Gauge>();
+	private final List<ObjectName> registered = new ArrayList<ObjectName>();
+	private long frameStart;
+	private long lastMark;
+	private long budgetNanos;
+	// the stages marked this frame, for over budget frames
+	private final Histogram[] marked = new Histogram[16];
+	private final long[] markedNanos = new long[marked.length];
+	private int markCount;
+	private Timer timer;
+	// null unless allocations are tracked
+	private com.sun.management.ThreadMXBean threads;
+	private final long[] markedBytes = new long[marked.length];
+	private long frameBytes;
+	private long lastMarkBytes;
+	private long lastFrameBytes = -1;
+
+	/**
+	 * @param domain The JMX domain the MBeans are registered in, e.g. <code>net.cofront.solarsystem</code>.
+	 */
+	public FrameMetrics(String domain) {
+		this.domain = domain;
+	}
+
+	/**
+	 * Returns a stage's histogram, adding it if needed.
+	 * @param name
+	 * @return
+	 */
+	public synchronized Histogram stage(String name) {
+		Histogram h = stages.get(name);
+		if (h == null) {
+			h = new Histogram(name);
+			stages.put(name, h);
+		}
+		return h;
+	}
+
+	/**
+	 * Returns a counter, adding it if needed.
+	 * @param name
+	 * @return
+	 */
+	public synchronized Counter counter(String name) {
+		Counter c = counters.get(name);
+		if (c == null) {
+			c = new Counter(name);
+			counters.put(name, c);
+		}
+		return c;
+	}
+
+	/**
+	 * Returns a gauge, adding it if needed.
+	 * @param name
+	 * @return
+	 */
+	public synchronized Gauge gauge(String name) {
+		Gauge g = gauges.get(name);
+		if (g == null) {
+			g = new Gauge(name);
+			gauges.put(name, g);
+		}
+		return g;
+	}
+
+	/**
+	 * Returns the stages in the order they were added.
+	 * @return
+	 */
+	public synchronized List<Histogram> getStages() {
+		return new ArrayList<Histogram>(stages.values());
+	}
+
+	/**
+	 * Sets whether the marks also record the bytes the render thread allocated. Reading the
+	 * thread's allocation counter costs about as much as reading the clock. Call it on the render
+	 * thread or before the first frame.
+	 * @param enabled
+	 * @return Whether allocations are tracked; <code>false</code> if the VM can't count them.
+	 */
+	public boolean setAllocationTracking(boolean enabled) {
+		threads = null;
+		lastFrameBytes = -1;
+		if (enabled && ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean) {
+			com.sun.management.ThreadMXBean t = (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+			if (t.isThreadAllocatedMemorySupported()) {
+				t.setThreadAllocatedMemoryEnabled(true);
+				threads = t;
+			}
+		}
+		return threads != null;
+	}
+
+	public boolean isAllocationTracking() {
+		return threads != null;
+	}
+
+	private long allocated() {
+		return threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+
+	/**
+	 * Starts timing a frame. Must be called from the render thread, like {@link #mark(Histogram)}
+	 * and {@link #endFrame(Histogram)}.
+	 */
+	public void beginFrame() {
+		if (threads != null) {
+			frameBytes = lastMarkBytes = allocated();
+		}
+		frameStart = lastMark = System.nanoTime();
+		markCount = 0;
+	}
+
+	/**
+	 * Ends a stage and records the time since the last mark, or since the frame began.
+	 * @param stage
+	 */
+	public void mark(Histogram stage) {
+		long now = System.nanoTime();
+		long nanos = now - lastMark;
+		stage.record(nanos);
+		lastMark = now;
+		long bytes = 0;
+		if (threads != null) {
+			long b = allocated();
+			bytes = b - lastMarkBytes;
+			stage.recordAllocated(bytes);
+			lastMarkBytes = b;
+		}
+		if (markCount < marked.length) {
+			marked[markCount] = stage;
+			markedBytes[markCount] = bytes;
+			markedNanos[markCount++] = nanos;
+		}
+	}
+
+	/**
+	 * Ends the frame and records the time since it began. If it took longer than the budget, an
+	 * {@link OverBudgetFrameEvent} is committed when the flight recorder is recording.
+	 * @param frame
+	 */
+	public void endFrame(Histogram frame) {
+		long nanos = System.nanoTime() - frameStart;
+		frame.record(nanos);
+		if (threads != null) {
+			lastFrameBytes = allocated() - frameBytes;
+			frame.recordAllocated(lastFrameBytes);
+		}
+		if (budgetNanos > 0 && nanos > budgetNanos) {
+			overBudget(nanos);
+		}
+	}
+
+	/**
+	 * Returns the bytes the render thread allocated in the last frame.
+	 * @return <code>-1</code> unless allocations are tracked.
+	 */
+	public long getLastFrameAllocatedBytes() {
+		return lastFrameBytes;
+	}
+
+	/**
+	 * Describes what each stage of the last frame allocated, e.g. to report a frame over an
+	 * allocation budget. Render thread only.
+	 * @return The stages and their bytes, e.g. <code>input=0, states=96</code>.
+	 */
+	public String getLastFrameAllocations() {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < markCount; i++) {
+			sb.append(i == 0 ? "" : ", ").append(marked[i].getName()).append('=').append(markedBytes[i]);
+		}
+		return sb.toString();
+	}
+
+	private void overBudget(long nanos) {
+		OverBudgetFrameEvent event = new OverBudgetFrameEvent();
+		if (!event.shouldCommit()) {
+			return;
+		}
+		StringBuilder sb = new StringBuilder();
+		int slowest = -1;
+		for (int i = 0; i < markCount; i++) {
+			if (slowest == -1 || markedNanos[i] > markedNanos[slowest]) {
+				slowest = i;
+			}
+			sb.append(i == 0 ? "" : ", ").append(marked[i].getName()).append('=').append(markedNanos[i] / 1000 / 1000.0);
+		}
+		event.frameDuration = nanos;
+		event.budget = budgetNanos;
+		if (slowest != -1) {
+			event.slowestStage = marked[slowest].getName();
+			event.slowestStageDuration = markedNanos[slowest];
+		}
+		event.stages = sb.toString();
+		event.commit();
+	}
+
+	/**
+	 * Returns the frame time budget in milliseconds.
+	 * @return
+	 */
+	public float getBudget() {
+		return budgetNanos / 1000000f;
+	}
+
+	/**
+	 * Sets the frame time budget; frames that take longer are reported to the flight recorder.
+	 * @param budgetMillis The budget in milliseconds, or <code>0</code> to report none.
+	 */
+	public void setBudget(float budgetMillis) {
+		this.budgetNanos = (long)(budgetMillis * 1000000);
+	}
+
+	/**
+	 * Registers the MBeans and starts a daemon timer that rolls the windows.
+	 * @param windowMillis The length of the window the MBeans report.
+	 * @param logging Whether to log a line with the window's percentiles each time it rolls.
+	 * @throws JMException If the MBeans can't be registered.
+	 */
+	public synchronized void start(long windowMillis, final boolean logging) throws JMException {
+		if (timer != null) {
+			return;
+		}
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		for (Histogram h : stages.values()) {
+			register(server, "Stage", h.getName(), new StandardMBean(h, HistogramMBean.class));
+		}
+		for (Counter c : counters.values()) {
+			register(server, "Counter", c.getName(), new StandardMBean(c, CounterMBean.class));
+		}
+		for (Gauge g : gauges.values()) {
+			register(server, "Gauge", g.getName(), new StandardMBean(g, GaugeMBean.class));
+		}
+		timer = new Timer("FrameMetrics", true);
+		timer.scheduleAtFixedRate(new TimerTask() {
+			@Override
+			public void run() {
+				roll();
+				if (logging && log.isLoggable(Level.INFO)) {
+					log.info(FrameMetrics.this.toString());
+				}
+			}
+		}, windowMillis, windowMillis);
+	}
+
+	private void register(MBeanServer server, String type, String name, Object mbean) throws JMException {
+		ObjectName on = new ObjectName(domain + ":type=FrameMetrics,kind=" + type + ",name=" + ObjectName.quote(name));
+		if (server.isRegistered(on)) {
+			server.unregisterMBean(on);
+		}
+		server.registerMBean(mbean, on);
+		registered.add(on);
+	}
+
+	/**
+	 * Stops the timer and unregisters the MBeans.
+	 */
+	public synchronized void stop() {
+		if (timer == null) {
+			return;
+		}
+		timer.cancel();
+		timer = null;
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		for (ObjectName on : registered) {
+			try {
+				server.unregisterMBean(on);
+			} catch (JMException e) {
+				log.log(Level.FINE, "Unable to unregister " + on, e);
+			}
+		}
+		registered.clear();
+	}
+
+	/**
+	 * Takes the counts since the last roll as the new window. Called by the timer; only call it
+	 * directly if the metrics weren't started.
+	 */
+	public synchronized void roll() {
+		for (Histogram h : stages.values()) {
+			h.roll();
+		}
+		for (Counter c : counters.values()) {
+			c.roll();
+		}
+		for (Gauge g : gauges.values()) {
+			g.roll();
+		}
+	}
+
+	/**
+	 * Returns the last window's percentiles and counts on one line.
+	 */
+	@Override
+	public synchronized String toString() {
+		StringBuilder sb = new StringBuilder("FrameMetrics[");
+		String sep = "";
+		for (Histogram h : stages.values()) {
+			sb.append(sep).append(h.getName()).append(String.format(" n=%d p50=%.2f p90=%.2f p99=%.2f max=%.2fms",
+					h.getCount(), h.getP50Millis(), h.getP90Millis(), h.getP99Millis(), h.getMaxMillis()));
+			if (h.getTotalAllocatedCount() > 0) {
+				sb.append(String.format(" alloc mean=%.0f max=%dB", h.getMeanAllocatedBytes(), h.getMaxAllocatedBytes()));
+			}
+			sep = ", ";
+		}
+		for (Counter c : counters.values()) {
+			sb.append(sep).append(c.getName()).append('=').append(c.getWindowValue());
+		}
+		for (Gauge g : gauges.values()) {
+			sb.append(sep).append(g.getName()).append('=').append(g.getValue()).append(" (max ").append(g.getWindowMax()).append(')');
+		}
+		return sb.append(']').toString();
+	}
+}
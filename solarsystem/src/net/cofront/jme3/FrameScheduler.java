@@ -0,0 +1,194 @@
+package net.cofront.jme3;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.jme3.app.state.AbstractAppState;
+
+/**
+ * Runs work in the application's render thread within a per-frame time budget. Tasks can be
+ * queued from any thread into one of several {@link Lane}s; each frame the lanes are drained in
+ * priority order until the budget is spent and whatever is left carries over to the next frame.
+ * At least one task runs every frame so a single slow task can't stall the queue.
+ * <p>
+ * Unlike {@link com.jme3.app.Application#enqueue(Callable)}, a burst of work (e.g. many assets
+ * finishing at once) is spread over several frames instead of causing a hitch.
+ */
+public class FrameScheduler extends AbstractAppState {
+
+	private final static Logger log = Logger.getLogger(FrameScheduler.class.getName());
+
+	/**
+	 * Priority lanes, highest first.
+	 */
+	public enum Lane {
+		/** Work the user is waiting on. */
+		HIGH,
+		/** Default lane. */
+		NORMAL,
+		/** Cosmetic work that can trail behind. */
+		LOW
+	}
+
+	private final static Lane[] LANES = Lane.values();
+
+	private final ConcurrentLinkedQueue<Runnable>[] queues = newQueues(LANES.length);
+	private final AtomicInteger size = new AtomicInteger();
+
+	private long budgetNanos;
+	private long deferredCount;
+	private int lastDeferred;
+	private int lastRun;
+	private long lastNanos;
+
+	@SuppressWarnings("unchecked")
+	private static <T> ConcurrentLinkedQueue<T>[] newQueues(int count) {
+		return (ConcurrentLinkedQueue<T>[])new ConcurrentLinkedQueue<?>[count];
+	}
+
+	/**
+	 * Creates a scheduler with a budget of 4 milliseconds per frame.
+	 */
+	public FrameScheduler() {
+		this(4);
+	}
+
+	/**
+	 * @param budgetMillis The time budget per frame in milliseconds.
+	 */
+	public FrameScheduler(float budgetMillis) {
+		for (int i = 0; i < queues.length; i++) {
+			queues[i] = new ConcurrentLinkedQueue<Runnable>();
+		}
+		setBudget(budgetMillis);
+	}
+
+	/**
+	 * Queues a task in the {@link Lane#NORMAL} lane.
+	 * @param task
+	 * @return A future that is completed with the task's result in the render thread.
+	 */
+	public <V> CompletableFuture<V> enqueue(Callable<V> task) {
+		return enqueue(task, Lane.NORMAL);
+	}
+
+	/**
+	 * Queues a task.
+	 * @param task
+	 * @param lane
+	 * @return A future that is completed with the task's result in the render thread.
+	 */
+	public <V> CompletableFuture<V> enqueue(final Callable<V> task, Lane lane) {
+		final CompletableFuture<V> f = new CompletableFuture<V>();
+		execute(new Runnable() {
+			@Override
+			public void run() {
+				if (f.isDone()) {
+					return;
+				}
+				try {
+					f.complete(task.call());
+				} catch (Throwable t) {
+					f.completeExceptionally(t);
+				}
+			}
+		}, lane);
+		return f;
+	}
+
+	/**
+	 * Queues a task.
+	 * @param task
+	 * @param lane
+	 */
+	public void execute(Runnable task, Lane lane) {
+		queues[lane.ordinal()].add(task);
+		size.incrementAndGet();
+	}
+
+	/* (non-Javadoc)
+	 * @see com.jme3.app.state.AbstractAppState#update(float)
+	 */
+	@Override
+	public void update(float tpf) {
+		long start = System.nanoTime();
+		int run = 0;
+		for (int i = 0; i < queues.length; i++) {
+			Runnable task;
+			while ((run == 0 || System.nanoTime() - start < budgetNanos) && (task = queues[i].poll()) != null) {
+				size.decrementAndGet();
+				run++;
+				try {
+					task.run();
+				} catch (Exception e) {
+					log.log(Level.SEVERE, "Error executing scheduled task.", e);
+				}
+			}
+		}
+		lastRun = run;
+		lastNanos = System.nanoTime() - start;
+		lastDeferred = size.get();
+		deferredCount += lastDeferred;
+	}
+
+	/**
+	 * Returns the number of queued tasks.
+	 * @return
+	 */
+	public int size() {
+		return size.get();
+	}
+
+	/**
+	 * Returns the number of tasks that ran in the last frame.
+	 * @return
+	 */
+	public int getLastRun() {
+		return lastRun;
+	}
+
+	/**
+	 * Returns how long the tasks took in the last frame.
+	 * @return The time in nanoseconds.
+	 */
+	public long getLastNanos() {
+		return lastNanos;
+	}
+
+	/**
+	 * Returns the number of tasks that were carried over to the next frame in the last frame.
+	 * @return
+	 */
+	public int getLastDeferred() {
+		return lastDeferred;
+	}
+
+	/**
+	 * Returns the total number of times a task was carried over to the next frame. A task
+	 * that waits three frames is counted three times.
+	 * @return
+	 */
+	public long getDeferredCount() {
+		return deferredCount;
+	}
+
+	/**
+	 * Returns the time budget per frame in milliseconds.
+	 * @return
+	 */
+	public float getBudget() {
+		return budgetNanos / 1000000f;
+	}
+
+	/**
+	 * Sets the time budget per frame in milliseconds.
+	 * @param budgetMillis
+	 */
+	public void setBudget(float budgetMillis) {
+		this.budgetNanos = (long)(budgetMillis * 1000000);
+	}
+}
@@ -1,10 +1,26 @@
 package net.cofront.jme3;
 
+import java.io.IOException;
+import java.lang.reflect.Method;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import java.util.function.Supplier;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -13,6 +29,8 @@ import com.jme3.app.state.AppStateManager;
 import com.jme3.asset.AssetInfo;
 import com.jme3.asset.AssetKey;
 import com.jme3.asset.AssetManager;
+import com.jme3.asset.DesktopAssetManager;
+import com.jme3.asset.MaterialKey;
 import com.jme3.asset.ModelKey;
 import com.jme3.asset.TextureKey;
 import com.jme3.audio.AudioData;
@@ -22,13 +40,27 @@ import com.jme3.material.Material;
 import com.jme3.scene.Spatial;
 import com.jme3.shader.Shader;
 import com.jme3.shader.ShaderKey;
+import com.jme3.texture.Image;
 import com.jme3.texture.Texture;
 
 /**
  * A threaded wrapper for the {@link AssetManager}. Assets are loaded in a separate thread(s)
- * and {@link Future}s are returned. In addition, a {@link Callback} can be used to process the 
+ * and {@link CompletableFuture}s are returned. In addition, a {@link Callback} can be used to process the 
  * result of {@link Future#get()}. The callbacks are automatically executed in the application's 
  * render thread.
+ * <p>
+ * Each future hands its callback to a lock-free queue when it completes; the render thread 
+ * only drains that queue, so the cost per frame depends on the number of loads that finished 
+ * rather than the number still pending.
+ * <p>
+ * Requests for an asset that is already loading share the load in flight instead of loading
+ * it again.
+ * <p>
+ * Loads can be given a {@link LoadPriority} with {@link #setCurrentPriority(LoadPriority)}. A loader
+ * thread always takes the queued load with the highest priority at the time it becomes free, so 
+ * priorities can be changed while loads are queued, and loads whose priority was cancelled are dropped.
+ * The queue is a heap that is re-keyed once for any number of priority changes, the next time a
+ * loader thread takes a load.
  * 
  * @author Aaron Loucks
  * @version $Id: FutureAssetLoaderState.java 86 2011-05-19 23:56:28Z aloucks $
@@ -38,6 +70,11 @@ public class FutureAssetLoaderState extends AbstractAppState {
 	
 	private final static Logger log = Logger.getLogger(FutureAssetLoaderState.class.getName());
 	
+	/**
+	 * The size of the pool in {@link ThreadingMode#SHARED} mode, and the least in {@link ThreadingMode#SPLIT} mode.
+	 */
+	public final static int DEFAULT_THREAD_COUNT = 3;
+	
 	/**
 	 * Extend this class to submit callbacks to execute after the future is done. The callback
 	 * will be excuted in the application's render thread.
@@ -66,19 +103,25 @@ public class FutureAssetLoaderState extends AbstractAppState {
 	}
 	
 	// structure to hold the future and the callback to execute
-	// when the future is done.
-	private class FutureCallback<T> {
+	// when the future is done. Queues itself for the render thread on completion.
+	private class FutureCallback<T> implements BiConsumer<T, Throwable>, Runnable {
 		private Future<T> f;
 		private Callback<T> cb;
 		private FutureCallback(Future<T> f, Callback<T> cb) {
 			this.f = f;
 			this.cb = cb;
 		}
-		private boolean isDone() {
-			return f.isDone();
+		@Override
+		public void accept(T result, Throwable failure) {
+			// queue before counting down so update() never sees an empty queue and no pending loads early
+			if (!f.isCancelled()) {
+				completed.add(this);
+			}
+			pending.decrementAndGet();
 		}
-		private boolean isCancelled() {
-			return f.isCancelled();
+		@Override
+		public void run() {
+			callback();
 		}
 		public void callback() {
 			try {
@@ -97,10 +140,57 @@ public class FutureAssetLoaderState extends AbstractAppState {
 	private AssetManager am;
 	private AppStateManager sm;
 	private ScheduledThreadPoolExecutor executor;
-	private ArrayList<FutureCallback<?>> queue = new ArrayList<FutureCallback<?>>();
-	private ArrayList<FutureCallback<?>> prune = new ArrayList<FutureCallback<?>>();
+	private ExecutorService ioExecutor;
+	private TexturePipeline pipeline;
+	private final ConcurrentLinkedQueue<FutureCallback<?>> completed = new ConcurrentLinkedQueue<FutureCallback<?>>();
+	private final AtomicInteger pending = new AtomicInteger();
+	private FrameScheduler scheduler;
+	private FrameScheduler.Lane lane = FrameScheduler.Lane.NORMAL;
+	private final ConcurrentHashMap<AssetKey<?>, CompletableFuture<?>> inFlight = new ConcurrentHashMap<AssetKey<?>, CompletableFuture<?>>();
+	private final AtomicInteger coalesced = new AtomicInteger();
+	private boolean loadingDependencies = true;
+	private volatile int placeholderSize;
+	private final ConcurrentLinkedQueue<Texture> placeholders = new ConcurrentLinkedQueue<Texture>();
 	private boolean autoAttaching = true;
 	
+	// tasks waiting for a loader thread; each thread takes the highest priority task when it's free.
+	// the depth is counted outside the lock so the render thread can read it every frame.
+	private final LoadQueue queued = new LoadQueue();
+	private final ArrayList<LoadQueue.Task> dropped = new ArrayList<LoadQueue.Task>();
+	private final ThreadLocal<LoadPriority> currentPriority = new ThreadLocal<LoadPriority>();
+	private final ThreadLocal<Boolean> currentPlaceholders = new ThreadLocal<Boolean>();
+	private final AtomicInteger queueDepth = new AtomicInteger();
+	private final AtomicInteger maxQueueDepth = new AtomicInteger();
+	private final AtomicInteger cancelledCount = new AtomicInteger();
+	private volatile boolean rekey;
+	private final Runnable runNext = new Runnable() {
+		@Override
+		public void run() {
+			LoadQueue.Task task = takeNext();
+			if (task != null) {
+				task.run.run();
+			}
+		}
+	};
+	
+	/**
+	 * How loads are spread over threads.
+	 */
+	public enum ThreadingMode {
+		/** 
+		 * Every load runs on one pool, of {@link FutureAssetLoaderState#DEFAULT_THREAD_COUNT} threads by default. 
+		 * Textures are read and decoded in the same task, through a {@link TexturePipeline}.
+		 */
+		SHARED,
+		/** 
+		 * Textures are read on I/O threads, and decoded on a pool with one thread per core but 
+		 * no fewer than {@link FutureAssetLoaderState#DEFAULT_THREAD_COUNT}, through a {@link TexturePipeline}. The I/O threads are virtual threads if the runtime 
+		 * has them (Java 21 or later), otherwise a cached pool of daemon threads. Other loads run 
+		 * on the decode pool.
+		 */
+		SPLIT
+	}
+	
 	@SuppressWarnings("unused")
 	private FutureAssetLoaderState() {}
 	
@@ -131,6 +221,34 @@ public class FutureAssetLoaderState extends AbstractAppState {
 		this.executor.setThreadFactory(daemonFactory);
 	}
 	
+	/**
+	 * Creates an asset loader that uses the given threading mode, with the mode's default number of threads.
+	 * @param am The {@link AssetManager} to use.
+	 * @param mode The {@link ThreadingMode}.
+	 */
+	public FutureAssetLoaderState(AssetManager am, ThreadingMode mode) {
+		this(am, mode, mode == ThreadingMode.SPLIT ? Math.max(DEFAULT_THREAD_COUNT, Runtime.getRuntime().availableProcessors()) : DEFAULT_THREAD_COUNT);
+	}
+	
+	/**
+	 * Creates an asset loader that uses the given threading mode.
+	 * @param am The {@link AssetManager} to use.
+	 * @param mode The {@link ThreadingMode}.
+	 * @param threadCount The number of daemon threads in the pool, which decodes textures in {@link ThreadingMode#SPLIT} mode.
+	 */
+	public FutureAssetLoaderState(AssetManager am, ThreadingMode mode, int threadCount) {
+		this(am, threadCount);
+		if (mode == ThreadingMode.SPLIT) {
+			ioExecutor = newIoExecutor();
+			// enough read textures to keep every decode thread busy while the next ones are read.
+			pipeline = new TexturePipeline(am, executor.getCorePoolSize() * 2);
+		}
+		else {
+			// each thread holds at most one read texture, so reads never wait for a decode.
+			pipeline = new TexturePipeline(am, executor.getCorePoolSize());
+		}
+	}
+	
 	/**
 	 * Creates an asset loader with the given executor.
 	 * @param am The {@link AssetManager} to use.
@@ -146,28 +264,16 @@ public class FutureAssetLoaderState extends AbstractAppState {
 	 */
 	@Override
 	public void update(float tpf) {
-		boolean detach = true;
-		if (queue.size() > 0) {
-			synchronized(queue) {
-				for(FutureCallback<?> fc : queue) {
-					if (fc.isDone()) {
-						fc.callback();
-						prune.add(fc);
-					}
-					else if (fc.isCancelled()) {
-						prune.add(fc);
-					}
-				}
+		// read pending first; a callback is always queued before it stops being pending.
+		boolean detach = pending.get() == 0;
+		FutureCallback<?> fc;
+		while ((fc = completed.poll()) != null) {
+			if (scheduler != null) {
+				scheduler.execute(fc, lane);
 			}
-			detach = false;
-		}
-		if (prune.size() > 0) {
-			synchronized(queue) {
-				for(FutureCallback<?> fc : prune) {
-					queue.remove(fc);
-				}
+			else {
+				fc.callback();
 			}
-			prune.clear();
 			detach = false;
 		}
 		if (autoAttaching && detach) {
@@ -175,6 +281,63 @@ public class FutureAssetLoaderState extends AbstractAppState {
 		}
 	}
 	
+	/**
+	 * Returns the number of callbacks whose futures have not completed yet.
+	 * @return
+	 */
+	public int getPendingCount() {
+		return pending.get();
+	}
+	
+	/**
+	 * Returns the scheduler that callbacks are handed to.
+	 * @return The {@link FrameScheduler} or <code>null</code> if callbacks run as soon as their future completes.
+	 */
+	public FrameScheduler getScheduler() {
+		return scheduler;
+	}
+	
+	/**
+	 * Sets the scheduler that callbacks are handed to, so they are spread over frames
+	 * within its time budget.
+	 * @param scheduler The {@link FrameScheduler} or <code>null</code> to run callbacks in <code>update()</code>.
+	 * @param lane The lane to queue callbacks in.
+	 */
+	public void setScheduler(FrameScheduler scheduler, FrameScheduler.Lane lane) {
+		this.scheduler = scheduler;
+		this.lane = lane;
+	}
+	
+	/**
+	 * Shuts down the executor and, in {@link ThreadingMode#SPLIT} mode, the I/O threads.
+	 * Loads that are already queued still run.
+	 */
+	public void shutdown() {
+		executor.shutdown();
+		if (ioExecutor != null) {
+			ioExecutor.shutdown();
+		}
+		if (pipeline != null) {
+			log.log(Level.INFO, "Texture pipeline: {0}", pipeline);
+		}
+	}
+	
+	/**
+	 * Returns the texture pipeline.
+	 * @return The {@link TexturePipeline} or <code>null</code> unless the loader was created with a {@link ThreadingMode}.
+	 */
+	public TexturePipeline getTexturePipeline() {
+		return pipeline;
+	}
+	
+	/**
+	 * Returns the executor for blocking reads.
+	 * @return The {@link ExecutorService} or <code>null</code> unless the mode is {@link ThreadingMode#SPLIT}.
+	 */
+	public ExecutorService getIoExecutor() {
+		return ioExecutor;
+	}
+	
 	/**
 	 * Returns the current executor.
 	 * @return The current {@link ScheduledThreadPoolExecutor}.
@@ -195,28 +358,283 @@ public class FutureAssetLoaderState extends AbstractAppState {
 	 * Queues the callback to be run in the application's render thread via <code>update()</code>. 
 	 * The state must be attached in order for callbacks to execute.
 	 * 
-	 * @param f The {@link Future} to monitor.
+	 * @param f The {@link CompletableFuture} to monitor.
 	 * @param cb The {@link Callback} to process the results of <code>f.get()</code>.
 	 */
-	protected <T> void queue(final Future<T> f, final Callback<T> cb) {
+	protected <T> void queue(final CompletableFuture<T> f, final Callback<T> cb) {
 		if (cb == null) {
 			return;
 		}
-		synchronized(queue) {
-			queue.add(new FutureCallback<T>(f, cb));
-		}
+		pending.incrementAndGet();
+		f.whenComplete(new FutureCallback<T>(f, cb));
 		// re-attach to the state manager if needed.
 		if (autoAttaching && sm != null && !sm.hasState(this)) {
 			sm.attach(this);
 		}
 	}
 	
+	/**
+	 * Sets the priority of loads submitted from the calling thread until it's changed again.
+	 * Loads without a priority go before all others, in the order they were submitted.
+	 * 
+	 * @param priority The priority or <code>null</code>.
+	 * @return The previous priority, so it can be restored.
+	 */
+	public LoadPriority setCurrentPriority(LoadPriority priority) {
+		LoadPriority previous = currentPriority.get();
+		currentPriority.set(priority);
+		return previous;
+	}
+	
+	/**
+	 * Returns the priority of loads submitted from the calling thread.
+	 * @return
+	 */
+	public LoadPriority getCurrentPriority() {
+		return currentPriority.get();
+	}
+	
+	/**
+	 * Sets whether textures loaded from the calling thread, directly or by a material, are loaded
+	 * as placeholders until it's changed again. Only textures whose higher resolutions are loaded
+	 * later, e.g. by a {@link TextureStreamer} tracking the scene they're used in, should be.
+	 * 
+	 * @param placeholders
+	 * @return Whether they were, so it can be restored.
+	 * @see #setPlaceholderSize(int)
+	 */
+	public boolean setLoadingPlaceholders(boolean placeholders) {
+		boolean previous = isLoadingPlaceholders();
+		currentPlaceholders.set(placeholders ? Boolean.TRUE : null);
+		return previous;
+	}
+	
+	/**
+	 * Returns whether textures loaded from the calling thread are loaded as placeholders.
+	 * @return Default: <b>false</b>.
+	 */
+	public boolean isLoadingPlaceholders() {
+		return currentPlaceholders.get() != null;
+	}
+	
+	/**
+	 * Returns the number of loads waiting for a loader thread.
+	 * @return
+	 */
+	public int getQueueDepth() {
+		return queueDepth.get();
+	}
+	
+	/**
+	 * Returns the largest number of loads that were waiting for a loader thread at once.
+	 * @return
+	 */
+	public int getMaxQueueDepth() {
+		return maxQueueDepth.get();
+	}
+	
+	/**
+	 * Returns the number of queued loads that were dropped because they or their priority were cancelled.
+	 * @return
+	 */
+	public int getCancelledCount() {
+		return cancelledCount.get();
+	}
+	
+	/**
+	 * Runs the task on the executor with the calling thread's current priority and completes 
+	 * the returned future with its result. A task whose future was cancelled before it started 
+	 * is skipped.
+	 * @param task
+	 * @return
+	 * @see #setCurrentPriority(LoadPriority)
+	 */
+	protected <T> CompletableFuture<T> submit(final Callable<T> task) {
+		return submit(task, currentPriority.get());
+	}
+	
+	/**
+	 * Runs the task on the executor and completes the returned future with its result. A task
+	 * whose future was cancelled before it started is skipped.
+	 * @param task
+	 * @param priority The priority or <code>null</code> to run before prioritized tasks.
+	 * @return
+	 */
+	protected <T> CompletableFuture<T> submit(final Callable<T> task, LoadPriority priority) {
+		final CompletableFuture<T> f = new CompletableFuture<T>();
+		Runnable run = new Runnable() {
+			@Override
+			public void run() {
+				if (f.isDone()) {
+					return;
+				}
+				try {
+					f.complete(task.call());
+				} catch (Throwable t) {
+					f.completeExceptionally(t);
+				}
+			}
+		};
+		if (priority != null) {
+			priority.watch(this);
+		}
+		int depth;
+		synchronized(queued) {
+			queued.offer(run, priority, f);
+			depth = queueDepth.incrementAndGet();
+		}
+		int max;
+		while (depth > (max = maxQueueDepth.get()) && !maxQueueDepth.compareAndSet(max, depth));
+		// every task submits one runNext, which takes whichever task is the most important by then.
+		executor.execute(runNext);
+		return f;
+	}
+	
+	/*
+	 * Called by a LoadPriority that has loads queued here when it changes or is cancelled.
+	 */
+	void prioritiesChanged() {
+		rekey = true;
+	}
+	
+	/*
+	 * Removes and returns the queued task with the highest priority, dropping cancelled ones on
+	 * the way. Ties go to the task that was submitted first. If priorities changed since the last
+	 * take, the queue is re-keyed first.
+	 */
+	private LoadQueue.Task takeNext() {
+		LoadQueue.Task next;
+		synchronized(queued) {
+			if (rekey) {
+				rekey = false;
+				queued.rekey(dropped);
+			}
+			while ((next = queued.poll()) != null && next.isDropped()) {
+				dropped.add(next);
+			}
+			if (next != null) {
+				queueDepth.decrementAndGet();
+			}
+			if (dropped.isEmpty()) {
+				return next;
+			}
+			queueDepth.addAndGet(-dropped.size());
+			cancelledCount.addAndGet(dropped.size());
+			for (LoadQueue.Task t : dropped) {
+				t.f.cancel(false);
+			}
+			dropped.clear();
+		}
+		return next;
+	}
+	
+	/**
+	 * Loads an asset on the executor unless the same key is already loading, in which case the
+	 * request is coalesced onto the load in flight. Coalesced requests get their own copy of the
+	 * asset if the key clones assets (e.g. materials), just like the {@link AssetManager} would.
+	 * @param key
+	 * @param task
+	 * @return
+	 */
+	protected <T> CompletableFuture<T> load(final AssetKey<?> key, final Callable<T> task) {
+		return singleFlight(key, new Callable<CompletableFuture<T>>() {
+			public CompletableFuture<T> call() throws Exception {
+				return submit(new Callable<T>() {
+					public T call() throws Exception {
+						long t = Trace.begin();
+						try {
+							return task.call();
+						} finally {
+							Trace.end(key.getName(), "load", t);
+						}
+					}
+				});
+			}
+		});
+	}
+	
+	// starts the load, or joins the one in flight for the key.
+	@SuppressWarnings("unchecked")
+	private <T> CompletableFuture<T> singleFlight(final AssetKey<?> key, Callable<CompletableFuture<T>> start) {
+		final CompletableFuture<T> f = new CompletableFuture<T>();
+		CompletableFuture<T> existing = (CompletableFuture<T>)inFlight.putIfAbsent(key, f);
+		if (existing != null) {
+			coalesced.incrementAndGet();
+			return existing.thenApply(new Function<T, T>() {
+				public T apply(T asset) {
+					return (T)key.createClonedInstance(asset);
+				}
+			});
+		}
+		final long requested = Trace.begin();
+		final long requester = Trace.ENABLED ? Thread.currentThread().getId() : 0;
+		final AssetLoadEvent event = new AssetLoadEvent();
+		final LoadPriority priority = currentPriority.get();
+		event.begin();
+		final CompletableFuture<T> inner;
+		try {
+			inner = start.call();
+		} catch (Exception e) {
+			inFlight.remove(key, f);
+			f.completeExceptionally(e);
+			return f;
+		}
+		inner.whenComplete(new BiConsumer<T, Throwable>() {
+			public void accept(T asset, Throwable failure) {
+				// later requests go to the asset manager's cache.
+				inFlight.remove(key, f);
+				Trace.endAsync(key.getName(), "asset", requested, requester);
+				event.end();
+				if (event.shouldCommit()) {
+					event.key = key.getName();
+					event.type = key.getClass().getSimpleName();
+					event.priority = priority == null ? Float.NaN : priority.get();
+					event.cancelled = f.isCancelled() || failure instanceof CancellationException
+						|| failure instanceof CompletionException && failure.getCause() instanceof CancellationException;
+					event.failed = failure != null && !event.cancelled;
+					event.commit();
+				}
+				if (failure != null) {
+					f.completeExceptionally(failure);
+				}
+				else {
+					f.complete(asset);
+				}
+			}
+		});
+		f.whenComplete(new BiConsumer<T, Throwable>() {
+			public void accept(T asset, Throwable failure) {
+				if (f.isCancelled()) {
+					inFlight.remove(key, f);
+					inner.cancel(false);
+				}
+			}
+		});
+		return f;
+	}
+	
+	/**
+	 * Returns the number of requests that were coalesced onto a load already in flight.
+	 * @return
+	 */
+	public int getCoalescedCount() {
+		return coalesced.get();
+	}
+	
+	/**
+	 * Returns the number of assets currently loading.
+	 * @return
+	 */
+	public int getInFlightCount() {
+		return inFlight.size();
+	}
+	
 	//@Override
 	/**
 	 * Locate an asset.
 	 * @see com.jme3.asset.AssetManager#locateAsset
 	 */
-	public Future<AssetInfo> locateAsset(final AssetKey<?> key) {
+	public CompletableFuture<AssetInfo> locateAsset(final AssetKey<?> key) {
 		return locateAsset(key, null);
 	}
 	
@@ -227,8 +645,8 @@ public class FutureAssetLoaderState extends AbstractAppState {
 	 * @return
 	 * @see com.jme3.asset.AssetManager#locateAsset
 	 */
-	public Future<AssetInfo> locateAsset(final AssetKey<?> key, Callback<AssetInfo> cb) {
-		final Future<AssetInfo> f = executor.submit(new Callable<AssetInfo>() {
+	public CompletableFuture<AssetInfo> locateAsset(final AssetKey<?> key, Callback<AssetInfo> cb) {
+		final CompletableFuture<AssetInfo> f = submit(new Callable<AssetInfo>() {
 			public AssetInfo call() throws Exception {
 				return am.locateAsset(key);
 			}
@@ -242,7 +660,7 @@ public class FutureAssetLoaderState extends AbstractAppState {
 	 * Load an asset.
 	 * @see com.jme3.asset.AssetManager#loadAsset(AssetKey)
 	 */
-	public <T> Future<T> loadAsset(final AssetKey<T> key) {
+	public <T> CompletableFuture<T> loadAsset(final AssetKey<T> key) {
 		return loadAsset(key, null);
 	}
 	
@@ -253,8 +671,8 @@ public class FutureAssetLoaderState extends AbstractAppState {
 	 * @return
 	 * @see com.jme3.asset.AssetManager#loadAsset(AssetKey)
 	 */
-	public <T> Future<T> loadAsset(final AssetKey<T> key, Callback<T> cb) {
-		final Future<T> f = executor.submit(new Callable<T>() {
+	public <T> CompletableFuture<T> loadAsset(final AssetKey<T> key, Callback<T> cb) {
+		final CompletableFuture<T> f = load(key, new Callable<T>() {
 			public T call() throws Exception {
 				return am.loadAsset(key);
 			}
@@ -267,7 +685,7 @@ public class FutureAssetLoaderState extends AbstractAppState {
 	/**
 	 * @see com.jme3.asset.AssetManager#loadAsset(String)
 	 */
-	public Future<Object> loadAsset(final String name) {
+	public CompletableFuture<Object> loadAsset(final String name) {
 		return loadAsset(name, null);
 	}
 	
@@ -278,14 +696,8 @@ public class FutureAssetLoaderState extends AbstractAppState {
 	 * @return
 	 * @see com.jme3.asset.AssetManager#loadAsset(String)
 	 */
-	public Future<Object> loadAsset(final String name, Callback<Object> cb) {
-		final Future<Object> f = executor.submit(new Callable<Object>() {
-			public Object call() throws Exception {
-				return am.loadAsset(name);
-			}
-		});
-		queue(f, cb);
-		return f;
+	public CompletableFuture<Object> loadAsset(final String name, Callback<Object> cb) {
+		return loadAsset(new AssetKey<Object>(name), cb);
 	}
 
 	//@Override
@@ -293,10 +705,9 @@ public class FutureAssetLoaderState extends AbstractAppState {
 	 * Load a texture.
 	 * @see com.jme3.asset.AssetManager#loadTexture(TextureKey)
 	 */
-	public Future<Texture> loadTexture(final TextureKey key) {
+	public CompletableFuture<Texture> loadTexture(final TextureKey key) {
 		return loadTexture(key, null);
 	}
-
 	/**
 	 * Load a texture.
 	 * @param key
@@ -304,13 +715,173 @@ public class FutureAssetLoaderState extends AbstractAppState {
 	 * @return A {@link Future} that can be used to determine if the asset has finished loading.
 	 * @see com.jme3.asset.AssetManager#loadTexture(TextureKey)
 	 */
-	public Future<Texture> loadTexture(final TextureKey key, Callback<Texture> cb) {
-		final Future<Texture> f = executor.submit(new Callable<Texture>() {
-			public Texture call() throws Exception {
-				return am.loadTexture(key);
+	public CompletableFuture<Texture> loadTexture(final TextureKey key, Callback<Texture> cb) {
+		final CompletableFuture<Texture> f;
+		if (pipeline != null && pipeline.isSupported(key)) {
+			final LoadPriority priority = currentPriority.get();
+			final int maxWidth = placeholderWidth(key);
+			f = singleFlight(key, new Callable<CompletableFuture<Texture>>() {
+				public CompletableFuture<Texture> call() throws Exception {
+					return loadTextureInStages(key, priority, new BiFunction<TextureKey, TexturePipeline.Data, Texture>() {
+						public Texture apply(TextureKey key, TexturePipeline.Data data) {
+							try {
+								Texture texture = pipeline.decode(key, data, maxWidth);
+								if (maxWidth != Integer.MAX_VALUE) {
+									placeholders.add(texture);
+								}
+								return texture;
+							} catch (IOException e) {
+								throw new CompletionException(e);
+							}
+						}
+					});
+				}
+			});
+		}
+		else {
+			f = load(key, new Callable<Texture>() {
+				public Texture call() throws Exception {
+					return am.loadTexture(key);
+				}
+			});
+		}
+		queue(f, cb);
+		return f;
+	}
+	
+	/**
+	 * Loads the largest mip map level of a streamable texture that is no wider than <code>maxWidth</code>,
+	 * and the levels below it, with the calling thread's current priority. The image isn't cached;
+	 * it's meant to replace the image of a texture that was loaded at a lower resolution.
+	 * @param key
+	 * @param maxWidth
+	 * @param cb The callback to automatically execute in the render thread when the image is loaded.
+	 * @return
+	 * @see TexturePipeline#isStreamable(TextureKey)
+	 * @see #setPlaceholderSize(int)
+	 */
+	public CompletableFuture<Image> loadTextureLevels(final TextureKey key, final int maxWidth, Callback<Image> cb) {
+		final CompletableFuture<Image> f;
+		if (pipeline != null && pipeline.isStreamable(key)) {
+			f = loadTextureInStages(key, currentPriority.get(), new BiFunction<TextureKey, TexturePipeline.Data, Image>() {
+				public Image apply(TextureKey key, TexturePipeline.Data data) {
+					try {
+						return pipeline.decodeImage(key, data, maxWidth);
+					} catch (IOException e) {
+						throw new CompletionException(e);
+					}
+				}
+			});
+		}
+		else {
+			f = new CompletableFuture<Image>();
+			f.completeExceptionally(new IllegalArgumentException("Not streamable: " + key));
+		}
+		queue(f, cb);
+		return f;
+	}
+	
+	// the width the texture is loaded at by the calling thread.
+	private int placeholderWidth(TextureKey key) {
+		if (placeholderSize > 0 && isLoadingPlaceholders() && pipeline != null && pipeline.isStreamable(key)) {
+			return placeholderSize;
+		}
+		return Integer.MAX_VALUE;
+	}
+	
+	/**
+	 * Returns the width that streamable textures are loaded at first.
+	 * @return The width or <code>0</code> if they're loaded at full resolution.
+	 */
+	public int getPlaceholderSize() {
+		return placeholderSize;
+	}
+	
+	/**
+	 * Sets the width that streamable textures are loaded at first, so materials come up quickly.
+	 * Their higher resolutions can be loaded later with {@link #loadTextureLevels(TextureKey, int, Callback)}.
+	 * Only loads made while {@link #setLoadingPlaceholders(boolean) loading placeholders} are
+	 * affected. Placeholders aren't kept in the asset manager's cache, so other loads of the same
+	 * texture get it at full resolution.
+	 * @param placeholderSize The width or <code>0</code> to load them at full resolution.
+	 * @see TextureStreamer
+	 */
+	public void setPlaceholderSize(int placeholderSize) {
+		this.placeholderSize = placeholderSize;
+	}
+	
+	/**
+	 * Removes and returns the next texture that was loaded at the placeholder size.
+	 * @return The texture or <code>null</code> if there are none.
+	 */
+	public Texture pollPlaceholder() {
+		return placeholders.poll();
+	}
+	
+	/*
+	 * Reads the texture on an I/O thread and decodes it on the loader pool. The data is released
+	 * exactly once, whether it was decoded, failed to decode, or the load was cancelled in between.
+	 * Without I/O threads, both stages run in one task on the loader pool.
+	 */
+	private <T> CompletableFuture<T> loadTextureInStages(final TextureKey key, final LoadPriority priority, 
+			final BiFunction<TextureKey, TexturePipeline.Data, T> decode) {
+		if (ioExecutor == null) {
+			return submit(new Callable<T>() {
+				public T call() throws Exception {
+					TexturePipeline.Data data = pipeline.read(key);
+					try {
+						return decode.apply(key, data);
+					} finally {
+						pipeline.release(data);
+					}
+				}
+			}, priority);
+		}
+		final CompletableFuture<T> f = new CompletableFuture<T>();
+		CompletableFuture<TexturePipeline.Data> read = CompletableFuture.supplyAsync(new Supplier<TexturePipeline.Data>() {
+			public TexturePipeline.Data get() {
+				try {
+					return pipeline.read(key);
+				} catch (Exception e) {
+					throw new CompletionException(e);
+				}
+			}
+		}, ioExecutor);
+		read.whenComplete(new BiConsumer<TexturePipeline.Data, Throwable>() {
+			public void accept(final TexturePipeline.Data data, Throwable failure) {
+				if (failure != null) {
+					f.completeExceptionally(failure);
+					return;
+				}
+				if (f.isDone()) {
+					pipeline.release(data);
+					return;
+				}
+				final CompletableFuture<T> decoded = submit(new Callable<T>() {
+					public T call() throws Exception {
+						return decode.apply(key, data);
+					}
+				}, priority);
+				decoded.whenComplete(new BiConsumer<T, Throwable>() {
+					public void accept(T texture, Throwable failure) {
+						pipeline.release(data);
+						if (failure != null) {
+							f.completeExceptionally(failure);
+						}
+						else {
+							f.complete(texture);
+						}
+					}
+				});
+				f.whenComplete(new BiConsumer<T, Throwable>() {
+					public void accept(T texture, Throwable failure) {
+						if (f.isCancelled()) {
+							decoded.cancel(false);
+						}
+					}
+				});
 			}
 		});
-		queue(f, cb);
 		return f;
 	}
 	
@@ -318,7 +889,7 @@ public class FutureAssetLoaderState extends AbstractAppState {
 	/**
 	 * @see com.jme3.asset.AssetManager#loadTexture(String)
 	 */
-	public Future<Texture> loadTexture(final String name) {
+	public CompletableFuture<Texture> loadTexture(final String name) {
 		return loadTexture(name, null);
 	}
 	
@@ -329,14 +900,19 @@ public class FutureAssetLoaderState extends AbstractAppState {
 	 * @return A {@link Future} that can be used to determine if the asset has finished loading.
 	 * @see com.jme3.asset.AssetManager#loadTexture(String)
 	 */
-	public Future<Texture> loadTexture(final String name, Callback<Texture> cb) {
-		final Future<Texture> f = executor.submit(new Callable<Texture>() {
-			public Texture call() throws Exception {
-				return am.loadTexture(name);
-			}
-		});
-		queue(f, cb);
-		return f;
+	public CompletableFuture<Texture> loadTexture(final String name, Callback<Texture> cb) {
+		return loadTexture(textureKey(name), cb);
+	}
+
+	/**
+	 * Removes a texture loaded by name from the asset manager's cache, so it can be freed once
+	 * nothing else uses it. It's loaded again the next time it's needed.
+	 * @param name
+	 * @return Whether the texture was cached.
+	 * @see com.jme3.asset.AssetManager#deleteFromCache(com.jme3.asset.AssetKey)
+	 */
+	public boolean unloadTexture(String name) {
+		return ((DesktopAssetManager)am).deleteFromCache(textureKey(name));
 	}
 
 	//@Override
@@ -344,7 +920,7 @@ public class FutureAssetLoaderState extends AbstractAppState {
 	 * Load audio.
 	 * @see com.jme3.asset.AssetManager#loadAudio(AudioKey)
 	 */
-	public Future<AudioData> loadAudio(final AudioKey key) {
+	public CompletableFuture<AudioData> loadAudio(final AudioKey key) {
 		return loadAudio(key, null);
 	}
 	
@@ -355,8 +931,8 @@ public class FutureAssetLoaderState extends AbstractAppState {
 	 * @return A {@link Future} that can be used to determine if the asset has finished loading.
 	 * @see com.jme3.asset.AssetManager#loadAudio(AudioKey)
 	 */
-	public Future<AudioData> loadAudio(final AudioKey key, Callback<AudioData> cb) {
-		final Future<AudioData> f = executor.submit(new Callable<AudioData>() {
+	public CompletableFuture<AudioData> loadAudio(final AudioKey key, Callback<AudioData> cb) {
+		final CompletableFuture<AudioData> f = load(key, new Callable<AudioData>() {
 			public AudioData call() throws Exception {
 				return am.loadAudio(key);
 			}
@@ -369,7 +945,7 @@ public class FutureAssetLoaderState extends AbstractAppState {
 	/**
 	 * @see com.jme3.asset.AssetManager#loadAudio(String)
 	 */
-	public Future<AudioData> loadAudio(final String name) {
+	public CompletableFuture<AudioData> loadAudio(final String name) {
 		return loadAudio(name, null);
 	}
 	
@@ -380,14 +956,8 @@ public class FutureAssetLoaderState extends AbstractAppState {
 	 * @return A {@link Future} that can be used to determine if the asset has finished loading.
 	 * @see com.jme3.asset.AssetManager#loadAudio(String)
 	 */
-	public Future<AudioData> loadAudio(final String name, Callback<AudioData> cb) {
-		final Future<AudioData> f = executor.submit(new Callable<AudioData>() {
-			public AudioData call() throws Exception {
-				return am.loadAudio(name);
-			}
-		});
-		queue(f, cb);
-		return f;
+	public CompletableFuture<AudioData> loadAudio(final String name, Callback<AudioData> cb) {
+		return loadAudio(new AudioKey(name, false), cb);
 	}
 
 	//@Override
@@ -395,7 +965,7 @@ public class FutureAssetLoaderState extends AbstractAppState {
 	 * Load a model.
 	 * @see com.jme3.asset.AssetManager#loadModel(ModelKey)
 	 */
-	public Future<Spatial> loadModel(final ModelKey key) {
+	public CompletableFuture<Spatial> loadModel(final ModelKey key) {
 		return loadModel(key, null);
 	}
 	
@@ -406,8 +976,8 @@ public class FutureAssetLoaderState extends AbstractAppState {
 	 * @return A {@link Future} that can be used to determine if the asset has finished loading.
 	 * @see com.jme3.asset.AssetManager#loadModel(ModelKey)
 	 */
-	public Future<Spatial> loadModel(final ModelKey key, Callback<Spatial> cb) {
-		final Future<Spatial> f = executor.submit(new Callable<Spatial>() {
+	public CompletableFuture<Spatial> loadModel(final ModelKey key, Callback<Spatial> cb) {
+		final CompletableFuture<Spatial> f = load(key, new Callable<Spatial>() {
 			public Spatial call() throws Exception {
 				return am.loadModel(key);
 			}
@@ -421,7 +991,7 @@ public class FutureAssetLoaderState extends AbstractAppState {
 	 * Load a model.
 	 * @see com.jme3.asset.AssetManager#loadModel(String)
 	 */
-	public Future<Spatial> loadModel(final String name) {
+	public CompletableFuture<Spatial> loadModel(final String name) {
 		return loadModel(name, null);
 	}
 	
@@ -432,14 +1002,8 @@ public class FutureAssetLoaderState extends AbstractAppState {
 	 * @return A {@link Future} that can be used to determine if the asset has finished loading.
 	 * @see com.jme3.asset.AssetManager#loadModel(String)
 	 */
-	public Future<Spatial> loadModel(final String name, Callback<Spatial> cb) {
-		final Future<Spatial> f = executor.submit(new Callable<Spatial>() {
-			public Spatial call() throws Exception {
-				return am.loadModel(name);
-			}
-		});
-		queue(f, cb);
-		return f;
+	public CompletableFuture<Spatial> loadModel(final String name, Callback<Spatial> cb) {
+		return loadModel(new ModelKey(name), cb);
 	}
 
 	//@Override
@@ -447,33 +1011,167 @@ public class FutureAssetLoaderState extends AbstractAppState {
 	 * Load a material.
 	 * @see com.jme3.asset.AssetManager#loadMaterial(String)
 	 */
-	public Future<Material> loadMaterial(final String name) {
+	public CompletableFuture<Material> loadMaterial(final String name) {
 		return loadMaterial(name, null);
 	}
 	
 	/**
-	 * Load a material.
+	 * Load a material. Unless disabled with {@link #setLoadingDependencies(boolean)}, the material
+	 * definition and textures it references are loaded in parallel first, and shared with any other
+	 * material that references them.
 	 * @param name
 	 * @param cb The callback to automatically execute in the render thread when the asset is loaded.
 	 * @return A {@link Future} that can be used to determine if the asset has finished loading.
 	 * @see com.jme3.asset.AssetManager#loadMaterial(String)
+	 * @see MaterialDependencies
 	 */
-	public Future<Material> loadMaterial(final String name, Callback<Material> cb) {
-		final Future<Material> f = executor.submit(new Callable<Material>() {
+	public CompletableFuture<Material> loadMaterial(final String name, Callback<Material> cb) {
+		// the dependencies and the build run later, on loader threads, but with the caller's priority.
+		final LoadPriority priority = currentPriority.get();
+		final boolean placeholders = isLoadingPlaceholders();
+		final Callable<Material> build = new Callable<Material>() {
 			public Material call() throws Exception {
-				return am.loadMaterial(name);
+				long t = Trace.begin();
+				try {
+					return am.loadMaterial(name);
+				} finally {
+					Trace.end(name, "build material", t);
+				}
+			}
+		};
+		final CompletableFuture<Material> f = singleFlight(new MaterialKey(name), new Callable<CompletableFuture<Material>>() {
+			public CompletableFuture<Material> call() throws Exception {
+				if (!loadingDependencies) {
+					return submit(build, priority);
+				}
+				return loadDependencies(name, priority, placeholders).thenCompose(new Function<Dependencies, CompletableFuture<Material>>() {
+					public CompletableFuture<Material> apply(final Dependencies dependencies) {
+						return submit(new Callable<Material>() {
+							public Material call() throws Exception {
+								// placeholders aren't cached, so they're only there for the material loader to find while it builds this.
+								dependencies.cachePlaceholders((DesktopAssetManager)am);
+								try {
+									return build.call();
+								} finally {
+									dependencies.release((DesktopAssetManager)am);
+								}
+							}
+						}, priority);
+					}
+				});
 			}
 		});
 		queue(f, cb);
 		return f;
 	}
+	
+	/*
+	 * A material's loaded dependencies, kept reachable until the material is built.
+	 */
+	private static class Dependencies {
+		private final Object[] assets;
+		// the keys of the textures loaded as placeholders, by index
+		private final TextureKey[] placeholders;
+		private Dependencies(int size) {
+			assets = new Object[size];
+			placeholders = new TextureKey[size];
+		}
+		private void cachePlaceholders(DesktopAssetManager am) {
+			for (int i = 0; i < assets.length; i++) {
+				if (placeholders[i] != null && assets[i] != null) {
+					// a copy sharing the image, since the cache takes the key of what it holds
+					am.addToCache(placeholders[i], placeholders[i].createClonedInstance(assets[i]));
+				}
+			}
+		}
+		private void release(DesktopAssetManager am) {
+			for (int i = 0; i < assets.length; i++) {
+				if (placeholders[i] != null && assets[i] != null) {
+					am.deleteFromCache(placeholders[i]);
+				}
+			}
+			Arrays.fill(assets, null);
+		}
+	}
+	
+	/*
+	 * Reads the material and loads its dependencies. Always completes normally: if anything fails
+	 * the material loader will find out again and report it.
+	 */
+	private CompletableFuture<Dependencies> loadDependencies(final String name, final LoadPriority priority, final boolean placeholders) {
+		CompletableFuture<List<AssetKey<?>>> keys = submit(new Callable<List<AssetKey<?>>>() {
+			public List<AssetKey<?>> call() throws Exception {
+				long t = Trace.begin();
+				try {
+					return MaterialDependencies.read(am, name);
+				} finally {
+					Trace.end(name, "dependencies", t);
+				}
+			}
+		}, priority);
+		return keys.handle(new BiFunction<List<AssetKey<?>>, Throwable, CompletableFuture<Dependencies>>() {
+			public CompletableFuture<Dependencies> apply(List<AssetKey<?>> keys, Throwable failure) {
+				if (failure != null) {
+					log.log(Level.FINE, "Unable to read dependencies of " + name, failure);
+					return CompletableFuture.completedFuture(new Dependencies(0));
+				}
+				final Dependencies dependencies = new Dependencies(keys.size());
+				CompletableFuture<?>[] loads = new CompletableFuture<?>[keys.size()];
+				LoadPriority previousPriority = setCurrentPriority(priority);
+				boolean previousPlaceholders = setLoadingPlaceholders(placeholders);
+				for (int i = 0; i < loads.length; i++) {
+					final int index = i;
+					AssetKey<?> key = keys.get(i);
+					CompletableFuture<?> load;
+					if (key instanceof TextureKey) {
+						if (placeholderWidth((TextureKey)key) != Integer.MAX_VALUE) {
+							dependencies.placeholders[i] = (TextureKey)key;
+						}
+						load = loadTexture((TextureKey)key);
+					}
+					else {
+						load = loadAsset(key);
+					}
+					loads[i] = load.handle(new BiFunction<Object, Throwable, Object>() {
+						public Object apply(Object asset, Throwable failure) {
+							dependencies.assets[index] = asset;
+							return null;
+						}
+					});
+				}
+				setLoadingPlaceholders(previousPlaceholders);
+				setCurrentPriority(previousPriority);
+				return CompletableFuture.allOf(loads).thenApply(new Function<Void, Dependencies>() {
+					public Dependencies apply(Void v) {
+						return dependencies;
+					}
+				});
+			}
+		}).thenCompose(Function.<CompletableFuture<Dependencies>>identity());
+	}
+	
+	/**
+	 * Returns whether materials load their dependencies in parallel before being built.
+	 * @return Default: <b>true</b>.
+	 */
+	public boolean isLoadingDependencies() {
+		return loadingDependencies;
+	}
+	
+	/**
+	 * Sets whether materials load their dependencies in parallel before being built.
+	 * @param loadingDependencies
+	 */
+	public void setLoadingDependencies(boolean loadingDependencies) {
+		this.loadingDependencies = loadingDependencies;
+	}
 
 	//@Override
 	/**
 	 * Load a shader.
 	 * @see com.jme3.asset.AssetManager#loadShader(ShaderKey)
 	 */
-	public Future<Shader> loadShader(final ShaderKey key) {
+	public CompletableFuture<Shader> loadShader(final ShaderKey key) {
 		return loadShader(key, null);
 	}
 	
@@ -484,8 +1182,8 @@ public class FutureAssetLoaderState extends AbstractAppState {
 	 * @return A {@link Future} that can be used to determine if the asset has finished loading.
 	 * @see com.jme3.asset.AssetManager#loadShader(ShaderKey)
 	 */
-	public Future<Shader> loadShader(final ShaderKey key, Callback<Shader> cb) {
-		final Future<Shader> f = executor.submit(new Callable<Shader>() {
+	public CompletableFuture<Shader> loadShader(final ShaderKey key, Callback<Shader> cb) {
+		final CompletableFuture<Shader> f = load(key, new Callable<Shader>() {
 			public Shader call() throws Exception {
 				return am.loadShader(key);
 			}
@@ -499,7 +1197,7 @@ public class FutureAssetLoaderState extends AbstractAppState {
 	 * Load a bitmap font.
 	 * @see com.jme3.asset.AssetManager#loadFont(String)
 	 */
-	public Future<BitmapFont> loadFont(final String name) {
+	public CompletableFuture<BitmapFont> loadFont(final String name) {
 		return loadFont(name, null);
 	}
 	
@@ -510,8 +1208,8 @@ public class FutureAssetLoaderState extends AbstractAppState {
 	 * @return
 	 * @see com.jme3.asset.AssetManager#loadFont(String)
 	 */
-	public Future<BitmapFont> loadFont(final String name, Callback<BitmapFont> cb) {
-		final Future<BitmapFont> f = executor.submit(new Callable<BitmapFont>() {
+	public CompletableFuture<BitmapFont> loadFont(final String name, Callback<BitmapFont> cb) {
+		final CompletableFuture<BitmapFont> f = load(new AssetKey<BitmapFont>(name), new Callable<BitmapFont>() {
 			public BitmapFont call() throws Exception {
 				return am.loadFont(name);
 			}
@@ -520,6 +1218,32 @@ public class FutureAssetLoaderState extends AbstractAppState {
 		return f;
 	}
 
+	private static ExecutorService newIoExecutor() {
+		try {
+			// Executors.newVirtualThreadPerTaskExecutor() exists from Java 21 on.
+			Method m = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService)m.invoke(null);
+		} catch (Exception e) {
+			log.log(Level.FINE, "Virtual threads are not available; using platform threads for I/O.");
+		}
+		return Executors.newCachedThreadPool(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "asset-io");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	// the same key the asset manager uses for loadTexture(String)
+	private static TextureKey textureKey(String name) {
+		TextureKey key = new TextureKey(name, true);
+		key.setGenerateMips(true);
+		key.setAsCube(false);
+		return key;
+	}
+
 	/* (non-Javadoc)
 	 * @see com.jme3.app.state.AbstractAppState#stateAttached(com.jme3.app.state.AppStateManager)
 	 */
@@ -0,0 +1,198 @@
+package net.cofront.jme3;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.GZIPOutputStream;
+
+import com.jme3.input.InputManager;
+import com.jme3.input.controls.ActionListener;
+import com.jme3.input.controls.AnalogListener;
+import com.jme3.math.Vector2f;
+import com.jme3.system.Timer;
+
+/**
+ * Records a session so {@link InputReplayer} can play it back exactly: the start date, how long
+ * each frame took, and the actions and analog input of the mappings it's asked to record. It
+ * stands in for the app's timer, so it knows where each frame starts:
+ * <pre>
+ * recorder = new InputRecorder(timer, inputManager, new FileOutputStream(file), date.getTimeInMillis());
+ * recorder.record("toggle-orbits", ...);
+ * timer = recorder;
+ * </pre>
+ * The file is gzipped records of a one byte type and its fields. Render thread only.
+ */
+public class InputRecorder extends Timer implements ActionListener, AnalogListener {
+
+	private final static Logger log = Logger.getLogger(InputRecorder.class.getName());
+
+	final static int MAGIC = 0x53534952;
+	final static int VERSION = 1;
+	// followed by the frame's tpf
+	final static int FRAME = 0;
+	// followed by a short id and the mapping's name; sent before its first use
+	final static int NAME = 1;
+	// followed by the mapping's id and whether it's pressed
+	final static int ACTION = 2;
+	// followed by the mapping's id and the value
+	final static int ANALOG = 3;
+	// followed by the cursor's x and y; sent when it moved before an action or analog input
+	final static int CURSOR = 4;
+
+	private final Timer timer;
+	private final InputManager inputManager;
+	private final HashMap<String, Integer> ids = new HashMap<String, Integer>();
+	private final Vector2f cursor = new Vector2f();
+	private DataOutputStream out;
+
+	/**
+	 * @param timer The app's timer, which keeps the time.
+	 * @param inputManager
+	 * @param out Closed by {@link #close()}.
+	 * @param startMillis The date the session starts at.
+	 * @throws IOException
+	 */
+	public InputRecorder(Timer timer, InputManager inputManager, OutputStream out, long startMillis) throws IOException {
+		this.timer = timer;
+		this.inputManager = inputManager;
+		this.out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(out)));
+		this.out.writeInt(MAGIC);
+		this.out.writeByte(VERSION);
+		this.out.writeLong(startMillis);
+		cursor.set(Float.NaN, Float.NaN);
+	}
+
+	/**
+	 * Starts recording the mappings.
+	 * @param mappings
+	 */
+	public void record(String... mappings) {
+		inputManager.addListener(this, mappings);
+	}
+
+	/**
+	 * Stops recording and closes the file.
+	 */
+	public void close() {
+		inputManager.removeListener(this);
+		if (out != null) {
+			try {
+				out.close();
+			} catch (IOException e) {
+				log.log(Level.WARNING, "Couldn't close the recording.", e);
+			}
+			out = null;
+		}
+	}
+
+	// writing is buffered, so this rarely fails. If it does, the recording ends there.
+	private void failed(IOException e) {
+		log.log(Level.WARNING, "Couldn't write the recording, it ends here.", e);
+		try {
+			out.close();
+		} catch (IOException ignored) {
+		}
+		out = null;
+	}
+
+	private int id(String name) throws IOException {
+		Integer id = ids.get(name);
+		if (id == null) {
+			id = ids.size();
+			ids.put(name, id);
+			out.writeByte(NAME);
+			out.writeShort(id);
+			out.writeUTF(name);
+		}
+		return id;
+	}
+
+	private void cursor() throws IOException {
+		Vector2f c = inputManager.getCursorPosition();
+		if (!c.equals(cursor)) {
+			cursor.set(c);
+			out.writeByte(CURSOR);
+			out.writeFloat(c.x);
+			out.writeFloat(c.y);
+		}
+	}
+
+	@Override
+	public void onAction(String name, boolean isPressed, float tpf) {
+		if (out == null) {
+			return;
+		}
+		try {
+			int id = id(name);
+			cursor();
+			out.writeByte(ACTION);
+			out.writeShort(id);
+			out.writeBoolean(isPressed);
+		} catch (IOException e) {
+			failed(e);
+		}
+	}
+
+	@Override
+	public void onAnalog(String name, float value, float tpf) {
+		if (out == null) {
+			return;
+		}
+		try {
+			int id = id(name);
+			cursor();
+			out.writeByte(ANALOG);
+			out.writeShort(id);
+			out.writeFloat(value);
+		} catch (IOException e) {
+			failed(e);
+		}
+	}
+
+	/**
+	 * Starts a frame.
+	 * @see com.jme3.system.Timer#update()
+	 */
+	@Override
+	public void update() {
+		timer.update();
+		if (out == null) {
+			return;
+		}
+		try {
+			out.writeByte(FRAME);
+			out.writeFloat(timer.getTimePerFrame());
+		} catch (IOException e) {
+			failed(e);
+		}
+	}
+
+	@Override
+	public long getTime() {
+		return timer.getTime();
+	}
+
+	@Override
+	public long getResolution() {
+		return timer.getResolution();
+	}
+
+	@Override
+	public float getFrameRate() {
+		return timer.getFrameRate();
+	}
+
+	@Override
+	public float getTimePerFrame() {
+		return timer.getTimePerFrame();
+	}
+
+	@Override
+	public void reset() {
+		timer.reset();
+	}
+}
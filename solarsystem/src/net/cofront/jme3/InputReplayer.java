@@ -0,0 +1,236 @@
+package net.cofront.jme3;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.zip.GZIPInputStream;
+
+import com.jme3.input.controls.ActionListener;
+import com.jme3.input.controls.AnalogListener;
+import com.jme3.input.controls.InputListener;
+import com.jme3.math.Vector2f;
+import com.jme3.system.Timer;
+
+/**
+ * Plays back a session recorded by {@link InputRecorder}. It stands in for the app's timer, so
+ * every frame takes the time it took when it was recorded, and at the start of each frame it sends
+ * the frame's input straight to the listeners, in the order they got it:
+ * <pre>
+ * replayer = InputReplayer.read(file);
+ * date.setTimeInMillis(replayer.getStartMillis());
+ * inputManager.removeListener(userListener);
+ * replayer.replay(userListener, "toggle-orbits", ...);
+ * timer = replayer;
+ * </pre>
+ * Listeners should be removed from the input manager first, so the keyboard and mouse don't add
+ * to the recorded input. The whole recording is read up front, so frames don't wait on the disk.
+ * After the last frame, frames take as long as the last one and get no input. Render thread only.
+ */
+public class InputReplayer extends Timer {
+
+	private final static long RESOLUTION = 1000000000L;
+
+	private final DataInputStream in;
+	private final long startMillis;
+	private final HashMap<String, InputListener> listeners = new HashMap<String, InputListener>();
+	// the names and listeners of the recording's mapping ids
+	private final ArrayList<String> names = new ArrayList<String>();
+	private final ArrayList<InputListener> targets = new ArrayList<InputListener>();
+	private final Vector2f cursor = new Vector2f();
+	private float tpf = 1 / 60f;
+	private float next = Float.NaN;
+	private long time;
+	private long frames;
+	private boolean done;
+
+	/**
+	 * @param recording The decompressed recording.
+	 * @throws IOException If it isn't a recording.
+	 */
+	public InputReplayer(byte[] recording) throws IOException {
+		in = new DataInputStream(new ByteArrayInputStream(recording));
+		if (in.readInt() != InputRecorder.MAGIC) {
+			throw new IOException("Not an input recording");
+		}
+		int version = in.readUnsignedByte();
+		if (version != InputRecorder.VERSION) {
+			throw new IOException("Unsupported input recording version: " + version);
+		}
+		startMillis = in.readLong();
+		// skip to the first frame
+		advance();
+	}
+
+	/**
+	 * Reads a recording written by {@link InputRecorder}.
+	 * @param file
+	 * @return
+	 * @throws IOException
+	 */
+	public static InputReplayer read(File file) throws IOException {
+		InputStream in = new GZIPInputStream(new FileInputStream(file));
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			byte[] buffer = new byte[8192];
+			int n;
+			try {
+				while ((n = in.read(buffer)) != -1) {
+					bytes.write(buffer, 0, n);
+				}
+			} catch (EOFException e) {
+				// cut short, e.g. by a crash; play what's there
+			}
+			return new InputReplayer(bytes.toByteArray());
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Returns the date the session started at.
+	 * @return
+	 */
+	public long getStartMillis() {
+		return startMillis;
+	}
+
+	/**
+	 * Sends the recorded input of the mappings to a listener. Input of mappings without a
+	 * listener is skipped.
+	 * @param listener An {@link ActionListener} and/or {@link AnalogListener}.
+	 * @param mappings
+	 */
+	public void replay(InputListener listener, String... mappings) {
+		for (String m : mappings) {
+			listeners.put(m, listener);
+		}
+		for (int id = 0; id < names.size(); id++) {
+			targets.set(id, listeners.get(names.get(id)));
+		}
+	}
+
+	/**
+	 * Returns where the cursor was at the last input replayed.
+	 * @return
+	 */
+	public Vector2f getCursorPosition() {
+		return cursor;
+	}
+
+	/**
+	 * Returns whether every recorded frame has been played.
+	 * @return
+	 */
+	public boolean isDone() {
+		return done;
+	}
+
+	/**
+	 * Returns the number of frames played.
+	 * @return
+	 */
+	public long getFrames() {
+		return frames;
+	}
+
+	/**
+	 * Starts the next recorded frame and sends its input.
+	 * @see com.jme3.system.Timer#update()
+	 */
+	@Override
+	public void update() {
+		if (Float.isNaN(next)) {
+			done = true;
+		}
+		else {
+			tpf = next;
+			frames++;
+			advance();
+		}
+		time += (long)(tpf * RESOLUTION);
+	}
+
+	// sends the input up to the next frame, and reads its tpf. NaN at the end of the recording.
+	private void advance() {
+		next = Float.NaN;
+		try {
+			while (true) {
+				int type = in.read();
+				switch (type) {
+				case -1:
+					return;
+				case InputRecorder.FRAME:
+					next = in.readFloat();
+					return;
+				case InputRecorder.NAME:
+					int id = in.readUnsignedShort();
+					String name = in.readUTF();
+					while (names.size() <= id) {
+						names.add(null);
+						targets.add(null);
+					}
+					names.set(id, name);
+					targets.set(id, listeners.get(name));
+					break;
+				case InputRecorder.ACTION:
+					id = in.readUnsignedShort();
+					boolean pressed = in.readBoolean();
+					InputListener l = targets.get(id);
+					if (l instanceof ActionListener) {
+						((ActionListener)l).onAction(names.get(id), pressed, tpf);
+					}
+					break;
+				case InputRecorder.ANALOG:
+					id = in.readUnsignedShort();
+					float value = in.readFloat();
+					l = targets.get(id);
+					if (l instanceof AnalogListener) {
+						((AnalogListener)l).onAnalog(names.get(id), value, tpf);
+					}
+					break;
+				case InputRecorder.CURSOR:
+					cursor.set(in.readFloat(), in.readFloat());
+					break;
+				default:
+					throw new IOException("Unknown record type: " + type);
+				}
+			}
+		} catch (EOFException e) {
+			// the last record was cut short
+		} catch (IOException e) {
+			throw new IllegalStateException("Corrupt input recording", e);
+		}
+	}
+
+	@Override
+	public long getTime() {
+		return time;
+	}
+
+	@Override
+	public long getResolution() {
+		return RESOLUTION;
+	}
+
+	@Override
+	public float getFrameRate() {
+		return 1 / tpf;
+	}
+
+	@Override
+	public float getTimePerFrame() {
+		return tpf;
+	}
+
+	@Override
+	public void reset() {
+		time = 0;
+	}
+}
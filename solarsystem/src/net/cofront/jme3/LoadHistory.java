@@ -0,0 +1,99 @@
+package net.cofront.jme3;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Remembers how long each named load took, so the next run can weight its progress by
+ * the time each load is expected to take rather than counting them all the same.
+ * Names never seen weigh the average of the known ones. Thread safe.
+ */
+public class LoadHistory {
+
+	private final ConcurrentHashMap<String, Long> millis = new ConcurrentHashMap<String, Long>();
+	private final AtomicLong sum = new AtomicLong();
+
+	/**
+	 * Reads a history written by {@link #write(File)}.
+	 * @param file
+	 * @return The history, empty if the file doesn't exist.
+	 * @throws IOException If the file can't be read.
+	 */
+	public static LoadHistory read(File file) throws IOException {
+		LoadHistory history = new LoadHistory();
+		if (!file.isFile()) {
+			return history;
+		}
+		Properties props = new Properties();
+		InputStream in = new FileInputStream(file);
+		try {
+			props.load(in);
+		} finally {
+			in.close();
+		}
+		for (String name : props.stringPropertyNames()) {
+			try {
+				history.record(name, Long.parseLong(props.getProperty(name)));
+			} catch (NumberFormatException e) {
+				// skip it, it'll be recorded again
+			}
+		}
+		return history;
+	}
+
+	/**
+	 * Writes the history.
+	 * @param file
+	 * @throws IOException
+	 */
+	public void write(File file) throws IOException {
+		Properties props = new Properties();
+		for (Map.Entry<String, Long> e : millis.entrySet()) {
+			props.setProperty(e.getKey(), e.getValue().toString());
+		}
+		OutputStream out = new FileOutputStream(file);
+		try {
+			props.store(out, "Load times in milliseconds");
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Records how long a load took, replacing what was recorded before.
+	 * @param name
+	 * @param millis
+	 */
+	public void record(String name, long millis) {
+		millis = Math.max(1, millis);
+		Long previous = this.millis.put(name, millis);
+		sum.addAndGet(previous == null ? millis : millis - previous);
+	}
+
+	/**
+	 * Returns how long a load is expected to take.
+	 * @param name
+	 * @return The recorded time, the average if nothing is recorded for the name, or <code>1</code>
+	 * if nothing is recorded at all.
+	 */
+	public long getWeight(String name) {
+		Long m = millis.get(name);
+		if (m != null) {
+			return m;
+		}
+		int n = millis.size();
+		return n == 0 ? 1 : Math.max(1, sum.get() / n);
+	}
+
+	public int size() {
+		return millis.size();
+	}
+}
@@ -0,0 +1,67 @@
+package net.cofront.jme3;
+
+import java.util.concurrent.CopyOnWriteArraySet;
+
+/**
+ * A live priority shared by a group of loads, e.g. everything that belongs to one model.
+ * Changing it tells the {@link FutureAssetLoaderState}s with loads queued under it, which
+ * reorder their queues before a loader thread picks its next task. Higher priorities load first.
+ * <p>
+ * Cancelling the priority cancels the group's loads that haven't started yet.
+ */
+public class LoadPriority {
+
+	private volatile float priority;
+	private volatile boolean cancelled;
+	private final CopyOnWriteArraySet<FutureAssetLoaderState> loaders = new CopyOnWriteArraySet<FutureAssetLoaderState>();
+
+	public LoadPriority() {
+	}
+
+	/**
+	 * @param priority The initial priority.
+	 */
+	public LoadPriority(float priority) {
+		this.priority = priority;
+	}
+
+	public float get() {
+		return priority;
+	}
+
+	/**
+	 * Sets the priority. May be called from any thread.
+	 * @param priority
+	 */
+	public void set(float priority) {
+		if (this.priority != priority) {
+			this.priority = priority;
+			changed();
+		}
+	}
+
+	/**
+	 * Cancels the loads that haven't started yet. Loads submitted afterwards are cancelled too.
+	 */
+	public void cancel() {
+		if (!cancelled) {
+			cancelled = true;
+			changed();
+		}
+	}
+
+	public boolean isCancelled() {
+		return cancelled;
+	}
+
+	// called by a loader queueing a load under this priority
+	void watch(FutureAssetLoaderState loader) {
+		loaders.add(loader);
+	}
+
+	private void changed() {
+		for (FutureAssetLoaderState loader : loaders) {
+			loader.prioritiesChanged();
+		}
+	}
+}
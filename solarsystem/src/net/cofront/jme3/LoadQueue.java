@@ -0,0 +1,132 @@
+package net.cofront.jme3;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Future;
+
+/**
+ * The loads waiting for a loader thread of a {@link FutureAssetLoaderState}: a binary heap with
+ * the highest priority on top and ties going to the load queued first.
+ * <p>
+ * Each load is ordered by its priority as it was when it was queued or last re-keyed, so queueing
+ * and taking a load are logarithmic. When priorities change, {@link #rekey(List)} reads them all
+ * again and re-heapifies in one linear pass, however many of them changed.
+ * <p>
+ * Not thread safe; the loader guards it.
+ */
+class LoadQueue {
+
+	static class Task {
+		final Runnable run;
+		final LoadPriority priority;
+		final Future<?> f;
+		private final long seq;
+		private float key;
+		private Task(Runnable run, LoadPriority priority, Future<?> f, long seq) {
+			this.run = run;
+			this.priority = priority;
+			this.f = f;
+			this.seq = seq;
+			this.key = key(priority);
+		}
+		// a load that was cancelled, or whose priority was, is dropped instead of run
+		boolean isDropped() {
+			return f.isDone() || priority != null && priority.isCancelled();
+		}
+	}
+
+	private Task[] heap = new Task[64];
+	private int size;
+	private long seq;
+
+	int size() {
+		return size;
+	}
+
+	void offer(Runnable run, LoadPriority priority, Future<?> f) {
+		if (size == heap.length) {
+			heap = Arrays.copyOf(heap, size * 2);
+		}
+		heap[size] = new Task(run, priority, f, seq++);
+		siftUp(size++);
+	}
+
+	/**
+	 * Removes the load with the highest priority.
+	 * @return The load or <code>null</code> if there are none.
+	 */
+	Task poll() {
+		if (size == 0) {
+			return null;
+		}
+		Task top = heap[0];
+		heap[0] = heap[--size];
+		heap[size] = null;
+		if (size > 0) {
+			siftDown(0);
+		}
+		return top;
+	}
+
+	/**
+	 * Reads every load's priority again and restores the heap order. Dropped loads are removed.
+	 * @param dropped Receives the loads that were removed.
+	 */
+	void rekey(List<Task> dropped) {
+		int n = 0;
+		for (int i = 0; i < size; i++) {
+			Task t = heap[i];
+			if (t.isDropped()) {
+				dropped.add(t);
+			}
+			else {
+				t.key = key(t.priority);
+				heap[n++] = t;
+			}
+		}
+		Arrays.fill(heap, n, size, null);
+		size = n;
+		for (int i = size / 2 - 1; i >= 0; i--) {
+			siftDown(i);
+		}
+	}
+
+	// loads without a priority go first
+	private static float key(LoadPriority priority) {
+		return priority == null ? Float.POSITIVE_INFINITY : priority.get();
+	}
+
+	private static boolean before(Task a, Task b) {
+		return a.key > b.key || a.key == b.key && a.seq < b.seq;
+	}
+
+	private void siftUp(int i) {
+		Task t = heap[i];
+		while (i > 0) {
+			int parent = (i - 1) >>> 1;
+			if (!before(t, heap[parent])) {
+				break;
+			}
+			heap[i] = heap[parent];
+			i = parent;
+		}
+		heap[i] = t;
+	}
+
+	private void siftDown(int i) {
+		Task t = heap[i];
+		int half = size >>> 1;
+		while (i < half) {
+			int child = 2 * i + 1;
+			if (child + 1 < size && before(heap[child + 1], heap[child])) {
+				child++;
+			}
+			if (!before(heap[child], t)) {
+				break;
+			}
+			heap[i] = heap[child];
+			i = child;
+		}
+		heap[i] = t;
+	}
+}
@@ -0,0 +1,94 @@
+package net.cofront.jme3;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.jme3.asset.AssetInfo;
+import com.jme3.asset.AssetKey;
+import com.jme3.asset.AssetManager;
+import com.jme3.asset.TextureKey;
+import com.jme3.material.MaterialDef;
+
+/**
+ * Lists the assets a <code>.j3m</code> material references: its material definition and
+ * its textures. The keys are built the same way <code>J3MLoader</code> builds them, so once
+ * they're loaded, loading the material itself only hits the asset cache.
+ */
+public final class MaterialDependencies {
+
+	private final static Pattern MATERIAL = Pattern.compile("^\\s*Material\\s+[^:]*:\\s*([^\\s{]+)");
+	private final static Pattern PARAM = Pattern.compile("^\\s*\\w+\\s*:\\s*(.+?)\\s*$");
+	private final static Pattern TEXTURE = Pattern.compile("(?i).+\\.(jpg|jpeg|png|tga|dds|bmp|gif|hdr)");
+
+	private MaterialDependencies() {}
+
+	/**
+	 * Reads a material and lists its dependencies.
+	 * @param am
+	 * @param name The material's asset name.
+	 * @return The keys of the material definition and textures.
+	 * @throws IOException If the material can't be located or read.
+	 */
+	public static List<AssetKey<?>> read(AssetManager am, String name) throws IOException {
+		AssetInfo info = am.locateAsset(new AssetKey<Object>(name));
+		if (info == null) {
+			throw new IOException("Material not found: " + name);
+		}
+		List<AssetKey<?>> keys = new ArrayList<AssetKey<?>>();
+		InputStream in = info.openStream();
+		try {
+			BufferedReader reader = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+			String line;
+			while ((line = reader.readLine()) != null) {
+				int comment = line.indexOf("//");
+				if (comment != -1) {
+					line = line.substring(0, comment);
+				}
+				Matcher m = MATERIAL.matcher(line);
+				if (m.find()) {
+					keys.add(new AssetKey<MaterialDef>(m.group(1)));
+					continue;
+				}
+				m = PARAM.matcher(line);
+				if (m.matches()) {
+					TextureKey key = textureKey(m.group(1));
+					if (key != null) {
+						keys.add(key);
+					}
+				}
+			}
+		} finally {
+			in.close();
+		}
+		return keys;
+	}
+
+	// mirrors J3MLoader: optional "Flip" and "Repeat" prefixes, mip maps on.
+	private static TextureKey textureKey(String value) {
+		boolean flip = false;
+		if (value.startsWith("Flip Repeat ")) {
+			flip = true;
+			value = value.substring(12).trim();
+		}
+		else if (value.startsWith("Flip ")) {
+			flip = true;
+			value = value.substring(5).trim();
+		}
+		else if (value.startsWith("Repeat ")) {
+			value = value.substring(7).trim();
+		}
+		if (!TEXTURE.matcher(value).matches()) {
+			return null;
+		}
+		TextureKey key = new TextureKey(value, flip);
+		key.setAsCube(false);
+		key.setGenerateMips(true);
+		return key;
+	}
+}
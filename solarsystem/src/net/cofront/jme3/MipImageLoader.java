@@ -0,0 +1,174 @@
+package net.cofront.jme3;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.List;
+
+import com.jme3.asset.AssetInfo;
+import com.jme3.asset.AssetLoader;
+import com.jme3.texture.Image;
+import com.jme3.texture.Image.Format;
+import com.jme3.util.BufferUtils;
+
+/**
+ * Loads <code>.mip</code> images: raw pixel data in the format the renderer uploads, with every
+ * mip map level already generated. Nothing is decoded; the image's data is the file's data.
+ * <p>
+ * Layout (big endian):
+ * <pre>
+ * int magic, int version, UTF {@link Format} name, int width, int height, int level count,
+ * int size of each level, padding to 8 bytes, each level's data
+ * </pre>
+ * Written by {@link TextureCacheBuilder}.
+ */
+public class MipImageLoader implements AssetLoader {
+
+	final static int MAGIC = 0x4d495054; // "MIPT"
+	final static int VERSION = 1;
+
+	@Override
+	public Object load(AssetInfo info) throws IOException {
+		if (info instanceof AssetPackLocator.PackedAssetInfo) {
+			return read(((AssetPackLocator.PackedAssetInfo)info).getBuffer());
+		}
+		InputStream in = info.openStream();
+		try {
+			ByteArrayOutputStream out = new ByteArrayOutputStream(64 * 1024);
+			byte[] buffer = new byte[64 * 1024];
+			int n;
+			while ((n = in.read(buffer)) != -1) {
+				out.write(buffer, 0, n);
+			}
+			return read(ByteBuffer.wrap(out.toByteArray()));
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Reads an image with all its levels.
+	 * @param buffer The file's bytes, from its position to its limit. The position isn't changed.
+	 * @return
+	 * @throws IOException If the bytes aren't a <code>.mip</code> image.
+	 * @see #read(ByteBuffer, int)
+	 */
+	public static Image read(ByteBuffer buffer) throws IOException {
+		return read(buffer, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Reads the largest level no wider than <code>maxWidth</code> and the levels below it, or only
+	 * the smallest level if they're all wider. A direct buffer (e.g. a memory mapped file) becomes
+	 * the image's data as is, anything else is copied into a direct buffer once.
+	 * @param buffer The file's bytes, from its position to its limit. The position isn't changed.
+	 * @param maxWidth
+	 * @return
+	 * @throws IOException If the bytes aren't a <code>.mip</code> image.
+	 */
+	public static Image read(ByteBuffer buffer, int maxWidth) throws IOException {
+		ByteBuffer b = buffer.duplicate().order(ByteOrder.BIG_ENDIAN);
+		int start = b.position();
+		if (b.remaining() < 8 || b.getInt() != MAGIC) {
+			throw new IOException("Not a mip image");
+		}
+		int version = b.getInt();
+		if (version != VERSION) {
+			throw new IOException("Unsupported mip image version " + version);
+		}
+		byte[] name = new byte[b.getShort() & 0xffff];
+		b.get(name);
+		Format format;
+		try {
+			format = Format.valueOf(new String(name, "UTF-8"));
+		} catch (IllegalArgumentException e) {
+			throw new IOException("Unknown image format " + new String(name, "UTF-8"));
+		}
+		int width = b.getInt();
+		int height = b.getInt();
+		int[] sizes = new int[b.getInt()];
+		int total = 0;
+		for (int i = 0; i < sizes.length; i++) {
+			sizes[i] = b.getInt();
+			total += sizes[i];
+		}
+		b.position(start + align(b.position() - start));
+		if (b.remaining() < total) {
+			throw new IOException("Truncated mip image");
+		}
+		// each level is half the size of the one above it, rounded down, and at least 1.
+		int base = 0;
+		int skipped = 0;
+		while (base < sizes.length - 1 && Math.max(1, width >> base) > maxWidth) {
+			skipped += sizes[base++];
+		}
+		if (base > 0) {
+			width = Math.max(1, width >> base);
+			height = Math.max(1, height >> base);
+			int[] levels = new int[sizes.length - base];
+			System.arraycopy(sizes, base, levels, 0, levels.length);
+			sizes = levels;
+			total -= skipped;
+		}
+		b.position(b.position() + skipped);
+		b.limit(b.position() + total);
+		ByteBuffer data = b.slice();
+		if (!data.isDirect()) {
+			ByteBuffer copy = BufferUtils.createByteBuffer(total);
+			copy.put(data).flip();
+			data = copy;
+		}
+		data.order(ByteOrder.nativeOrder());
+		return new Image(format, width, height, data, sizes.length > 1 ? sizes : null);
+	}
+
+	/**
+	 * Writes an image with a single data buffer, e.g. one passed through
+	 * <code>MipMapGenerator.generateMipMaps(Image)</code>.
+	 * @param image
+	 * @param out
+	 * @throws IOException
+	 */
+	public static void write(Image image, OutputStream out) throws IOException {
+		List<ByteBuffer> buffers = image.getData();
+		if (buffers.size() != 1 || image.getDepth() > 1) {
+			throw new IOException("Only 2D images are supported");
+		}
+		ByteBuffer data = buffers.get(0).duplicate();
+		data.clear();
+		int[] sizes = image.hasMipmaps() ? image.getMipMapSizes() : new int[]{ data.capacity() };
+
+		ByteArrayOutputStream header = new ByteArrayOutputStream();
+		DataOutputStream h = new DataOutputStream(header);
+		h.writeInt(MAGIC);
+		h.writeInt(VERSION);
+		h.writeUTF(image.getFormat().name());
+		h.writeInt(image.getWidth());
+		h.writeInt(image.getHeight());
+		h.writeInt(sizes.length);
+		int total = 0;
+		for (int size : sizes) {
+			h.writeInt(size);
+			total += size;
+		}
+		while (header.size() != align(header.size())) {
+			h.writeByte(0);
+		}
+		out.write(header.toByteArray());
+		byte[] chunk = new byte[64 * 1024];
+		data.limit(total);
+		while (data.hasRemaining()) {
+			int n = Math.min(chunk.length, data.remaining());
+			data.get(chunk, 0, n);
+			out.write(chunk, 0, n);
+		}
+	}
+
+	private static int align(int offset) {
+		return (offset + 7) & ~7;
+	}
+}
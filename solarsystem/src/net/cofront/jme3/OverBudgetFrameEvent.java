@@ -0,0 +1,41 @@
+package net.cofront.jme3;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * A flight recorder event for a frame that took longer than the {@link FrameMetrics} budget.
+ * It's committed when the frame ends, so events that overlap the frame's duration just before
+ * it are what the frame waited on.
+ */
+@Name("net.cofront.OverBudgetFrame")
+@Label("Over Budget Frame")
+@Description("A frame that took longer than its budget")
+@Category({"Solar System", "Frame"})
+@StackTrace(false)
+class OverBudgetFrameEvent extends Event {
+
+	@Label("Frame Duration")
+	@Timespan(Timespan.NANOSECONDS)
+	long frameDuration;
+
+	@Label("Budget")
+	@Timespan(Timespan.NANOSECONDS)
+	long budget;
+
+	@Label("Slowest Stage")
+	String slowestStage;
+
+	@Label("Slowest Stage Duration")
+	@Timespan(Timespan.NANOSECONDS)
+	long slowestStageDuration;
+
+	@Label("Stages")
+	@Description("Each marked stage's time in milliseconds, in the order they ran")
+	String stages;
+}
@@ -1,9 +1,12 @@
 package net.cofront.jme3;
 
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.List;
-import java.util.concurrent.Future;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -13,8 +16,10 @@ import com.jme3.app.state.AbstractAppState;
 import com.jme3.app.state.AppStateManager;
 
 /**
- * Monitors lists of {@link Future}s and updates {@link ProgressBarControl}s to show
- * the percentage of completed tasks.
+ * Monitors batches of {@link CompletableFuture}s and updates {@link ProgressBarControl}s to show
+ * how much of each batch is done. Each future is weighted by how long it took the last time,
+ * according to a {@link LoadHistory}, and adds its weight to the batch when it completes, so
+ * updating a progress bar only reads a counter no matter how many futures are monitored.
  * 
  * @author Aaron Loucks
  * @version $Id: ProgressMonitorState.java 86 2011-05-19 23:56:28Z aloucks $
@@ -24,48 +29,116 @@ public class ProgressMonitorState extends AbstractAppState {
 	
 	private final static Logger log = Logger.getLogger(ProgressMonitorState.class.getName());
 	
-	private class FuturesControl {
-		private List<Future<?>> futures;
-		private ProgressBarControl progressBar;
-		private Runnable callback;
-		private FuturesControl(List<Future<?>>futures, ProgressBarControl progressBar, Runnable callback) {
-			this.futures = futures;
+	/**
+	 * A batch of futures shown on one progress bar.
+	 */
+	public class Batch {
+		private final ProgressBarControl progressBar;
+		private final Runnable callback;
+		private final LongAdder total = new LongAdder();
+		private final LongAdder done = new LongAdder();
+		private final LongAdder pending = new LongAdder();
+		private final AtomicLong lastCompletion = new AtomicLong(System.nanoTime());
+		private int count;
+		private float shown = -1;
+		
+		private Batch(ProgressBarControl progressBar, Runnable callback) {
 			this.progressBar = progressBar;
 			this.callback = callback;
 		}
+		
+		/**
+		 * Adds a future to the batch. Must be called in the render thread.
+		 * @param name The name its load time is recorded under, e.g. the asset name.
+		 * @param f
+		 * @return <code>f</code>
+		 */
+		public <T> CompletableFuture<T> add(final String name, CompletableFuture<T> f) {
+			final long weight = history.getWeight(name);
+			total.add(weight);
+			pending.increment();
+			count++;
+			f.whenComplete(new BiConsumer<T, Throwable>() {
+				public void accept(T result, Throwable failure) {
+					// loads overlap, so the time since the last one completed is what this one
+					// added to the total; the weights then add up to the batch's load time.
+					long now = System.nanoTime();
+					long elapsed = now - lastCompletion.getAndSet(now);
+					if (failure == null) {
+						history.record(name, elapsed / 1000000);
+					}
+					done.add(weight);
+					pending.decrement();
+				}
+			});
+			return f;
+		}
+		
+		/**
+		 * Returns the weighted share of the batch that is done.
+		 * @return <code>0 -> 1</code>
+		 */
+		public float getProgress() {
+			long t = total.sum();
+			return t == 0 ? 0 : Math.min(1, (float)done.sum() / t);
+		}
+		
+		/**
+		 * Returns whether futures were added and all of them are done.
+		 * @return
+		 */
+		public boolean isDone() {
+			return count > 0 && pending.sum() == 0;
+		}
 	}
 	
-	private List<FuturesControl> loadingList = Collections.synchronizedList(new ArrayList<FuturesControl>());
-	private List<FuturesControl> pruneList = new ArrayList<FuturesControl>();
+	private final List<Batch> loadingList = new CopyOnWriteArrayList<Batch>();
+	private final List<Batch> pruneList = new ArrayList<Batch>();
+	private LoadHistory history = new LoadHistory();
 	private AppStateManager sm;
 	private boolean autoAttaching = true;
 	
 	/**
-	 * Adds a list of futures to monitor and updates the progress bar accordingly. 
-	 * Note: if the list is updated outside of the render thread, it needs to be 
-	 * backed by {@link Collections#synchronizedList()}.
-	 * @param futures
+	 * Starts a batch of futures to monitor and updates the progress bar as they complete.
 	 * @param progressBar
+	 * @return The batch to add the futures to.
 	 */
-	public void monitor(List<Future<?>> futures, ProgressBarControl progressBar) {
-		monitor(futures, progressBar, null);
+	public Batch monitor(ProgressBarControl progressBar) {
+		return monitor(progressBar, null);
 	}
 	
 	/**
-	 * Adds a list of futures to monitor and updates the progress bar accordingly. 
-	 * Note: if the list is updated outside of the render thread, it needs to be 
-	 * backed by {@link Collections#synchronizedList()}.
+	 * Starts a batch of futures to monitor and updates the progress bar as they complete.
 	 * 
-	 * @param futures
 	 * @param progressBar
 	 * @param callback Execute a callback when all futures are done or cancelled. 
+	 * @return The batch to add the futures to.
 	 */
-	public void monitor(List<Future<?>> futures, ProgressBarControl progressBar, Runnable callback) {
-		loadingList.add(new FuturesControl(futures, progressBar, callback));
+	public Batch monitor(ProgressBarControl progressBar, Runnable callback) {
+		Batch batch = new Batch(progressBar, callback);
+		loadingList.add(batch);
 		// re-attach to the statemanager if needed
 		if (autoAttaching && sm != null && !sm.hasState(this)) {
 			sm.attach(this);
 		}
+		return batch;
+	}
+	
+	/**
+	 * Returns the history the futures are weighted by and their load times are recorded in.
+	 * @return
+	 */
+	public LoadHistory getHistory() {
+		return history;
+	}
+	
+	/**
+	 * Sets the history the futures are weighted by, e.g. one read from the last run. Only
+	 * affects futures added afterwards.
+	 * @param history
+	 */
+	public void setHistory(LoadHistory history) {
+		this.history = history;
 	}
 
 	/* (non-Javadoc)
@@ -90,51 +163,41 @@ public class ProgressMonitorState extends AbstractAppState {
 	 * @see com.jme3.app.state.AbstractAppState#update(float)
 	 */
 	@Override
-	public synchronized void update(float tpf) {
+	public void update(float tpf) {
 		boolean detach = true;
 		// run the callbacks for any batches that are 100% complete and
-		// remove these from the controls we're monitoring.
+		// remove these from the batches we're monitoring.
 		if (pruneList.size() > 0) {
-			for(FuturesControl fc : pruneList) {
+			for (Batch batch : pruneList) {
 				try {
-					if (fc.callback != null) {
-						fc.callback.run();
+					if (batch.callback != null) {
+						batch.callback.run();
 					}
 				} catch (Exception e) {
 					log.log(Level.SEVERE, "Error while running callback.", e);
 				}
-				loadingList.remove(fc);
+				loadingList.remove(batch);
 			}
 			pruneList.clear();
 			detach = false;
 		}
 		
-		
 		// update the progressbar controls.
 		if (loadingList.size() > 0) {
-			synchronized (loadingList) { 
-				for(FuturesControl fc : loadingList) {
-					int jobCount = fc.futures.size();
-					if (jobCount > 0) {
-						int jobsDone = 0;
-						synchronized(fc.futures) {
-							for (Future<?> f : fc.futures) {
-								jobsDone += f.isDone() || f.isCancelled() ? 1 : 0;
-							}
-						}
-						float progress = (float)jobsDone / (float)jobCount;
-						if (progress > 1) {
-							progress = 1;
-						}
-						fc.progressBar.setProgress(progress);
-						// add the completed future/callback to the prune list
-						// and execute it's callback on the next call to update().
-						// This will allow the render thread to update the progress to 100%
-						// before the callback is executed.
-						if (progress == 1) {
-							pruneList.add(fc);
-						}
-					}
+			for (Batch batch : loadingList) {
+				// read before the progress, so a batch isn't pruned short of 100%
+				boolean done = batch.isDone();
+				float progress = done ? 1 : batch.getProgress();
+				if (progress != batch.shown) {
+					batch.progressBar.setProgress(progress);
+					batch.shown = progress;
+				}
+				// add the completed batch to the prune list and execute its
+				// callback on the next call to update(). This will allow the
+				// render thread to update the progress to 100% before the 
+				// callback is executed.
+				if (done) {
+					pruneList.add(batch);
 				}
 			}
 			detach = false;
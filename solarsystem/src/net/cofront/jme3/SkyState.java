@@ -0,0 +1,172 @@
+package net.cofront.jme3;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.jme3.app.state.AbstractAppState;
+import com.jme3.renderer.ViewPort;
+import com.jme3.scene.Spatial;
+
+/**
+ * Shows one of several skies and keeps only that one in memory. Switching skies releases the
+ * one that was shown, which lets go of its textures (see {@link Sky#release()}), and loads the
+ * new one in the background; it's attached to the view port once it's loaded. Skies are loaded
+ * again every time they're shown.
+ */
+public class SkyState extends AbstractAppState {
+
+	private final static Logger log = Logger.getLogger(SkyState.class.getName());
+
+	/**
+	 * Loads a sky.
+	 */
+	public static abstract class Sky {
+		/**
+		 * Starts loading the sky. Called in the render thread each time the sky is shown.
+		 * @return The sky's spatial, e.g. from {@link com.jme3.util.SkyFactory}.
+		 */
+		public abstract Future<Spatial> load();
+
+		/**
+		 * Lets go of what {@link #load()} kept, e.g. its textures in the asset manager's cache, so
+		 * they can be freed once the sky is detached. Called in the render thread each time the sky
+		 * is released. Does nothing by default.
+		 */
+		public void release() {
+		}
+	}
+
+	private final ViewPort viewPort;
+	private final HashMap<String, Sky> skies = new HashMap<String, Sky>();
+	private final List<String> names = new ArrayList<String>();
+	private String active;
+	private Future<Spatial> loading;
+	private Spatial attached;
+	private int loads;
+
+	/**
+	 * @param viewPort The view port the sky is attached to as a scene.
+	 */
+	public SkyState(ViewPort viewPort) {
+		this.viewPort = viewPort;
+	}
+
+	/**
+	 * Adds a sky. Nothing is loaded until it's shown.
+	 * @param name
+	 * @param sky
+	 */
+	public void add(String name, Sky sky) {
+		if (!skies.containsKey(name)) {
+			names.add(name);
+		}
+		skies.put(name, sky);
+	}
+
+	/**
+	 * Returns the name of the sky that is shown or loading.
+	 * @return The name or <code>null</code> if no sky was shown yet.
+	 */
+	public String getActive() {
+		return active;
+	}
+
+	/**
+	 * Returns the name of the sky added after the active one, wrapping around.
+	 * @return
+	 */
+	public String getNext() {
+		if (names.isEmpty()) {
+			return null;
+		}
+		return names.get((names.indexOf(active) + 1) % names.size());
+	}
+
+	/**
+	 * Returns the active sky's spatial.
+	 * @return The spatial or <code>null</code> while it's loading.
+	 */
+	public Spatial getSpatial() {
+		return attached;
+	}
+
+	public boolean isLoading() {
+		return loading != null;
+	}
+
+	/**
+	 * Returns the number of times a sky was loaded.
+	 * @return
+	 */
+	public int getLoadCount() {
+		return loads;
+	}
+
+	/**
+	 * Shows a sky, releasing the one that was shown. Must be called in the render thread.
+	 * @param name
+	 */
+	public void show(String name) {
+		Sky sky = skies.get(name);
+		if (sky == null) {
+			throw new IllegalArgumentException("No sky named " + name);
+		}
+		if (name.equals(active)) {
+			return;
+		}
+		release();
+		active = name;
+		loading = sky.load();
+		loads++;
+	}
+
+	/**
+	 * Releases the active sky.
+	 */
+	public void release() {
+		if (attached != null) {
+			viewPort.detachScene(attached);
+			attached = null;
+		}
+		if (loading != null) {
+			loading.cancel(false);
+			loading = null;
+		}
+		if (active != null) {
+			skies.get(active).release();
+		}
+		active = null;
+	}
+
+	/* (non-Javadoc)
+	 * @see com.jme3.app.state.AbstractAppState#update(float)
+	 */
+	@Override
+	public void update(float tpf) {
+		if (loading == null || !loading.isDone()) {
+			return;
+		}
+		Future<Spatial> f = loading;
+		loading = null;
+		try {
+			attached = f.get();
+			attached.updateGeometricState();
+			viewPort.attachScene(attached);
+		} catch (Exception e) {
+			log.log(Level.SEVERE, "Error loading sky " + active, e);
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see com.jme3.app.state.AbstractAppState#cleanup()
+	 */
+	@Override
+	public void cleanup() {
+		super.cleanup();
+		release();
+	}
+}
@@ -0,0 +1,89 @@
+package net.cofront.jme3;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.jme3.asset.AssetInfo;
+import com.jme3.asset.AssetKey;
+import com.jme3.asset.AssetManager;
+import com.jme3.asset.TextureKey;
+
+/**
+ * The manifest of textures converted ahead of time by {@link TextureCacheBuilder}. Maps a
+ * texture's key to the <code>.mip</code> image that can replace it.
+ * <p>
+ * The manifest is a properties file with one entry per converted key:
+ * <pre>
+ * Textures/mars_diffuse.jpg|flip=TextureCache/Textures/mars_diffuse.flip.mip,&lt;source length&gt;,&lt;source last modified&gt;
+ * </pre>
+ * The source length and time stamp are only used by the builder to skip textures that haven't changed.
+ */
+public class TextureCache {
+
+	public final static String DIRECTORY = "TextureCache/";
+	public final static String MANIFEST = DIRECTORY + "manifest.properties";
+
+	private final static Logger logger = Logger.getLogger(TextureCache.class.getName());
+
+	private final Properties entries;
+
+	TextureCache(Properties entries) {
+		this.entries = entries;
+	}
+
+	/**
+	 * Reads the manifest. Returns an empty cache if there isn't one or it can't be read.
+	 * @param am
+	 * @return
+	 */
+	public static TextureCache load(AssetManager am) {
+		Properties entries = new Properties();
+		AssetInfo info = am.locateAsset(new AssetKey<Object>(MANIFEST));
+		if (info != null) {
+			try {
+				InputStream in = info.openStream();
+				try {
+					entries.load(in);
+				} finally {
+					in.close();
+				}
+			} catch (IOException e) {
+				logger.log(Level.WARNING, "Can't read " + MANIFEST, e);
+				entries.clear();
+			}
+		}
+		return new TextureCache(entries);
+	}
+
+	/**
+	 * Returns the name of the converted texture.
+	 * @param key
+	 * @return The asset name of a <code>.mip</code> image, or <code>null</code> if the texture wasn't converted.
+	 */
+	public String get(TextureKey key) {
+		if (key.isAsCube()) {
+			return null;
+		}
+		String entry = entries.getProperty(entryName(key));
+		if (entry == null) {
+			return null;
+		}
+		int comma = entry.indexOf(',');
+		return comma == -1 ? entry : entry.substring(0, comma);
+	}
+
+	public int size() {
+		return entries.size();
+	}
+
+	static String entryName(TextureKey key) {
+		return key.getName() + (key.isFlipY() ? "|flip" : "");
+	}
+
+	static String cacheName(TextureKey key) {
+		return DIRECTORY + key.getName() + (key.isFlipY() ? ".flip" : "") + ".mip";
+	}
+}
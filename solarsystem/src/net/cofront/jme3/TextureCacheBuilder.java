@@ -0,0 +1,126 @@
+package net.cofront.jme3;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.Properties;
+import java.util.Set;
+
+import jme3tools.converters.MipMapGenerator;
+
+import com.jme3.asset.AssetKey;
+import com.jme3.asset.DesktopAssetManager;
+import com.jme3.asset.TextureKey;
+import com.jme3.asset.plugins.FileLocator;
+import com.jme3.texture.Image;
+
+/**
+ * Converts the textures referenced by the <code>Materials/*.j3m</code> files into <code>.mip</code>
+ * images with all their mip map levels, and lists them in the {@link TextureCache} manifest. The
+ * {@link TexturePipeline} then loads those instead of decoding the originals and having the
+ * driver generate mip maps.
+ * <pre>
+ * java -Xmx1g -cp ... net.cofront.jme3.TextureCacheBuilder assets
+ * </pre>
+ * Textures whose source hasn't changed since the last run are skipped. Images are stored
+ * uncompressed in the format the loader decoded them to.
+ */
+public class TextureCacheBuilder {
+
+	public static void main(String[] args) throws IOException {
+		if (args.length != 1) {
+			System.err.println("usage: TextureCacheBuilder <assets directory>");
+			System.exit(1);
+		}
+		build(new File(args[0]));
+	}
+
+	/**
+	 * Converts the textures of every material under <code>dir/Materials</code>.
+	 * @param dir The assets directory. The cache is written to its <code>TextureCache</code> directory.
+	 * @return The number of textures converted, not counting skipped ones.
+	 * @throws IOException
+	 */
+	public static int build(File dir) throws IOException {
+		File[] materials = new File(dir, "Materials").listFiles();
+		if (materials == null) {
+			throw new IOException("No Materials directory in " + dir);
+		}
+		Arrays.sort(materials);
+
+		// the desktop loaders, as the app has them
+		DesktopAssetManager am = new DesktopAssetManager(DesktopAssetManager.class.getResource("Desktop.cfg"));
+		am.registerLocator(dir.getPath(), FileLocator.class);
+		Set<TextureKey> keys = new LinkedHashSet<TextureKey>();
+		for (File material : materials) {
+			if (material.getName().endsWith(".j3m")) {
+				for (AssetKey<?> key : MaterialDependencies.read(am, "Materials/" + material.getName())) {
+					if (key instanceof TextureKey) {
+						keys.add((TextureKey)key);
+					}
+				}
+			}
+		}
+
+		File manifest = new File(dir, TextureCache.MANIFEST);
+		Properties previous = new Properties();
+		if (manifest.isFile()) {
+			InputStream in = new FileInputStream(manifest);
+			try {
+				previous.load(in);
+			} finally {
+				in.close();
+			}
+		}
+
+		Properties entries = new Properties();
+		int converted = 0;
+		for (TextureKey key : keys) {
+			File source = new File(dir, key.getName());
+			String cacheName = TextureCache.cacheName(key);
+			File target = new File(dir, cacheName);
+			String entry = cacheName + "," + source.length() + "," + source.lastModified();
+			if (entry.equals(previous.getProperty(TextureCache.entryName(key))) && target.isFile()) {
+				entries.setProperty(TextureCache.entryName(key), entry);
+				continue;
+			}
+			TextureKey load = new TextureKey(key.getName(), key.isFlipY());
+			load.setGenerateMips(false);
+			Image image = am.loadAsset(load).getImage();
+			if (image.getData().size() != 1) {
+				System.out.println("Skipping " + key + ": not a 2D image");
+				continue;
+			}
+			if (!image.hasMipmaps()) {
+				MipMapGenerator.generateMipMaps(image);
+			}
+			target.getParentFile().mkdirs();
+			OutputStream out = new BufferedOutputStream(new FileOutputStream(target), 64 * 1024);
+			try {
+				MipImageLoader.write(image, out);
+			} finally {
+				out.close();
+			}
+			am.clearCache();
+			entries.setProperty(TextureCache.entryName(key), entry);
+			converted++;
+			System.out.println("Converted " + key + " to " + cacheName + " (" + image.getFormat() + ", "
+				+ image.getWidth() + "x" + image.getHeight() + ", " + target.length() + " bytes)");
+		}
+
+		manifest.getParentFile().mkdirs();
+		OutputStream out = new FileOutputStream(manifest);
+		try {
+			entries.store(out, "Written by " + TextureCacheBuilder.class.getName());
+		} finally {
+			out.close();
+		}
+		return converted;
+	}
+}
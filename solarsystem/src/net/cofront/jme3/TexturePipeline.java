@@ -0,0 +1,409 @@
+package net.cofront.jme3;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.jme3.asset.Asset;
+import com.jme3.asset.AssetInfo;
+import com.jme3.asset.AssetKey;
+import com.jme3.asset.AssetLoader;
+import com.jme3.asset.AssetManager;
+import com.jme3.asset.AssetNotFoundException;
+import com.jme3.asset.DesktopAssetManager;
+import com.jme3.asset.TextureKey;
+import com.jme3.texture.Image;
+import com.jme3.texture.Texture;
+import com.jme3.texture.plugins.AWTLoader;
+import com.jme3.texture.plugins.DDSLoader;
+import com.jme3.texture.plugins.HDRLoader;
+import com.jme3.texture.plugins.TGALoader;
+
+/**
+ * Loads textures in two stages: {@link #read(TextureKey)} gets the texture's bytes, which blocks on
+ * I/O, and {@link #decode(TextureKey, Data)} turns them into an image, which keeps a CPU busy.
+ * <p>
+ * Textures converted by {@link TextureCacheBuilder} are read from the {@link TextureCache} instead
+ * of their source, and decoding them only wraps their mip map levels in an image.
+ * <p>
+ * Textures that are plain files (e.g. assets on the class path of an unpacked build) are memory
+ * mapped, textures in an {@link AssetPack} are sliced from its mapping, anything else is read
+ * through the {@link AssetManager}'s locators. At most
+ * {@link #getCapacity()} textures can be read but not yet decoded; further reads block until a
+ * decode finishes, so fast disks can't pile up undecoded textures in memory.
+ * <p>
+ * Decoding does the same work as {@link AssetManager#loadTexture(TextureKey)} after the asset was
+ * located: it runs the loader, post processes the result with the key and adds it to the asset
+ * manager's cache, so later loads of the same texture (e.g. by a material) are cache hits.
+ * <p>
+ * Each stage keeps statistics. If textures spend a long time waiting to be decoded, loading is
+ * CPU-bound; if reads are slow while the decode queue is empty, it's disk-bound.
+ */
+public class TexturePipeline {
+
+	/**
+	 * A texture that was read and is waiting to be decoded.
+	 */
+	public static class Data {
+		private final ByteBuffer buffer;
+		private final boolean cached;
+		private final long readAt;
+		private Data(ByteBuffer buffer, boolean cached) {
+			this.buffer = buffer;
+			this.cached = cached;
+			this.readAt = System.nanoTime();
+		}
+		public int size() {
+			return buffer.limit();
+		}
+	}
+
+	private final AssetManager am;
+	private final TextureCache cache;
+	private final int capacity;
+	private final Semaphore slots;
+
+	private final AtomicInteger reads = new AtomicInteger();
+	private final AtomicInteger mapped = new AtomicInteger();
+	private final AtomicInteger cachedReads = new AtomicInteger();
+	private final AtomicLong readBytes = new AtomicLong();
+	private final AtomicLong readNanos = new AtomicLong();
+	private final AtomicLong blockedNanos = new AtomicLong();
+	private final AtomicInteger decodes = new AtomicInteger();
+	private final AtomicLong decodeBytes = new AtomicLong();
+	private final AtomicLong decodeNanos = new AtomicLong();
+	private final AtomicLong queuedNanos = new AtomicLong();
+
+	/**
+	 * @param am Must be a {@link DesktopAssetManager} for textures to be cached.
+	 * @param capacity The number of textures that can be read but not yet decoded.
+	 */
+	public TexturePipeline(AssetManager am, int capacity) {
+		this(am, TextureCache.load(am), capacity);
+	}
+
+	/**
+	 * @param am Must be a {@link DesktopAssetManager} for textures to be cached.
+	 * @param cache The textures converted ahead of time.
+	 * @param capacity The number of textures that can be read but not yet decoded.
+	 */
+	public TexturePipeline(AssetManager am, TextureCache cache, int capacity) {
+		this.am = am;
+		this.cache = cache;
+		this.capacity = capacity;
+		this.slots = new Semaphore(capacity);
+	}
+
+	/**
+	 * Returns whether the texture can be loaded in stages. Otherwise it must be loaded with the
+	 * {@link AssetManager}.
+	 * @param key
+	 * @return
+	 */
+	public boolean isSupported(TextureKey key) {
+		return am instanceof DesktopAssetManager && (cache.get(key) != null || newLoader(key) != null);
+	}
+
+	/**
+	 * Reads the texture's bytes. Blocks while the pipeline is at capacity. The data must be passed
+	 * to {@link #release(Data)} once it's decoded or dropped.
+	 * @param key
+	 * @return
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	public Data read(TextureKey key) throws IOException, InterruptedException {
+		long start = System.nanoTime();
+		slots.acquire();
+		long acquired = System.nanoTime();
+		blockedNanos.addAndGet(acquired - start);
+		try {
+			String name = cache.get(key);
+			ByteBuffer buffer = name == null ? null : readAsset(new AssetKey<Object>(name));
+			boolean cached = buffer != null;
+			if (cached) {
+				cachedReads.incrementAndGet();
+			}
+			else {
+				buffer = readAsset(key);
+				if (buffer == null) {
+					throw new AssetNotFoundException(key.toString());
+				}
+			}
+			reads.incrementAndGet();
+			readBytes.addAndGet(buffer.limit());
+			readNanos.addAndGet(System.nanoTime() - acquired);
+			if (Trace.ENABLED) {
+				Trace.end(key.getName(), cached ? "read cached" : "read", acquired, "bytes", buffer.limit());
+			}
+			return new Data(buffer, cached);
+		} catch (IOException e) {
+			slots.release();
+			throw e;
+		} catch (RuntimeException e) {
+			slots.release();
+			throw e;
+		}
+	}
+
+	/**
+	 * Returns whether the texture was converted by {@link TextureCacheBuilder}, so its mip map
+	 * levels can be loaded separately.
+	 * @param key
+	 * @return
+	 * @see #decode(TextureKey, Data, int)
+	 */
+	public boolean isStreamable(TextureKey key) {
+		return am instanceof DesktopAssetManager && cache.get(key) != null;
+	}
+
+	/**
+	 * Decodes the bytes read by {@link #read(TextureKey)}.
+	 * @param key
+	 * @param data
+	 * @return
+	 * @throws IOException
+	 */
+	public Texture decode(TextureKey key, Data data) throws IOException {
+		return decode(key, data, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Decodes the bytes read by {@link #read(TextureKey)}, leaving out the mip map levels wider than
+	 * <code>maxWidth</code> if the texture is streamable. Only textures loaded in full are cached.
+	 * @param key
+	 * @param data
+	 * @param maxWidth
+	 * @return
+	 * @throws IOException
+	 */
+	public Texture decode(TextureKey key, Data data, int maxWidth) throws IOException {
+		Image image = decodeImage(key, data, maxWidth);
+		long start = System.nanoTime();
+		Object texture = key.postProcess(image);
+		if (maxWidth != Integer.MAX_VALUE) {
+			// a placeholder isn't cached under the key, or other loads would get it instead of the full image
+			((Asset)texture).setKey(key);
+			decodeNanos.addAndGet(System.nanoTime() - start);
+			Trace.end(key.getName(), "post process", start);
+			return (Texture)texture;
+		}
+		if (key.shouldCache()) {
+			((DesktopAssetManager)am).addToCache(key, texture);
+		}
+		Object clone = key.createClonedInstance(texture);
+		if (key.useSmartCache()) {
+			// the smart cache only keeps the texture while a clone holds on to the key
+			((Asset)clone).setKey(key);
+		}
+		decodeNanos.addAndGet(System.nanoTime() - start);
+		Trace.end(key.getName(), "post process", start);
+		return (Texture)clone;
+	}
+
+	/**
+	 * Decodes only the image, e.g. to replace the image of a texture that was loaded already. The
+	 * image isn't cached.
+	 * @param key
+	 * @param data
+	 * @param maxWidth Ignored unless the texture is streamable.
+	 * @return
+	 * @throws IOException
+	 * @see MipImageLoader#read(ByteBuffer, int)
+	 */
+	public Image decodeImage(TextureKey key, final Data data, int maxWidth) throws IOException {
+		long start = System.nanoTime();
+		queuedNanos.addAndGet(start - data.readAt);
+		Image image;
+		if (data.cached) {
+			image = MipImageLoader.read(data.buffer, maxWidth);
+		}
+		else {
+			image = (Image)newLoader(key).load(new AssetInfo(am, key) {
+				@Override
+				public InputStream openStream() {
+					return new ByteBufferInputStream(data.buffer.duplicate());
+				}
+			});
+		}
+		decodes.incrementAndGet();
+		decodeBytes.addAndGet(data.size());
+		// decode() adds the rest of its own time.
+		decodeNanos.addAndGet(System.nanoTime() - start);
+		if (Trace.ENABLED) {
+			Trace.end(key.getName(), "decode", start, "bytes", data.size());
+		}
+		return image;
+	}
+
+	/**
+	 * Frees the data's slot in the pipeline.
+	 * @param data
+	 */
+	public void release(Data data) {
+		slots.release();
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * Returns the number of textures read but not yet released.
+	 * @return
+	 */
+	public int getQueued() {
+		return capacity - slots.availablePermits();
+	}
+
+	public int getReadCount() {
+		return reads.get();
+	}
+
+	/**
+	 * Returns the number of reads that found a texture converted by {@link TextureCacheBuilder}.
+	 * @return
+	 */
+	public int getCachedCount() {
+		return cachedReads.get();
+	}
+
+	/**
+	 * Returns the number of reads that were memory mapped.
+	 * @return
+	 */
+	public int getMappedCount() {
+		return mapped.get();
+	}
+
+	public int getDecodeCount() {
+		return decodes.get();
+	}
+
+	/**
+	 * Returns the read throughput of a single reader in MB/s.
+	 * @return
+	 */
+	public float getReadThroughput() {
+		return throughput(readBytes.get(), readNanos.get());
+	}
+
+	/**
+	 * Returns the decode throughput of a single decoder in MB/s of encoded data.
+	 * @return
+	 */
+	public float getDecodeThroughput() {
+		return throughput(decodeBytes.get(), decodeNanos.get());
+	}
+
+	/**
+	 * Returns the total time readers were blocked because the pipeline was at capacity, in milliseconds.
+	 * @return
+	 */
+	public float getBlockedMillis() {
+		return blockedNanos.get() / 1000000f;
+	}
+
+	/**
+	 * Returns the total time textures waited between being read and being decoded, in milliseconds.
+	 * @return
+	 */
+	public float getQueuedMillis() {
+		return queuedNanos.get() / 1000000f;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("read: %d (%d mapped, %d cached), %.1f MB/s, blocked %.0f ms; decode: %d, %.1f MB/s, queued %.0f ms",
+			getReadCount(), getMappedCount(), getCachedCount(), getReadThroughput(), getBlockedMillis(),
+			getDecodeCount(), getDecodeThroughput(), getQueuedMillis());
+	}
+
+	private static float throughput(long bytes, long nanos) {
+		return nanos == 0 ? 0 : (bytes / (1024f * 1024f)) / (nanos / 1000000000f);
+	}
+
+	// the same resource the class path locator finds, if it's a plain file.
+	private static File findFile(AssetKey<?> key) {
+		URL url = TexturePipeline.class.getResource("/" + key.getName());
+		if (url == null || !"file".equals(url.getProtocol())) {
+			return null;
+		}
+		try {
+			File file = new File(url.toURI());
+			return file.isFile() ? file : null;
+		} catch (URISyntaxException e) {
+			return null;
+		} catch (IllegalArgumentException e) {
+			return null;
+		}
+	}
+
+	private static ByteBuffer map(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		} finally {
+			// the mapping stays valid after the channel is closed.
+			raf.close();
+		}
+	}
+
+	// maps the asset if it's a plain file, otherwise reads it through the locators. null if not found.
+	private ByteBuffer readAsset(AssetKey<?> key) throws IOException {
+		File file = findFile(key);
+		if (file != null) {
+			mapped.incrementAndGet();
+			return map(file);
+		}
+		AssetInfo info = am.locateAsset(key);
+		if (info == null) {
+			return null;
+		}
+		if (info instanceof AssetPackLocator.PackedAssetInfo) {
+			// already mapped
+			mapped.incrementAndGet();
+			return ((AssetPackLocator.PackedAssetInfo)info).getBuffer();
+		}
+		InputStream in = info.openStream();
+		try {
+			ByteArrayOutputStream out = new ByteArrayOutputStream(64 * 1024);
+			byte[] buffer = new byte[64 * 1024];
+			int n;
+			while ((n = in.read(buffer)) != -1) {
+				out.write(buffer, 0, n);
+			}
+			return ByteBuffer.wrap(out.toByteArray());
+		} finally {
+			in.close();
+		}
+	}
+
+	// the loaders registered for textures in Desktop.cfg. Loaders keep state, so one per texture.
+	private static AssetLoader newLoader(AssetKey<?> key) {
+		String ext = key.getExtension().toLowerCase();
+		if (ext.equals("jpg") || ext.equals("jpeg") || ext.equals("png") || ext.equals("gif") || ext.equals("bmp")) {
+			return new AWTLoader();
+		}
+		if (ext.equals("dds")) {
+			return new DDSLoader();
+		}
+		if (ext.equals("tga")) {
+			return new TGALoader();
+		}
+		if (ext.equals("hdr")) {
+			return new HDRLoader();
+		}
+		return null;
+	}
+}
@@ -0,0 +1,486 @@
+package net.cofront.jme3;
+
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.jme3.app.state.AbstractAppState;
+import com.jme3.asset.TextureKey;
+import com.jme3.bounding.BoundingBox;
+import com.jme3.bounding.BoundingSphere;
+import com.jme3.bounding.BoundingVolume;
+import com.jme3.material.MatParam;
+import com.jme3.material.MatParamTexture;
+import com.jme3.material.Material;
+import com.jme3.math.FastMath;
+import com.jme3.math.Vector3f;
+import com.jme3.renderer.Camera;
+import com.jme3.renderer.Camera.FrustumIntersect;
+import com.jme3.scene.Geometry;
+import com.jme3.scene.Node;
+import com.jme3.scene.Spatial;
+import com.jme3.texture.Image;
+import com.jme3.texture.Texture;
+import com.jme3.util.BufferUtils;
+
+/**
+ * Raises the resolution of textures that were loaded as placeholders (see
+ * {@link FutureAssetLoaderState#setPlaceholderSize(int)}) as the camera gets close enough to
+ * need it.
+ * <p>
+ * Each frame the streamer walks the tracked scenes and estimates, for every visible geometry,
+ * how wide its textures must be to have about one texel per pixel, assuming they're wrapped
+ * around the geometry's bounds like a planet's. When a texture is needed wider than it is, the
+ * next level is loaded in the background, prioritised by how much wider it's needed, and swapped
+ * into the texture's image in the render thread. Every copy of the texture shares the image, so
+ * every material using it is upgraded at once. A load that hasn't started yet is cancelled when
+ * its texture leaves the view, and loaded again if it comes back.
+ * <p>
+ * Only textures used in the tracked scenes are upgraded. The streamer forgets a texture once
+ * nothing else holds its image, so the image can be freed.
+ * <p>
+ * The streamed images can be held to a memory budget. When they take up more, the textures
+ * that were visible the longest time ago are evicted: their images go back to the levels no
+ * wider than the placeholder size, which they already hold, and they're streamed in again when
+ * they're needed. Upgrades wait while the budget is spent on visible textures.
+ */
+public class TextureStreamer extends AbstractAppState {
+
+	private final static Logger log = Logger.getLogger(TextureStreamer.class.getName());
+
+	private static class Stream {
+		private final TextureKey key;
+		private final WeakReference<Image> image;
+		private LoadPriority priority = new LoadPriority();
+		private long bytes;
+		private long lastVisible;
+		private int wanted;
+		private boolean loading;
+		private boolean complete;
+		private Stream(TextureKey key, Image image) {
+			this.key = key;
+			this.image = new WeakReference<Image>(image);
+			this.bytes = sizeOf(image);
+		}
+	}
+
+	private final static Comparator<Stream> LEAST_RECENTLY_VISIBLE = new Comparator<Stream>() {
+		@Override
+		public int compare(Stream a, Stream b) {
+			return a.lastVisible < b.lastVisible ? -1 : a.lastVisible > b.lastVisible ? 1 : 0;
+		}
+	};
+
+	private final FutureAssetLoaderState loader;
+	private final Camera cam;
+	private final List<Spatial> scenes = new ArrayList<Spatial>();
+	private final HashMap<TextureKey, Stream> streams = new HashMap<TextureKey, Stream>();
+	private final ArrayList<Stream> evictable = new ArrayList<Stream>();
+	private final Vector3f tmp = new Vector3f();
+	private float quality = 1f;
+	private long budget = Long.MAX_VALUE;
+	private long residentBytes;
+	private long frame;
+	private int loads;
+	private int cancels;
+	private int swaps;
+	private long swappedBytes;
+	private long hits;
+	private long misses;
+	private int evictions;
+	private long evictedBytes;
+
+	/**
+	 * @param loader The loader the placeholders came from.
+	 * @param cam The camera that decides which resolutions are needed.
+	 */
+	public TextureStreamer(FutureAssetLoaderState loader, Camera cam) {
+		this.loader = loader;
+		this.cam = cam;
+	}
+
+	/**
+	 * Adds a scene whose geometries decide which resolutions are needed. Geometries attached to it
+	 * later are picked up automatically.
+	 * @param scene
+	 */
+	public void track(Spatial scene) {
+		scenes.add(scene);
+	}
+
+	public void untrack(Spatial scene) {
+		scenes.remove(scene);
+	}
+
+	public float getQuality() {
+		return quality;
+	}
+
+	/**
+	 * Sets the number of texels wanted per pixel. Lower values load less.
+	 * @param quality
+	 */
+	public void setQuality(float quality) {
+		this.quality = quality;
+	}
+
+	public long getBudget() {
+		return budget;
+	}
+
+	/**
+	 * Sets the most memory the streamed images should take up.
+	 * @param budget In bytes, <code>Long.MAX_VALUE</code> for no limit.
+	 */
+	public void setBudget(long budget) {
+		this.budget = budget;
+	}
+
+	/**
+	 * Returns the memory taken up by the streamed images, in bytes.
+	 * @return
+	 */
+	public long getResidentBytes() {
+		return residentBytes;
+	}
+
+	/**
+	 * Returns the share of visible textures, counted once per frame, that were resident at the
+	 * resolution they were needed at.
+	 * @return From <code>0</code> to <code>1</code>, or <code>1</code> before any were visible.
+	 */
+	public float getHitRate() {
+		long lookups = hits + misses;
+		return lookups == 0 ? 1f : (float)hits / lookups;
+	}
+
+	/**
+	 * Returns the number of times a texture was evicted to stay within the budget.
+	 * @return
+	 */
+	public int getEvictionCount() {
+		return evictions;
+	}
+
+	/**
+	 * Returns the memory freed by evictions, in bytes.
+	 * @return
+	 */
+	public long getEvictedBytes() {
+		return evictedBytes;
+	}
+
+	/**
+	 * Returns the number of textures that may still be upgraded.
+	 * @return
+	 */
+	public int getStreamingCount() {
+		int n = 0;
+		for (Stream s : streams.values()) {
+			if (!s.complete) {
+				n++;
+			}
+		}
+		return n;
+	}
+
+	/**
+	 * Returns the number of higher resolution loads started.
+	 * @return
+	 */
+	public int getLoadCount() {
+		return loads;
+	}
+
+	/**
+	 * Returns the number of loads cancelled because their texture left the view.
+	 * @return
+	 */
+	public int getCancelCount() {
+		return cancels;
+	}
+
+	/**
+	 * Returns the number of times an image was replaced by a higher resolution.
+	 * @return
+	 */
+	public int getSwapCount() {
+		return swaps;
+	}
+
+	/**
+	 * Returns the size of all the images swapped in, in bytes.
+	 * @return
+	 */
+	public long getSwappedBytes() {
+		return swappedBytes;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("resident %.1f of %s MB, hit rate %.1f%%, loads %d, cancels %d, swaps %d, evictions %d (%.1f MB)",
+			residentBytes / (1024f * 1024f), budget == Long.MAX_VALUE ? "unlimited" : String.valueOf(budget / (1024 * 1024)),
+			getHitRate() * 100, loads, cancels, swaps, evictions, evictedBytes / (1024f * 1024f));
+	}
+
+	/* (non-Javadoc)
+	 * @see com.jme3.app.state.AbstractAppState#cleanup()
+	 */
+	@Override
+	public void cleanup() {
+		super.cleanup();
+		log.log(Level.INFO, "Texture streamer: {0}", this);
+	}
+
+	/* (non-Javadoc)
+	 * @see com.jme3.app.state.AbstractAppState#update(float)
+	 */
+	@Override
+	public void update(float tpf) {
+		Texture placeholder;
+		while ((placeholder = loader.pollPlaceholder()) != null) {
+			TextureKey key = (TextureKey)placeholder.getKey();
+			if (!streams.containsKey(key)) {
+				Stream s = new Stream(key, placeholder.getImage());
+				streams.put(key, s);
+				residentBytes += s.bytes;
+			}
+		}
+		for (Iterator<Stream> it = streams.values().iterator(); it.hasNext(); ) {
+			Stream s = it.next();
+			if (s.image.get() == null) {
+				forget(s);
+				it.remove();
+			}
+			else {
+				s.wanted = 0;
+			}
+		}
+		if (streams.isEmpty()) {
+			return;
+		}
+		frame++;
+		for (int i = 0; i < scenes.size(); i++) {
+			visit(scenes.get(i));
+		}
+		if (residentBytes > budget) {
+			evict();
+		}
+		for (Stream s : streams.values()) {
+			// collected since the streams were pruned, it goes next frame.
+			Image image = s.image.get();
+			if (image == null) {
+				continue;
+			}
+			if (s.lastVisible == frame) {
+				if (s.wanted > image.getWidth() && !s.complete) {
+					misses++;
+				}
+				else {
+					hits++;
+				}
+			}
+			if (s.loading && s.wanted == 0) {
+				cancel(s);
+			}
+			s.priority.set(s.wanted - image.getWidth());
+			if (!s.loading && !s.complete && s.wanted > image.getWidth() && residentBytes < budget) {
+				upgrade(s);
+			}
+		}
+	}
+
+	// evicts the textures visible the longest time ago until the budget is met. Visible ones stay.
+	private void evict() {
+		int placeholderSize = Math.max(1, loader.getPlaceholderSize());
+		evictable.clear();
+		for (Stream s : streams.values()) {
+			Image image = s.image.get();
+			if (image != null && s.lastVisible != frame && !s.loading && image.getWidth() > placeholderSize && image.hasMipmaps()) {
+				evictable.add(s);
+			}
+		}
+		Collections.sort(evictable, LEAST_RECENTLY_VISIBLE);
+		for (int i = 0; i < evictable.size() && residentBytes > budget; i++) {
+			Stream s = evictable.get(i);
+			Image image = s.image.get();
+			if (image == null) {
+				continue;
+			}
+			long before = s.bytes;
+			swap(s, image, lowestLevels(image, placeholderSize));
+			s.complete = false;
+			evictions++;
+			evictedBytes += before - s.bytes;
+		}
+		evictable.clear();
+	}
+
+	private void visit(Spatial spatial) {
+		if (spatial instanceof Node) {
+			List<Spatial> children = ((Node)spatial).getChildren();
+			for (int i = 0; i < children.size(); i++) {
+				visit(children.get(i));
+			}
+		}
+		else if (spatial instanceof Geometry) {
+			Material m = ((Geometry)spatial).getMaterial();
+			BoundingVolume bound = spatial.getWorldBound();
+			if (m == null || bound == null) {
+				return;
+			}
+			int wanted = wantedWidth(bound);
+			for (MatParam param : m.getParams()) {
+				if (param instanceof MatParamTexture) {
+					Texture t = ((MatParamTexture)param).getTextureValue();
+					Stream s = t == null ? null : streams.get(t.getKey());
+					if (s != null) {
+						s.wanted = Math.max(s.wanted, wanted);
+						if (wanted > 0) {
+							s.lastVisible = frame;
+						}
+					}
+				}
+			}
+		}
+	}
+
+	// the width of a texture wrapped around the bounds that has about one texel per pixel at the
+	// part closest to the camera.
+	private int wantedWidth(BoundingVolume bound) {
+		int planeState = cam.getPlaneState();
+		cam.setPlaneState(0);
+		boolean visible = cam.contains(bound) != FrustumIntersect.Outside;
+		cam.setPlaneState(planeState);
+		if (!visible) {
+			return 0;
+		}
+		float radius;
+		if (bound instanceof BoundingSphere) {
+			radius = ((BoundingSphere)bound).getRadius();
+		}
+		else if (bound instanceof BoundingBox) {
+			radius = ((BoundingBox)bound).getExtent(tmp).length();
+		}
+		else {
+			return 0;
+		}
+		float distance = Math.max(bound.distanceTo(cam.getLocation()) - radius, cam.getFrustumNear());
+		float pixelsPerUnit = cam.getHeight() * cam.getFrustumNear() / (2 * cam.getFrustumTop() * distance);
+		return (int)Math.min(Integer.MAX_VALUE - 1, FastMath.TWO_PI * radius * pixelsPerUnit * quality);
+	}
+
+	// stops counting a stream whose image was collected, and drops its load if it's still queued.
+	private void forget(Stream s) {
+		if (s.loading) {
+			s.priority.cancel();
+		}
+		residentBytes -= s.bytes;
+		if (log.isLoggable(Level.FINE)) {
+			log.log(Level.FINE, "Forgot {0}", s.key);
+		}
+	}
+
+	// drops the stream's load if it's still queued. The load gets a fresh priority when it's
+	// upgraded again, since a cancelled one stays cancelled.
+	private void cancel(Stream s) {
+		s.priority.cancel();
+		s.priority = new LoadPriority();
+		s.loading = false;
+		cancels++;
+	}
+
+	private void upgrade(final Stream s) {
+		final int maxWidth = s.wanted > 1 << 30 ? Integer.MAX_VALUE : nextPowerOfTwo(s.wanted);
+		final LoadPriority priority = s.priority;
+		s.loading = true;
+		loads++;
+		LoadPriority previous = loader.setCurrentPriority(priority);
+		loader.loadTextureLevels(s.key, maxWidth, new FutureAssetLoaderState.Callback<Image>() {
+			@Override
+			public void run() {
+				// a load that was cancelled after it started still finishes. Its levels are
+				// used if they're wider, but the stream's state belongs to the newer load.
+				boolean current = priority == s.priority;
+				if (current) {
+					s.loading = false;
+				}
+				Image levels = get();
+				Image image = s.image.get();
+				if (levels == null || image == null) {
+					if (current) {
+						s.complete = true;
+					}
+					return;
+				}
+				int width = image.getWidth();
+				if (levels.getWidth() > width) {
+					swap(s, image, levels);
+					swaps++;
+					swappedBytes += s.bytes;
+				}
+				// no wider level to come.
+				if (current && (levels.getWidth() <= width || maxWidth == Integer.MAX_VALUE || levels.getWidth() * 2 <= maxWidth)) {
+					s.complete = true;
+				}
+			}
+		});
+		loader.setCurrentPriority(previous);
+	}
+
+	private void swap(Stream s, Image image, Image levels) {
+		image.setWidth(levels.getWidth());
+		image.setHeight(levels.getHeight());
+		image.setData(levels.getData(0));
+		image.setMipMapSizes(levels.getMipMapSizes());
+		residentBytes -= s.bytes;
+		s.bytes = sizeOf(image);
+		residentBytes += s.bytes;
+		if (log.isLoggable(Level.FINE)) {
+			log.log(Level.FINE, "Swapped {0} to {1}x{2}", new Object[]{s.key, levels.getWidth(), levels.getHeight()});
+		}
+	}
+
+	// a copy of the image's levels from the largest one no wider than maxWidth down, so the rest can be freed.
+	private static Image lowestLevels(Image image, int maxWidth) {
+		int[] sizes = image.getMipMapSizes();
+		int width = image.getWidth();
+		int height = image.getHeight();
+		int base = 0;
+		int offset = 0;
+		while (base < sizes.length - 1 && Math.max(1, width >> base) > maxWidth) {
+			offset += sizes[base++];
+		}
+		int[] levels = new int[sizes.length - base];
+		System.arraycopy(sizes, base, levels, 0, levels.length);
+		int total = 0;
+		for (int size : levels) {
+			total += size;
+		}
+		ByteBuffer data = image.getData(0).duplicate();
+		data.limit(offset + total).position(offset);
+		ByteBuffer copy = BufferUtils.createByteBuffer(total);
+		copy.put(data).flip();
+		return new Image(image.getFormat(), Math.max(1, width >> base), Math.max(1, height >> base), copy, levels);
+	}
+
+	private static long sizeOf(Image image) {
+		long bytes = 0;
+		for (ByteBuffer data : image.getData()) {
+			bytes += data.limit();
+		}
+		return bytes;
+	}
+
+	private static int nextPowerOfTwo(int n) {
+		int p = Integer.highestOneBit(Math.max(1, n));
+		return p == n ? p : p << 1;
+	}
+}
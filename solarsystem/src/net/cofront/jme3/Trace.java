@@ -0,0 +1,227 @@
+package net.cofront.jme3;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Records timed spans and writes them as a Chrome trace, which <code>chrome://tracing</code> and
+ * Perfetto open. Tracing is enabled by setting the <code>net.cofront.trace</code> system property
+ * to the file the trace is written to. When it isn't set, {@link #ENABLED} is a constant
+ * <code>false</code>, so the JIT compiler removes the calls and they cost nothing.
+ * <p>
+ * Typical use:
+ * <pre>
+ * long t = Trace.begin();
+ * ...
+ * Trace.end("name", "category", t);
+ * </pre>
+ * Thread safe. At most {@link #MAX_EVENTS} are kept; later ones are dropped.
+ */
+public final class Trace {
+
+	public final static String PROPERTY = "net.cofront.trace";
+	public final static String FILE = System.getProperty(PROPERTY);
+	public final static boolean ENABLED = FILE != null;
+	public final static int MAX_EVENTS = 1 << 20;
+
+	private final static long ORIGIN = System.nanoTime();
+	private final static ConcurrentLinkedQueue<Event> events = new ConcurrentLinkedQueue<Event>();
+	private final static ConcurrentHashMap<Long, String> threads = new ConcurrentHashMap<Long, String>();
+	private final static AtomicInteger count = new AtomicInteger();
+	private final static AtomicInteger ids = new AtomicInteger();
+
+	private static class Event {
+		private final char phase;
+		private final String name;
+		private final String category;
+		private final long ts;
+		private final long dur;
+		private final long tid;
+		private final int id;
+		private final String argName;
+		private final Object argValue;
+		private Event(char phase, String name, String category, long ts, long dur, long tid, int id, String argName, Object argValue) {
+			this.phase = phase;
+			this.name = name;
+			this.category = category;
+			this.ts = ts;
+			this.dur = dur;
+			this.tid = tid;
+			this.id = id;
+			this.argName = argName;
+			this.argValue = argValue;
+		}
+	}
+
+	private Trace() {}
+
+	/**
+	 * Starts a span.
+	 * @return The start time to pass to <code>end</code>, or <code>0</code> if tracing is disabled.
+	 */
+	public static long begin() {
+		return ENABLED ? System.nanoTime() : 0;
+	}
+
+	/**
+	 * Ends a span on the calling thread.
+	 * @param name
+	 * @param category
+	 * @param begin From {@link #begin()}.
+	 */
+	public static void end(String name, String category, long begin) {
+		if (ENABLED) {
+			add('X', name, category, begin, System.nanoTime() - begin, 0, null, null);
+		}
+	}
+
+	/**
+	 * Ends a span on the calling thread with an argument, e.g. the number of bytes read.
+	 * @param name
+	 * @param category
+	 * @param begin From {@link #begin()}.
+	 * @param argName
+	 * @param argValue A number or a string.
+	 */
+	public static void end(String name, String category, long begin, String argName, Object argValue) {
+		if (ENABLED) {
+			add('X', name, category, begin, System.nanoTime() - begin, 0, argName, argValue);
+		}
+	}
+
+	/**
+	 * Ends a span that wasn't confined to one thread, e.g. from requesting an asset until it's
+	 * loaded. It's shown on its own track, on the thread that began it.
+	 * @param name
+	 * @param category
+	 * @param begin From {@link #begin()}.
+	 * @param tid The id of the thread that began the span.
+	 */
+	public static void endAsync(String name, String category, long begin, long tid) {
+		if (ENABLED) {
+			long end = System.nanoTime();
+			int id = ids.incrementAndGet();
+			add('b', name, category, begin, 0, id, null, null, tid);
+			add('e', name, category, end, 0, id, null, null, tid);
+		}
+	}
+
+	private static void add(char phase, String name, String category, long begin, long dur, int id, String argName, Object argValue) {
+		Thread t = Thread.currentThread();
+		if (!threads.containsKey(t.getId())) {
+			threads.put(t.getId(), t.getName());
+		}
+		add(phase, name, category, begin, dur, id, argName, argValue, t.getId());
+	}
+
+	private static void add(char phase, String name, String category, long begin, long dur, int id, String argName, Object argValue, long tid) {
+		// checked first so the count can't overflow however long tracing runs.
+		if (count.get() >= MAX_EVENTS || count.incrementAndGet() > MAX_EVENTS) {
+			return;
+		}
+		events.add(new Event(phase, name, category, begin - ORIGIN, dur, tid, id, argName, argValue));
+	}
+
+	/**
+	 * Returns the number of events kept.
+	 * @return
+	 */
+	public static int size() {
+		return Math.min(count.get(), MAX_EVENTS);
+	}
+
+	/**
+	 * Writes the trace to the file named by {@link #PROPERTY}, if tracing is enabled.
+	 * @throws IOException
+	 */
+	public static void write() throws IOException {
+		if (ENABLED) {
+			write(new File(FILE));
+		}
+	}
+
+	/**
+	 * Writes the events recorded so far as a Chrome trace.
+	 * @param file
+	 * @throws IOException
+	 */
+	public static void write(File file) throws IOException {
+		Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), AssetPack.UTF8));
+		try {
+			out.write("{\"displayTimeUnit\":\"ms\",\"traceEvents\":[\n");
+			boolean first = true;
+			for (Map.Entry<Long, String> t : threads.entrySet()) {
+				if (!first) {
+					out.write(",\n");
+				}
+				first = false;
+				out.write("{\"ph\":\"M\",\"name\":\"thread_name\",\"pid\":1,\"tid\":" + t.getKey() + ",\"args\":{\"name\":");
+				quote(out, t.getValue());
+				out.write("}}");
+			}
+			for (Event e : events) {
+				if (!first) {
+					out.write(",\n");
+				}
+				first = false;
+				out.write("{\"ph\":\"" + e.phase + "\",\"name\":");
+				quote(out, e.name);
+				out.write(",\"cat\":");
+				quote(out, e.category);
+				out.write(",\"pid\":1,\"tid\":" + e.tid + ",\"ts\":" + micros(e.ts));
+				if (e.phase == 'X') {
+					out.write(",\"dur\":" + micros(e.dur));
+				}
+				else {
+					out.write(",\"id\":" + e.id);
+				}
+				if (e.argName != null) {
+					out.write(",\"args\":{");
+					quote(out, e.argName);
+					out.write(':');
+					if (e.argValue instanceof Number) {
+						out.write(e.argValue.toString());
+					}
+					else {
+						quote(out, String.valueOf(e.argValue));
+					}
+					out.write('}');
+				}
+				out.write('}');
+			}
+			out.write("\n]}\n");
+		} finally {
+			out.close();
+		}
+	}
+
+	private static String micros(long nanos) {
+		return (nanos / 1000) + "." + (char)('0' + nanos % 1000 / 100);
+	}
+
+	private static void quote(Writer out, String s) throws IOException {
+		out.write('"');
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c == '"' || c == '\\') {
+				out.write('\\');
+				out.write(c);
+			}
+			else if (c < 0x20) {
+				out.write(String.format("\\u%04x", (int)c));
+			}
+			else {
+				out.write(c);
+			}
+		}
+		out.write('"');
+	}
+}
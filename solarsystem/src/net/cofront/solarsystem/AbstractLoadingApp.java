@@ -1,30 +1,39 @@
 package net.cofront.solarsystem;
 
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.List;
+import java.io.File;
+import java.io.IOException;
 import java.util.ResourceBundle;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
+import javax.management.JMException;
+
+import net.cofront.jme3.AssetPackLocator;
+import net.cofront.jme3.FrameMetrics;
+import net.cofront.jme3.FrameScheduler;
 import net.cofront.jme3.FutureAssetLoaderState;
+import net.cofront.jme3.LoadHistory;
+import net.cofront.jme3.MipImageLoader;
 import net.cofront.jme3.ProgressMonitorState;
+import net.cofront.jme3.Trace;
 import net.cofront.jme3.ui.nifty.ProgressBarControl;
 
 import com.jme3.app.SimpleApplication;
+import com.jme3.app.state.AbstractAppState;
 import com.jme3.asset.AssetKey;
 import com.jme3.material.Material;
 import com.jme3.material.MaterialDef;
-import com.jme3.math.Vector3f;
 import com.jme3.niftygui.NiftyJmeDisplay;
+import com.jme3.renderer.RenderManager;
 import com.jme3.renderer.queue.RenderQueue.Bucket;
 import com.jme3.scene.Geometry;
 import com.jme3.scene.Node;
 import com.jme3.scene.Spatial;
 import com.jme3.scene.shape.Sphere;
-import com.jme3.texture.Image;
 import com.jme3.texture.Texture;
-import com.jme3.texture.TextureCubeMap;
 
 import de.lessvoid.nifty.Nifty;
 import de.lessvoid.nifty.screen.Screen;
@@ -37,18 +46,63 @@ import de.lessvoid.nifty.screen.Screen;
  */
 public abstract class AbstractLoadingApp extends SimpleApplication {
 
-	protected List<Future<?>> futures = Collections.synchronizedList( new ArrayList<Future<?>>() );;
+	private final static Logger log = Logger.getLogger(AbstractLoadingApp.class.getName());
+
 	protected FutureAssetLoaderState loader;
+	protected FrameScheduler scheduler = new FrameScheduler();
 	protected ProgressMonitorState progress;
+	protected ProgressMonitorState.Batch loading;
+	// null to neither read nor write the load history
+	protected File loadHistory = LOAD_HISTORY.length() == 0 ? null : new File(LOAD_HISTORY);
 	protected NiftyJmeDisplay njd;
 	protected Nifty nifty;
 	protected ProgressBarControl progressBar;
+	protected final static String ASSET_PACK = "assets.pack";
+	// set -Dsolarsystem.loaderThreading=split to read textures on I/O threads and decode them on a thread per core.
+	// It only pays off with more cores than the shared pool's threads; compare with bench's LoaderBenchmark.
+	protected final static FutureAssetLoaderState.ThreadingMode LOADER_THREADING = 
+			"split".equalsIgnoreCase(System.getProperty("solarsystem.loaderThreading")) 
+			? FutureAssetLoaderState.ThreadingMode.SPLIT : FutureAssetLoaderState.ThreadingMode.SHARED;
+	// the last load times, which weight the progress bar. Kept in the working directory like error.log; 
+	// set -Dsolarsystem.loadHistory to move it, or to nothing to keep none.
+	protected final static String LOAD_HISTORY = System.getProperty("solarsystem.loadHistory", "loads.properties");
 	protected static ResourceBundle rb = ResourceBundle.getBundle("Locals/i18n");
+	// the window the frame metrics are reported over, in milliseconds. Set -Dsolarsystem.metricsLog to also log them, 
+	// and -Dsolarsystem.allocations to also record the bytes each stage allocates.
+	protected final static long METRICS_WINDOW = 10000;
+	// frames slower than this, in milliseconds, are reported to the flight recorder.
+	protected final static float FRAME_BUDGET = 1000f / 60;
 	
-	// add to the list of futures that the progress bar will monitor
-	protected <T> Future<T> monitor(Future<T> f) {
-		futures.add(f);
-		return f;
+	// each frame's stages, in the order they run. The app marks the end of statesStage and 
+	// updateStage at the start and end of simpleUpdate().
+	protected final FrameMetrics metrics = new FrameMetrics("net.cofront.solarsystem");
+	protected final FrameMetrics.Histogram frameStage = metrics.stage("frame");
+	protected final FrameMetrics.Histogram inputStage = metrics.stage("input");
+	protected final FrameMetrics.Histogram statesStage = metrics.stage("states");
+	protected final FrameMetrics.Histogram callbacksStage = metrics.stage("callbacks");
+	protected final FrameMetrics.Histogram updateStage = metrics.stage("simpleUpdate");
+	protected final FrameMetrics.Histogram sceneStage = metrics.stage("scene");
+	protected final FrameMetrics.Histogram renderStage = metrics.stage("render");
+	protected final FrameMetrics.Gauge queueDepth = metrics.gauge("loaderQueueDepth");
+	
+	// add to the batch that the progress bar will monitor; the name weights it by its last load time
+	protected <T> CompletableFuture<T> monitor(String name, CompletableFuture<T> f) {
+		return loading.add(name, f);
+	}
+	
+	/**
+	 * Queues the task in the {@link FrameScheduler}'s normal lane, which spreads a burst of
+	 * loader work over frames instead of running it all in the next one. Work that must run
+	 * in the next frame goes through {@link #enqueue(Callable)}.
+	 * @param callable
+	 * @return
+	 */
+	protected <V> Future<V> schedule(Callable<V> callable) {
+		return scheduler.enqueue(callable);
+	}
+	
+	protected <V> Future<V> schedule(Callable<V> callable, FrameScheduler.Lane lane) {
+		return scheduler.enqueue(callable, lane);
 	}
 	
 	protected Future<Material> loadMaterial(String name) {
@@ -56,12 +110,11 @@ public abstract class AbstractLoadingApp extends SimpleApplication {
 	}
 	
 	protected Future<Material> loadMaterial(String name, final Callable<Void> enqueued) {
-		Future<Material> f = loader.loadMaterial(name, new FutureAssetLoaderState.Callback<Material>() {
+		Future<Material> f = monitor(name, loader.loadMaterial(name, new FutureAssetLoaderState.Callback<Material>() {
 			public void run() {
-				enqueue(enqueued);
+				schedule(enqueued);
 			}
-		});
-		monitor(f);
+		}));
 		return f;
 	}
 	
@@ -78,20 +131,17 @@ public abstract class AbstractLoadingApp extends SimpleApplication {
 				}
 			}
 		};
-		Future<Material> f = loader.loadMaterial(name, callback);
-		monitor(f);
+		Future<Material> f = monitor(name, loader.loadMaterial(name, callback));
 		return f;
 	}
 	
 	protected Future<Texture> loadTexture(String name) {
-		Future<Texture> f = loader.loadTexture(name);
-		monitor(f);
+		Future<Texture> f = monitor(name, loader.loadTexture(name));
 		return f;
 	}
 	
 	protected Future<MaterialDef> loadMaterialDef(String name) {
-		Future<MaterialDef> f = loader.loadAsset(new AssetKey<MaterialDef>(name));
-		monitor(f);
+		Future<MaterialDef> f = monitor(name, loader.loadAsset(new AssetKey<MaterialDef>(name)));
 		return f;
 	}
 
@@ -100,13 +150,97 @@ public abstract class AbstractLoadingApp extends SimpleApplication {
 	 */
 	@Override
 	public void simpleInitApp() {
-		loader = new FutureAssetLoaderState(assetManager, 3);
+		File pack = new File(ASSET_PACK);
+		if (pack.isFile()) {
+			// assets not on the class path (e.g. in a shipped build) are read from the pack
+			assetManager.registerLocator(pack.getPath(), AssetPackLocator.class);
+		}
+		assetManager.registerLoader(MipImageLoader.class, "mip");
+		loader = new FutureAssetLoaderState(assetManager, LOADER_THREADING);
+		loader.setScheduler(scheduler, FrameScheduler.Lane.NORMAL);
 		progress = new ProgressMonitorState();
+		if (loadHistory != null) {
+			try {
+				progress.setHistory(LoadHistory.read(loadHistory));
+			} catch (IOException e) {
+				log.log(Level.WARNING, "Couldn't read the load history, loads are weighted equally.", e);
+			}
+		}
+		// attached first, so it runs before the other states and renders right after the scene is updated
+		stateManager.attach(new AbstractAppState() {
+			@Override
+			public void update(float tpf) {
+				metrics.mark(inputStage);
+			}
+			@Override
+			public void render(RenderManager rm) {
+				metrics.mark(sceneStage);
+			}
+		});
+		stateManager.attach(scheduler);
 		stateManager.attach(loader);
 		stateManager.attach(progress);
+		metrics.setBudget(FRAME_BUDGET);
+		if (Boolean.getBoolean("solarsystem.allocations") && !metrics.setAllocationTracking(true)) {
+			log.warning("Allocations can't be tracked on this VM.");
+		}
+		try {
+			metrics.start(METRICS_WINDOW, Boolean.getBoolean("solarsystem.metricsLog"));
+		} catch (JMException e) {
+			log.log(Level.WARNING, "Couldn't register the frame metrics.", e);
+		}
+	}
+	
+	/**
+	 * Times the frame's stages.
+	 * @see com.jme3.app.SimpleApplication#update()
+	 */
+	@Override
+	public void update() {
+		metrics.beginFrame();
+		super.update();
+		callbacksStage.record(scheduler.getLastNanos());
+		if (loader != null) {
+			queueDepth.set(loader.getQueueDepth());
+		}
+		metrics.endFrame(frameStage);
+	}
+	
+	/* (non-Javadoc)
+	 * @see com.jme3.app.SimpleApplication#simpleRender(com.jme3.renderer.RenderManager)
+	 */
+	@Override
+	public void simpleRender(RenderManager rm) {
+		metrics.mark(renderStage);
+	}
+	
+	/* (non-Javadoc)
+	 * @see com.jme3.app.Application#destroy()
+	 */
+	@Override
+	public void destroy() {
+		metrics.stop();
+		// loads can go on after the loading screen, e.g. to stream textures, so the loader lives as long as the app.
+		if (loader != null) {
+			loader.shutdown();
+		}
+		if (loadHistory != null && progress != null && progress.getHistory().size() > 0) {
+			try {
+				progress.getHistory().write(loadHistory);
+			} catch (IOException e) {
+				log.log(Level.WARNING, "Couldn't write the load history.", e);
+			}
+		}
+		try {
+			Trace.write();
+		} catch (IOException e) {
+			log.log(Level.WARNING, "Couldn't write the trace.", e);
+		}
+		super.destroy();
 	}
 	
 	public void initNifty(String xmlPath, String startScreen) {
+		long t = Trace.begin();
 		njd = new NiftyJmeDisplay(assetManager, inputManager, audioRenderer, guiViewPort);
 		guiViewPort.addProcessor(njd);
 		nifty = njd.getNifty();
@@ -114,6 +248,7 @@ public abstract class AbstractLoadingApp extends SimpleApplication {
 			nifty.fromXmlWithoutStartScreen(xmlPath);
 		else
 			nifty.fromXml(xmlPath, startScreen);
+		Trace.end("initNifty", "startup", t);
 	}
 	
 	public void initProgressBar(String screenName) {
@@ -121,27 +256,26 @@ public abstract class AbstractLoadingApp extends SimpleApplication {
 		progressBar = screen.findControl("progressBar", ProgressBarControl.class);
 	}
 	
-	protected Geometry makeSingleSidedSky(Texture sidesTexture, Material skyMat) {
+	/**
+	 * Makes a sky with the same image on every side. The image is sampled for each side by the
+	 * shader, so unlike a cube map it's uploaded once instead of six times.
+	 * @param sidesTexture
+	 * @return
+	 */
+	protected Geometry makeSharedFaceSky(Texture sidesTexture) {
 		Geometry sky = new Geometry("Sky", new Sphere(10, 10, 10, false, true));
 		sky.setQueueBucket(Bucket.Sky);
-        sky.setCullHint(Spatial.CullHint.Never);
-        // all sides will be the same
-        Image sides = sidesTexture.getImage();
-        Image cubeImage = new Image(sides.getFormat(), sides.getWidth(), sides.getHeight(), null);
-        for (int i=0;i<6;i++) {
-        	cubeImage.addData(sides.getData(0));
-        }
-        TextureCubeMap cubeMap = new TextureCubeMap(cubeImage);
-        cubeMap.setAnisotropicFilter(0);
-        cubeMap.setMagFilter(Texture.MagFilter.Bilinear);
-        cubeMap.setMinFilter(Texture.MinFilter.NearestNoMipMaps);
-        cubeMap.setWrap(Texture.WrapMode.EdgeClamp);
-        //Material skyMat = new Material(assetManager, "Common/MatDefs/Misc/Sky.j3md");
-        skyMat.setTexture("Texture", cubeMap);
-        skyMat.setVector3("NormalScale", Vector3f.UNIT_XYZ);
-        sky.setMaterial(skyMat);
-        sky.updateGeometricState();
-        return sky;
+		sky.setCullHint(Spatial.CullHint.Never);
+		sidesTexture.setAnisotropicFilter(0);
+		sidesTexture.setMagFilter(Texture.MagFilter.Bilinear);
+		// no mip maps, they'd show the seams between the sides
+		sidesTexture.setMinFilter(Texture.MinFilter.NearestNoMipMaps);
+		sidesTexture.setWrap(Texture.WrapMode.EdgeClamp);
+		Material skyMat = new Material(assetManager, "MatDefs/SharedFaceSky.j3md");
+		skyMat.setTexture("Texture", sidesTexture);
+		sky.setMaterial(skyMat);
+		sky.updateGeometricState();
+		return sky;
 	}
 
 }
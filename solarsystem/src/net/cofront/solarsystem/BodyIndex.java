@@ -0,0 +1,138 @@
+package net.cofront.solarsystem;
+
+import java.util.Arrays;
+
+import net.cofront.jme3.BoundingVolumeHierarchy;
+
+/**
+ * Bodies, each with a position and an influence radius (e.g. the sphere that slows the camera
+ * down as it approaches a planet), kept in a {@link BoundingVolumeHierarchy} of the spheres'
+ * boxes. Answers "which influence spheres contain this point" and "which body is nearest to
+ * this point" without visiting every body.
+ * <p>
+ * Adding or removing a body rebuilds the hierarchy on the next {@link #update()}.
+ * <p>
+ * Moving a body only marks the index as dirty. On the next {@link #update()} the hierarchy is
+ * refit bottom-up, which keeps the queries exact without re-partitioning; it is rebuilt from
+ * scratch only every {@link #getRebuildInterval()} refits, once the partitioning may have
+ * drifted far enough to hurt query times.
+ * <p>
+ * Not thread safe. Queries do not allocate.
+ */
+public class BodyIndex {
+
+	private final BoundingVolumeHierarchy bvh = new BoundingVolumeHierarchy();
+	// per body
+	private float[] pos = new float[16 * 3];
+	private float[] radius = new float[16];
+
+	public BodyIndex() {
+		bvh.setRebuildInterval(32);
+	}
+
+	/**
+	 * Adds a body. It's visible to queries after {@link #update()}.
+	 * @param x
+	 * @param y
+	 * @param z
+	 * @param r The influence radius.
+	 * @return The body's id. Ids of removed bodies are reused first, otherwise ids are assigned sequentially from zero.
+	 */
+	public int add(float x, float y, float z, float r) {
+		int id = bvh.add(x - r, y - r, z - r, x + r, y + r, z + r);
+		if (id >= radius.length) {
+			radius = Arrays.copyOf(radius, radius.length * 2);
+			pos = Arrays.copyOf(pos, radius.length * 3);
+		}
+		set(id, x, y, z, r);
+		return id;
+	}
+
+	/**
+	 * Removes a body. The change is visible to queries after {@link #update()}.
+	 * @param id
+	 */
+	public void remove(int id) {
+		bvh.remove(id);
+	}
+
+	/**
+	 * The number of bodies.
+	 * @return
+	 */
+	public int size() {
+		return bvh.size();
+	}
+
+	/**
+	 * Sets a body's location and influence radius. The change is visible to queries after {@link #update()}.
+	 * @param id
+	 * @param x
+	 * @param y
+	 * @param z
+	 * @param r
+	 */
+	public void set(int id, float x, float y, float z, float r) {
+		pos[id * 3] = x;
+		pos[id * 3 + 1] = y;
+		pos[id * 3 + 2] = z;
+		radius[id] = r;
+		bvh.set(id, x - r, y - r, z - r, x + r, y + r, z + r);
+	}
+
+	/**
+	 * Refits or rebuilds the hierarchy if any body changed since the last update.
+	 */
+	public void update() {
+		bvh.update();
+	}
+
+	/**
+	 * Finds the bodies whose influence sphere contains the point.
+	 * @param x
+	 * @param y
+	 * @param z
+	 * @param store Receives the body ids. Must be able to hold every body.
+	 * @return The number of ids written to <code>store</code>.
+	 */
+	public int findContaining(float x, float y, float z, int[] store) {
+		// the boxes containing the point, narrowed down to the spheres
+		int candidates = bvh.findContaining(x, y, z, store);
+		int found = 0;
+		for (int i = 0; i < candidates; i++) {
+			int id = store[i];
+			float dx = x - pos[id * 3];
+			float dy = y - pos[id * 3 + 1];
+			float dz = z - pos[id * 3 + 2];
+			float r = radius[id];
+			if (dx * dx + dy * dy + dz * dz <= r * r) {
+				store[found++] = id;
+			}
+		}
+		return found;
+	}
+
+	/**
+	 * Finds the body whose center is nearest to the point.
+	 * @param x
+	 * @param y
+	 * @param z
+	 * @return The body id or <code>-1</code> if the index is empty.
+	 */
+	public int findNearest(float x, float y, float z) {
+		// a sphere's box is centered on the sphere
+		return bvh.findNearest(x, y, z);
+	}
+
+	/**
+	 * The number of refits after which the hierarchy is rebuilt.
+	 * @return
+	 */
+	public int getRebuildInterval() {
+		return bvh.getRebuildInterval();
+	}
+
+	public void setRebuildInterval(int rebuildInterval) {
+		bvh.setRebuildInterval(rebuildInterval);
+	}
+}
@@ -0,0 +1,23 @@
+package net.cofront.solarsystem;
+
+import jdk.jfr.Category;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * A flight recorder event for moving every planet to a new date.
+ */
+@Name("net.cofront.Ephemeris")
+@Label("Ephemeris Update")
+@Category({"Solar System", "Ephemeris"})
+@StackTrace(false)
+class EphemerisEvent extends Event {
+
+	@Label("Bodies")
+	int bodies;
+
+	@Label("Days")
+	int days;
+}
@@ -0,0 +1,109 @@
+package net.cofront.solarsystem;
+
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+
+import com.jme3.font.BitmapCharacter;
+import com.jme3.font.BitmapCharacterSet;
+import com.jme3.util.BufferUtils;
+
+/**
+ * Lays out a line of text as glyph quads from a font's glyph atlas, for the batched text of
+ * {@link IndicatorLayer} and {@link HudLayer}. Unlike BitmapText it allocates nothing, so laying
+ * out from a reused buffer is free of garbage.
+ * <p>
+ * A laid out glyph is {@link #FLOATS} floats: the quad's x0, y0, x1, y1 relative to the line's
+ * origin (its top left corner, y up) and the texture coordinates u0, v0, u1, v1.
+ */
+final class GlyphLayout {
+
+	final static int FLOATS = 8;
+
+	private GlyphLayout() {
+	}
+
+	/**
+	 * Lays out text, skipping characters the font doesn't have.
+	 * @param cs The font's character set.
+	 * @param text
+	 * @param originX
+	 * @param originY
+	 * @param store Where the glyphs are written.
+	 * @param first The glyph in <code>store</code> to start at.
+	 * @param max The most glyphs to lay out.
+	 * @return The number of glyphs laid out.
+	 */
+	static int layout(BitmapCharacterSet cs, CharSequence text, float originX, float originY, float[] store, int first, int max) {
+		float scaleW = cs.getWidth();
+		float scaleH = cs.getHeight();
+		float penX = 0;
+		int count = 0;
+		BitmapCharacter prev = null;
+		for (int c = 0; c < text.length() && count < max; c++) {
+			char ch = text.charAt(c);
+			BitmapCharacter bc = cs.getCharacter(ch);
+			if (bc == null) {
+				continue;
+			}
+			if (prev != null) {
+				penX += prev.getKerning(ch);
+			}
+			int g = (first + count) * FLOATS;
+			float x0 = originX + penX + bc.getXOffset();
+			float y0 = originY - bc.getYOffset();
+			store[g] = x0;
+			store[g + 1] = y0;
+			store[g + 2] = x0 + bc.getWidth();
+			store[g + 3] = y0 - bc.getHeight();
+			store[g + 4] = bc.getX() / scaleW;
+			store[g + 5] = 1f - bc.getY() / scaleH;
+			store[g + 6] = (bc.getX() + bc.getWidth()) / scaleW;
+			store[g + 7] = 1f - (bc.getY() + bc.getHeight()) / scaleH;
+
+			penX += bc.getXAdvance();
+			prev = bc;
+			count++;
+		}
+		return count;
+	}
+
+	/**
+	 * Writes a glyph's texture coordinates to a quad in a texture coordinate buffer.
+	 * @param tc
+	 * @param quad
+	 * @param glyphs
+	 * @param glyph
+	 */
+	static void putTexCoords(FloatBuffer tc, int quad, float[] glyphs, int glyph) {
+		int g = glyph * FLOATS;
+		float u0 = glyphs[g + 4];
+		float v0 = glyphs[g + 5];
+		float u1 = glyphs[g + 6];
+		float v1 = glyphs[g + 7];
+		int t = quad * 8;
+		tc.put(t, u0).put(t + 1, v0);
+		tc.put(t + 2, u0).put(t + 3, v1);
+		tc.put(t + 4, u1).put(t + 5, v1);
+		tc.put(t + 6, u1).put(t + 7, v0);
+	}
+
+	// top-left, bottom-left, bottom-right, top-right
+	static void putQuad(FloatBuffer fb, int quad, float x0, float y0, float x1, float y1) {
+		int i = quad * 12;
+		fb.put(i, x0).put(i + 1, y0).put(i + 2, 0);
+		fb.put(i + 3, x0).put(i + 4, y1).put(i + 5, 0);
+		fb.put(i + 6, x1).put(i + 7, y1).put(i + 8, 0);
+		fb.put(i + 9, x1).put(i + 10, y0).put(i + 11, 0);
+	}
+
+	static IntBuffer quadIndices(int quads) {
+		IntBuffer ib = BufferUtils.createIntBuffer(quads * 6);
+		for (int q = 0; q < quads; q++) {
+			int v = q * 4;
+			ib.put(v).put(v + 1).put(v + 2);
+			ib.put(v).put(v + 2).put(v + 3);
+		}
+		ib.flip();
+		return ib;
+	}
+}
@@ -0,0 +1,380 @@
+package net.cofront.solarsystem;
+
+import java.nio.FloatBuffer;
+
+import com.jme3.font.BitmapCharacterSet;
+import com.jme3.font.BitmapFont;
+import com.jme3.font.BitmapFont.Align;
+import com.jme3.scene.Geometry;
+import com.jme3.scene.Mesh;
+import com.jme3.scene.Node;
+import com.jme3.scene.VertexBuffer;
+import com.jme3.scene.VertexBuffer.Type;
+import com.jme3.util.BufferUtils;
+
+/**
+ * Single line HUD readouts (the date, a body's distance, ...) drawn with one geometry holding
+ * the glyph quads of every line.
+ * <p>
+ * Each line is a slot with room for a fixed number of glyphs. Its text is written into the slot's
+ * buffer and committed:
+ * <pre>
+ * StringBuilder sb = hud.edit(slot);
+ * sb.append(name).append(' ');
+ * HudLayer.appendFixed(sb, distance, 2);
+ * hud.commit(slot);
+ * </pre>
+ * A commit only lays out the line when the text changed, and the last few layouts of each slot are
+ * kept, so text that flips between a few values (e.g. a warp factor) is only laid out once per value.
+ * The buffers are pushed to the renderer from {@link #updateLogicalState(float)}, and only when a
+ * line changed or moved, so a HUD that doesn't change costs nothing but the draw call.
+ * <p>
+ * Must only be used from the render thread.
+ */
+public class HudLayer extends Node {
+
+	private final static int INITIAL_SLOTS = 4;
+	private final static int INITIAL_GLYPHS = 64;
+	// layouts kept per slot
+	private final static int CACHED_LAYOUTS = 4;
+
+	private final BitmapFont font;
+	private final Mesh mesh = new Mesh();
+	private FloatBuffer pos;
+	private FloatBuffer tc;
+
+	// per slot: anchor x, y, alignment, visibility, text buffer
+	private float[] anchors = new float[INITIAL_SLOTS * 2];
+	private Align[] aligns = new Align[INITIAL_SLOTS];
+	private boolean[] visible = new boolean[INITIAL_SLOTS];
+	private StringBuilder[] buffers = new StringBuilder[INITIAL_SLOTS];
+	// per slot: first glyph in the mesh and the number of glyphs it has room for
+	private int[] glyphStart = new int[INITIAL_SLOTS];
+	private int[] glyphCapacity = new int[INITIAL_SLOTS];
+	// per slot: its cached layouts and which one is shown, -1 for none
+	private Layout[][] layouts = new Layout[INITIAL_SLOTS][];
+	private int[] shown = new int[INITIAL_SLOTS];
+	private int[] evict = new int[INITIAL_SLOTS];
+
+	private int slots;
+	private int glyphs;
+	private int allocatedGlyphs;
+	private int layoutCount;
+	private boolean dirty;
+
+	// a line laid out relative to its left edge
+	private static class Layout {
+		final char[] text;
+		int length;
+		final float[] glyphs;
+		int count;
+		float width;
+		Layout(int capacity) {
+			text = new char[capacity];
+			glyphs = new float[capacity * GlyphLayout.FLOATS];
+		}
+		boolean matches(CharSequence cs) {
+			if (cs.length() != length) {
+				return false;
+			}
+			for (int i = 0; i < length; i++) {
+				if (text[i] != cs.charAt(i)) {
+					return false;
+				}
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * @param name The node name.
+	 * @param font Text is rendered with the font's first page.
+	 */
+	public HudLayer(String name, BitmapFont font) {
+		super(name);
+		this.font = font;
+		allocateGlyphs(INITIAL_GLYPHS);
+		Geometry text = new Geometry(name + "-Text", mesh);
+		text.setMaterial(font.getPage(0));
+		text.setCullHint(CullHint.Never);
+		attachChild(text);
+	}
+
+	/**
+	 * Adds a line. It's empty and shown until it's given text.
+	 * @param capacity The most characters the line shows; longer text is cut short.
+	 * @param align Where the line is relative to its screen location.
+	 * @return The slot used to change, move and show/hide the line.
+	 */
+	public int add(int capacity, Align align) {
+		if (slots == buffers.length) {
+			allocateSlots(slots * 2);
+		}
+		int slot = slots++;
+		aligns[slot] = align;
+		visible[slot] = true;
+		buffers[slot] = new StringBuilder(capacity);
+		glyphStart[slot] = glyphs;
+		glyphCapacity[slot] = capacity;
+		layouts[slot] = new Layout[CACHED_LAYOUTS];
+		shown[slot] = -1;
+		glyphs += capacity;
+		dirty = true;
+		return slot;
+	}
+
+	/**
+	 * The number of lines.
+	 * @return
+	 */
+	public int size() {
+		return slots;
+	}
+
+	/**
+	 * Returns the slot's text buffer, emptied, to write the line's new text into. The line doesn't
+	 * change until {@link #commit(int)} is called.
+	 * @param slot
+	 * @return
+	 */
+	public StringBuilder edit(int slot) {
+		StringBuilder sb = buffers[slot];
+		sb.setLength(0);
+		return sb;
+	}
+
+	/**
+	 * Shows the text written to the slot's buffer, cut to the slot's capacity.
+	 * @param slot
+	 * @return Whether the text changed.
+	 */
+	public boolean commit(int slot) {
+		StringBuilder sb = buffers[slot];
+		if (sb.length() > glyphCapacity[slot]) {
+			sb.setLength(glyphCapacity[slot]);
+		}
+		Layout[] cache = layouts[slot];
+		if (shown[slot] != -1 && cache[shown[slot]].matches(sb)) {
+			return false;
+		}
+		int found = -1;
+		for (int i = 0; i < CACHED_LAYOUTS && found == -1; i++) {
+			if (cache[i] != null && cache[i].matches(sb)) {
+				found = i;
+			}
+		}
+		if (found == -1) {
+			found = evict[slot];
+			evict[slot] = (found + 1) % CACHED_LAYOUTS;
+			if (found == shown[slot]) {
+				found = evict[slot];
+				evict[slot] = (found + 1) % CACHED_LAYOUTS;
+			}
+			if (cache[found] == null) {
+				cache[found] = new Layout(glyphCapacity[slot]);
+			}
+			layout(cache[found], sb);
+		}
+		shown[slot] = found;
+		dirty = true;
+		return true;
+	}
+
+	/**
+	 * Sets the line's text.
+	 * @param slot
+	 * @param text
+	 * @return Whether the text changed.
+	 * @see #edit(int)
+	 */
+	public boolean setText(int slot, CharSequence text) {
+		edit(slot).append(text);
+		return commit(slot);
+	}
+
+	/**
+	 * Moves a line. The location is the top of the line, at its left edge, center or right edge
+	 * depending on its alignment.
+	 * @param slot
+	 * @param x
+	 * @param y
+	 */
+	public void setScreenLocation(int slot, float x, float y) {
+		int i = slot * 2;
+		if (anchors[i] != x || anchors[i + 1] != y) {
+			anchors[i] = x;
+			anchors[i + 1] = y;
+			dirty |= visible[slot];
+		}
+	}
+
+	/**
+	 * Shows or hides a line.
+	 * @param slot
+	 * @param visible
+	 */
+	public void setVisible(int slot, boolean visible) {
+		if (this.visible[slot] != visible) {
+			this.visible[slot] = visible;
+			dirty = true;
+		}
+	}
+
+	public boolean isVisible(int slot) {
+		return visible[slot];
+	}
+
+	/**
+	 * The width of the line's text.
+	 * @param slot
+	 * @return
+	 */
+	public float getLineWidth(int slot) {
+		return shown[slot] == -1 ? 0 : layouts[slot][shown[slot]].width;
+	}
+
+	public float getLineHeight() {
+		return font.getCharSet().getLineHeight();
+	}
+
+	/**
+	 * The number of times a line was laid out, i.e. text was committed that wasn't cached.
+	 * @return
+	 */
+	public int getLayoutCount() {
+		return layoutCount;
+	}
+
+	/**
+	 * Appends a number with a fixed number of decimals, without the garbage of
+	 * {@link StringBuilder#append(float)}.
+	 * @param sb
+	 * @param value
+	 * @param decimals 0 to 9.
+	 * @return <code>sb</code>
+	 */
+	public static StringBuilder appendFixed(StringBuilder sb, double value, int decimals) {
+		if (Double.isNaN(value) || Double.isInfinite(value)) {
+			return sb.append(value);
+		}
+		long scale = 1;
+		for (int i = 0; i < decimals; i++) {
+			scale *= 10;
+		}
+		long n = Math.round(Math.abs(value) * scale);
+		if (value < 0 && n != 0) {
+			sb.append('-');
+		}
+		sb.append(n / scale);
+		if (decimals > 0) {
+			sb.append('.');
+			long f = n % scale;
+			for (long d = scale / 10; d > 1 && f < d; d /= 10) {
+				sb.append('0');
+			}
+			sb.append(f);
+		}
+		return sb;
+	}
+
+	/* (non-Javadoc)
+	 * @see com.jme3.scene.Node#updateLogicalState(float)
+	 */
+	@Override
+	public void updateLogicalState(float tpf) {
+		super.updateLogicalState(tpf);
+		if (dirty) {
+			if (glyphs > allocatedGlyphs) {
+				allocateGlyphs(Math.max(allocatedGlyphs * 2, glyphs));
+			}
+			for (int slot = 0; slot < slots; slot++) {
+				writeSlot(slot);
+			}
+			mesh.getBuffer(Type.Position).updateData(pos);
+			mesh.getBuffer(Type.TexCoord).updateData(tc);
+			dirty = false;
+		}
+	}
+
+	private void layout(Layout l, StringBuilder sb) {
+		BitmapCharacterSet cs = font.getCharSet();
+		l.length = sb.length();
+		sb.getChars(0, l.length, l.text, 0);
+		l.count = GlyphLayout.layout(cs, sb, 0, 0, l.glyphs, 0, l.text.length);
+		// the same width BitmapText aligns by
+		l.width = font.getLineWidth(sb);
+		layoutCount++;
+	}
+
+	private void writeSlot(int slot) {
+		int first = glyphStart[slot];
+		int end = first + glyphCapacity[slot];
+		Layout l = shown[slot] == -1 ? null : layouts[slot][shown[slot]];
+		float x = anchors[slot * 2];
+		float y = anchors[slot * 2 + 1];
+		int count = 0;
+		if (visible[slot] && l != null) {
+			count = l.count;
+			// by whole pixels, so the glyphs stay sharp
+			if (aligns[slot] == Align.Center) {
+				x -= (int)(l.width / 2);
+			}
+			else if (aligns[slot] == Align.Right) {
+				x -= (int)l.width;
+			}
+		}
+		for (int g = 0; g < count; g++) {
+			int q = g * GlyphLayout.FLOATS;
+			GlyphLayout.putQuad(pos, first + g, x + l.glyphs[q], y + l.glyphs[q + 1],
+				x + l.glyphs[q + 2], y + l.glyphs[q + 3]);
+			GlyphLayout.putTexCoords(tc, first + g, l.glyphs, g);
+		}
+		// unused glyphs collapse to zero area
+		for (int g = first + count; g < end; g++) {
+			GlyphLayout.putQuad(pos, g, x, y, x, y);
+		}
+	}
+
+	private void allocateSlots(int capacity) {
+		float[] a = new float[capacity * 2];
+		System.arraycopy(anchors, 0, a, 0, slots * 2);
+		anchors = a;
+		Align[] al = new Align[capacity];
+		System.arraycopy(aligns, 0, al, 0, slots);
+		aligns = al;
+		boolean[] v = new boolean[capacity];
+		System.arraycopy(visible, 0, v, 0, slots);
+		visible = v;
+		StringBuilder[] b = new StringBuilder[capacity];
+		System.arraycopy(buffers, 0, b, 0, slots);
+		buffers = b;
+		int[] s = new int[capacity];
+		System.arraycopy(glyphStart, 0, s, 0, slots);
+		glyphStart = s;
+		int[] c = new int[capacity];
+		System.arraycopy(glyphCapacity, 0, c, 0, slots);
+		glyphCapacity = c;
+		Layout[][] l = new Layout[capacity][];
+		System.arraycopy(layouts, 0, l, 0, slots);
+		layouts = l;
+		int[] sh = new int[capacity];
+		System.arraycopy(shown, 0, sh, 0, slots);
+		shown = sh;
+		int[] e = new int[capacity];
+		System.arraycopy(evict, 0, e, 0, slots);
+		evict = e;
+	}
+
+	// every slot is rewritten after this, so the old buffers aren't copied. Quads past the
+	// last slot are zero, so they have no area.
+	private void allocateGlyphs(int capacity) {
+		pos = BufferUtils.createFloatBuffer(capacity * 12);
+		tc = BufferUtils.createFloatBuffer(capacity * 8);
+		mesh.setBuffer(Type.Position, 3, pos);
+		mesh.setBuffer(Type.TexCoord, 2, tc);
+		mesh.setBuffer(Type.Index, 3, GlyphLayout.quadIndices(capacity));
+		mesh.getBuffer(Type.Position).setUsage(VertexBuffer.Usage.Stream);
+		mesh.updateCounts();
+		allocatedGlyphs = capacity;
+	}
+}
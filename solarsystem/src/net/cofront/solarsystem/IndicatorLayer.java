@@ -0,0 +1,340 @@
+package net.cofront.solarsystem;
+
+import java.nio.FloatBuffer;
+
+import com.jme3.font.BitmapCharacterSet;
+import com.jme3.font.BitmapFont;
+import com.jme3.material.Material;
+import com.jme3.scene.Geometry;
+import com.jme3.scene.Mesh;
+import com.jme3.scene.Node;
+import com.jme3.scene.VertexBuffer;
+import com.jme3.scene.VertexBuffer.Type;
+import com.jme3.texture.Image;
+import com.jme3.util.BufferUtils;
+
+/**
+ * Screen space indicators for any number of bodies, drawn with two geometries: one mesh
+ * holding an icon quad per body and one mesh holding the glyph quads of every label, laid
+ * out from the font's glyph atlas.
+ * <p>
+ * Each indicator is a slot in the vertex buffers. Moving or hiding an indicator only
+ * rewrites the slot's positions (hidden slots collapse to zero area), so the scene graph
+ * is never modified after the slot is added. The buffers are pushed to the renderer once
+ * per frame from {@link #updateLogicalState(float)}, and only when something changed.
+ * <p>
+ * When decluttering is enabled, indicators that would overlap a higher priority indicator
+ * are suppressed (see {@link LabelDeclutter}). The pass only runs when an indicator moved or
+ * was shown/hidden, so its result is reused for as long as the camera and the bodies are still.
+ * <p>
+ * Must only be used from the render thread.
+ */
+public class IndicatorLayer extends Node {
+
+	private final static int INITIAL_SLOTS = 16;
+	private final static int INITIAL_GLYPHS = 128;
+
+	private final BitmapFont font;
+	private final float iconWidth;
+	private final float iconHeight;
+
+	private final Mesh iconMesh = new Mesh();
+	private final Mesh labelMesh = new Mesh();
+
+	private FloatBuffer iconPos;
+	private FloatBuffer labelPos;
+
+	// per slot: anchor x, y, requested and final visibility, declutter priority
+	private float[] anchors = new float[INITIAL_SLOTS * 2];
+	private boolean[] requested = new boolean[INITIAL_SLOTS];
+	private boolean[] visible = new boolean[INITIAL_SLOTS];
+	private float[] priorities = new float[INITIAL_SLOTS];
+	// per slot: minX, minY, maxX, maxY of the icon and label relative to the anchor
+	private float[] bounds = new float[INITIAL_SLOTS * 4];
+	// per slot: first glyph and glyph count in the label mesh
+	private int[] glyphStart = new int[INITIAL_SLOTS];
+	private int[] glyphCount = new int[INITIAL_SLOTS];
+	// per glyph: the quad relative to the slot anchor and its texture coordinates, see GlyphLayout
+	private float[] glyphQuads = new float[INITIAL_GLYPHS * GlyphLayout.FLOATS];
+
+	private int slots;
+	private int slotCapacity;
+	private int glyphs;
+	private int glyphCapacity;
+	private boolean dirty;
+
+	private LabelDeclutter declutter;
+	private int suppressed;
+
+	/**
+	 * @param name The node name.
+	 * @param font The label font. Labels are rendered with the font's first page.
+	 * @param iconMaterial The icon material. The size of its <code>ColorMap</code> is the icon size.
+	 */
+	public IndicatorLayer(String name, BitmapFont font, Material iconMaterial) {
+		super(name);
+		this.font = font;
+		Image icon = iconMaterial.getTextureParam("ColorMap").getTextureValue().getImage();
+		iconWidth = icon.getWidth();
+		iconHeight = icon.getHeight();
+
+		allocateSlots(INITIAL_SLOTS);
+		allocateGlyphs(INITIAL_GLYPHS);
+
+		Geometry icons = new Geometry(name + "-Icons", iconMesh);
+		icons.setMaterial(iconMaterial);
+		icons.setCullHint(CullHint.Never);
+		Geometry labels = new Geometry(name + "-Labels", labelMesh);
+		labels.setMaterial(font.getPage(0));
+		labels.setCullHint(CullHint.Never);
+		attachChild(icons);
+		attachChild(labels);
+	}
+
+	/**
+	 * Adds an indicator with a priority of zero.
+	 * @param label The label text.
+	 * @return The slot used to move and show/hide the indicator.
+	 * @see #add(String, float)
+	 */
+	public int add(String label) {
+		return add(label, 0);
+	}
+
+	/**
+	 * Adds an indicator. The indicator is hidden until {@link #setVisible(int, boolean)} is called.
+	 * @param label The label text.
+	 * @param priority Declutter priority, e.g. the body's size. Must not be negative.
+	 * @return The slot used to move and show/hide the indicator.
+	 */
+	public int add(String label, float priority) {
+		if (slots == slotCapacity) {
+			allocateSlots(slotCapacity * 2);
+		}
+		if (glyphs + label.length() > glyphCapacity) {
+			allocateGlyphs(Math.max(glyphCapacity * 2, glyphs + label.length()));
+		}
+		int slot = slots++;
+		glyphStart[slot] = glyphs;
+		glyphCount[slot] = layoutLabel(label, slot, glyphs);
+		glyphs += glyphCount[slot];
+		priorities[slot] = priority;
+		if (declutter != null) {
+			declutter.invalidateOrder();
+		}
+		return slot;
+	}
+
+	/**
+	 * The number of indicators.
+	 * @return
+	 */
+	public int size() {
+		return slots;
+	}
+
+	/**
+	 * Moves an indicator to the given screen coordinates.
+	 * @param slot
+	 * @param x
+	 * @param y
+	 */
+	public void setScreenLocation(int slot, float x, float y) {
+		int i = slot * 2;
+		if (anchors[i] != x || anchors[i + 1] != y) {
+			anchors[i] = x;
+			anchors[i + 1] = y;
+			dirty |= requested[slot];
+		}
+	}
+
+	/**
+	 * Shows or hides an indicator. A shown indicator may still be suppressed by the declutter pass.
+	 * @param slot
+	 * @param visible
+	 */
+	public void setVisible(int slot, boolean visible) {
+		if (requested[slot] != visible) {
+			requested[slot] = visible;
+			dirty = true;
+		}
+	}
+
+	/**
+	 * Whether the indicator was drawn in the last update, after decluttering.
+	 * @param slot
+	 * @return
+	 */
+	public boolean isVisible(int slot) {
+		return visible[slot];
+	}
+
+	/**
+	 * Enables or disables suppressing overlapping indicators.
+	 * @param enabled
+	 */
+	public void setDecluttering(boolean enabled) {
+		if (enabled && declutter == null) {
+			declutter = new LabelDeclutter(Math.max(iconWidth, iconHeight) * 4);
+			dirty = true;
+		}
+		else if (!enabled && declutter != null) {
+			declutter = null;
+			suppressed = 0;
+			dirty = true;
+		}
+	}
+
+	public boolean isDecluttering() {
+		return declutter != null;
+	}
+
+	/**
+	 * The number of shown indicators that the last declutter pass suppressed.
+	 * @return
+	 */
+	public int getSuppressedCount() {
+		return suppressed;
+	}
+
+	/* (non-Javadoc)
+	 * @see com.jme3.scene.Node#updateLogicalState(float)
+	 */
+	@Override
+	public void updateLogicalState(float tpf) {
+		super.updateLogicalState(tpf);
+		if (dirty) {
+			if (declutter != null) {
+				suppressed = declutter.run(slots, priorities, anchors, bounds, requested, visible);
+			}
+			else {
+				System.arraycopy(requested, 0, visible, 0, slots);
+			}
+			for (int slot = 0; slot < slots; slot++) {
+				writeSlot(slot);
+			}
+			iconMesh.getBuffer(Type.Position).updateData(iconPos);
+			labelMesh.getBuffer(Type.Position).updateData(labelPos);
+			dirty = false;
+		}
+	}
+
+	// lays out the label's glyphs starting at the given glyph, writes their texture coordinates
+	// and stores the bounds of the slot.
+	private int layoutLabel(String label, int slot, int first) {
+		BitmapCharacterSet cs = font.getCharSet();
+		// same placement as the old per-planet BitmapText: centered, just above the icon
+		float originX = -font.getLineWidth(label) / 2;
+		float originY = iconHeight / 2 + cs.getLineHeight();
+		int count = GlyphLayout.layout(cs, label, originX, originY, glyphQuads, first, label.length());
+		float minX = -iconWidth / 2;
+		float minY = -iconHeight / 2;
+		float maxX = iconWidth / 2;
+		float maxY = iconHeight / 2;
+		FloatBuffer tc = labelMesh.getFloatBuffer(Type.TexCoord);
+		for (int g = first; g < first + count; g++) {
+			int q = g * GlyphLayout.FLOATS;
+			minX = Math.min(minX, glyphQuads[q]);
+			minY = Math.min(minY, glyphQuads[q + 3]);
+			maxX = Math.max(maxX, glyphQuads[q + 2]);
+			maxY = Math.max(maxY, glyphQuads[q + 1]);
+			GlyphLayout.putTexCoords(tc, g, glyphQuads, g);
+		}
+		labelMesh.getBuffer(Type.TexCoord).updateData(tc);
+		bounds[slot * 4] = minX;
+		bounds[slot * 4 + 1] = minY;
+		bounds[slot * 4 + 2] = maxX;
+		bounds[slot * 4 + 3] = maxY;
+		return count;
+	}
+
+	private void writeSlot(int slot) {
+		float x = anchors[slot * 2];
+		float y = anchors[slot * 2 + 1];
+		boolean show = visible[slot];
+
+		float hw = iconWidth / 2;
+		float hh = iconHeight / 2;
+		if (show) {
+			GlyphLayout.putQuad(iconPos, slot, x - hw, y + hh, x + hw, y - hh);
+		}
+		else {
+			GlyphLayout.putQuad(iconPos, slot, x, y, x, y);
+		}
+
+		int end = glyphStart[slot] + glyphCount[slot];
+		for (int g = glyphStart[slot]; g < end; g++) {
+			if (show) {
+				int q = g * GlyphLayout.FLOATS;
+				GlyphLayout.putQuad(labelPos, g, x + glyphQuads[q], y + glyphQuads[q + 1],
+					x + glyphQuads[q + 2], y + glyphQuads[q + 3]);
+			}
+			else {
+				GlyphLayout.putQuad(labelPos, g, x, y, x, y);
+			}
+		}
+	}
+
+	private void allocateSlots(int capacity) {
+		if (slotCapacity > 0) {
+			float[] a = new float[capacity * 2];
+			System.arraycopy(anchors, 0, a, 0, slots * 2);
+			anchors = a;
+			boolean[] r = new boolean[capacity];
+			System.arraycopy(requested, 0, r, 0, slots);
+			requested = r;
+			boolean[] v = new boolean[capacity];
+			System.arraycopy(visible, 0, v, 0, slots);
+			visible = v;
+			float[] p = new float[capacity];
+			System.arraycopy(priorities, 0, p, 0, slots);
+			priorities = p;
+			float[] b = new float[capacity * 4];
+			System.arraycopy(bounds, 0, b, 0, slots * 4);
+			bounds = b;
+			int[] s = new int[capacity];
+			System.arraycopy(glyphStart, 0, s, 0, slots);
+			glyphStart = s;
+			int[] c = new int[capacity];
+			System.arraycopy(glyphCount, 0, c, 0, slots);
+			glyphCount = c;
+		}
+		FloatBuffer tc = BufferUtils.createFloatBuffer(capacity * 8);
+		for (int q = 0; q < capacity; q++) {
+			int t = q * 8;
+			tc.put(t, 0).put(t + 1, 1);
+			tc.put(t + 2, 0).put(t + 3, 0);
+			tc.put(t + 4, 1).put(t + 5, 0);
+			tc.put(t + 6, 1).put(t + 7, 1);
+		}
+		iconPos = BufferUtils.createFloatBuffer(capacity * 12);
+		iconMesh.setBuffer(Type.Position, 3, iconPos);
+		iconMesh.setBuffer(Type.TexCoord, 2, tc);
+		iconMesh.setBuffer(Type.Index, 3, GlyphLayout.quadIndices(capacity));
+		iconMesh.getBuffer(Type.Position).setUsage(VertexBuffer.Usage.Stream);
+		iconMesh.updateCounts();
+		slotCapacity = capacity;
+		dirty = true;
+	}
+
+	private void allocateGlyphs(int capacity) {
+		float[] q = new float[capacity * GlyphLayout.FLOATS];
+		System.arraycopy(glyphQuads, 0, q, 0, glyphs * GlyphLayout.FLOATS);
+		glyphQuads = q;
+		FloatBuffer tc = BufferUtils.createFloatBuffer(capacity * 8);
+		if (glyphCapacity > 0) {
+			FloatBuffer old = labelMesh.getFloatBuffer(Type.TexCoord);
+			for (int i = 0; i < glyphs * 8; i++) {
+				tc.put(i, old.get(i));
+			}
+		}
+		labelPos = BufferUtils.createFloatBuffer(capacity * 12);
+		labelMesh.setBuffer(Type.Position, 3, labelPos);
+		labelMesh.setBuffer(Type.TexCoord, 2, tc);
+		labelMesh.setBuffer(Type.Index, 3, GlyphLayout.quadIndices(capacity));
+		labelMesh.getBuffer(Type.Position).setUsage(VertexBuffer.Usage.Stream);
+		labelMesh.updateCounts();
+		glyphCapacity = capacity;
+		dirty = true;
+	}
+}
@@ -0,0 +1,178 @@
+package net.cofront.solarsystem;
+
+import java.util.Arrays;
+
+/**
+ * Suppresses overlapping screen space labels. Candidates are visited from the highest to the
+ * lowest priority and a candidate is only kept if its rectangle does not overlap a rectangle
+ * that was already kept. Kept rectangles are binned into a spatial hash of square cells, so each
+ * candidate only tests the few rectangles sharing its cells and a pass is linear in the number
+ * of candidates.
+ * <p>
+ * All working storage is reused between passes; nothing is allocated unless the number of
+ * candidates grows.
+ */
+public class LabelDeclutter {
+
+	private final static int EMPTY = -1;
+
+	private float cellSize;
+
+	// candidate slots ordered by descending priority
+	private int[] order = new int[0];
+	private long[] sortKeys = new long[0];
+	private boolean orderDirty;
+
+	// spatial hash: bucket -> first entry, entry -> next entry in bucket
+	private int[] buckets = new int[0];
+	private int[] entryCellX = new int[0];
+	private int[] entryCellY = new int[0];
+	private int[] entrySlot = new int[0];
+	private int[] entryNext = new int[0];
+	private int entries;
+
+	/**
+	 * @param cellSize The cell size in pixels. Should be about the size of a typical label.
+	 */
+	public LabelDeclutter(float cellSize) {
+		this.cellSize = cellSize;
+	}
+
+	public float getCellSize() {
+		return cellSize;
+	}
+
+	public void setCellSize(float cellSize) {
+		this.cellSize = cellSize;
+	}
+
+	/**
+	 * Must be called when slots are added or their priority changes.
+	 */
+	public void invalidateOrder() {
+		orderDirty = true;
+	}
+
+	/**
+	 * Runs a declutter pass.
+	 *
+	 * @param count The number of slots.
+	 * @param priorities Priority per slot. Must not be negative; higher priorities win.
+	 * @param anchors Screen location per slot (x, y).
+	 * @param bounds Rectangle per slot relative to the anchor (minX, minY, maxX, maxY).
+	 * @param requested Whether the slot wants to be shown.
+	 * @param store Receives whether each slot is shown.
+	 * @return The number of requested slots that were suppressed.
+	 */
+	public int run(int count, float[] priorities, float[] anchors, float[] bounds, boolean[] requested, boolean[] store) {
+		if (orderDirty || order.length != count) {
+			sort(count, priorities);
+		}
+		prepareHash(count);
+
+		int suppressed = 0;
+		float inv = 1f / cellSize;
+		for (int o = 0; o < count; o++) {
+			int slot = order[o];
+			if (!requested[slot]) {
+				store[slot] = false;
+				continue;
+			}
+			float x = anchors[slot * 2];
+			float y = anchors[slot * 2 + 1];
+			int b = slot * 4;
+			float minX = x + bounds[b];
+			float minY = y + bounds[b + 1];
+			float maxX = x + bounds[b + 2];
+			float maxY = y + bounds[b + 3];
+			int cx0 = (int)Math.floor(minX * inv);
+			int cy0 = (int)Math.floor(minY * inv);
+			int cx1 = (int)Math.floor(maxX * inv);
+			int cy1 = (int)Math.floor(maxY * inv);
+
+			if (overlaps(cx0, cy0, cx1, cy1, minX, minY, maxX, maxY, anchors, bounds)) {
+				store[slot] = false;
+				suppressed++;
+				continue;
+			}
+			store[slot] = true;
+			for (int cx = cx0; cx <= cx1; cx++) {
+				for (int cy = cy0; cy <= cy1; cy++) {
+					insert(cx, cy, slot);
+				}
+			}
+		}
+		return suppressed;
+	}
+
+	private boolean overlaps(int cx0, int cy0, int cx1, int cy1, float minX, float minY, float maxX, float maxY, float[] anchors, float[] bounds) {
+		for (int cx = cx0; cx <= cx1; cx++) {
+			for (int cy = cy0; cy <= cy1; cy++) {
+				for (int e = buckets[hash(cx, cy)]; e != EMPTY; e = entryNext[e]) {
+					if (entryCellX[e] != cx || entryCellY[e] != cy) {
+						continue;
+					}
+					int other = entrySlot[e];
+					float ox = anchors[other * 2];
+					float oy = anchors[other * 2 + 1];
+					int b = other * 4;
+					if (minX < ox + bounds[b + 2] && maxX > ox + bounds[b]
+							&& minY < oy + bounds[b + 3] && maxY > oy + bounds[b + 1]) {
+						return true;
+					}
+				}
+			}
+		}
+		return false;
+	}
+
+	private void insert(int cx, int cy, int slot) {
+		if (entries == entrySlot.length) {
+			int capacity = Math.max(16, entries * 2);
+			entryCellX = Arrays.copyOf(entryCellX, capacity);
+			entryCellY = Arrays.copyOf(entryCellY, capacity);
+			entrySlot = Arrays.copyOf(entrySlot, capacity);
+			entryNext = Arrays.copyOf(entryNext, capacity);
+		}
+		int h = hash(cx, cy);
+		int e = entries++;
+		entryCellX[e] = cx;
+		entryCellY[e] = cy;
+		entrySlot[e] = slot;
+		entryNext[e] = buckets[h];
+		buckets[h] = e;
+	}
+
+	private int hash(int cx, int cy) {
+		int h = cx * 73856093 ^ cy * 19349663;
+		return h & (buckets.length - 1);
+	}
+
+	private void prepareHash(int count) {
+		// keep the load factor at or below one kept label per bucket
+		int size = Integer.highestOneBit(Math.max(16, count) - 1) << 1;
+		if (buckets.length < size) {
+			buckets = new int[size];
+		}
+		Arrays.fill(buckets, EMPTY);
+		entries = 0;
+	}
+
+	// sorts on (priority bits, slot). non-negative floats sort the same as their int bits.
+	private void sort(int count, float[] priorities) {
+		if (sortKeys.length < count) {
+			sortKeys = new long[count];
+		}
+		if (order.length != count) {
+			order = new int[count];
+		}
+		for (int slot = 0; slot < count; slot++) {
+			sortKeys[slot] = ((long)Float.floatToIntBits(priorities[slot]) << 32) | slot;
+		}
+		Arrays.sort(sortKeys, 0, count);
+		for (int o = 0; o < count; o++) {
+			order[o] = (int)sortKeys[count - 1 - o];
+		}
+		orderDirty = false;
+	}
+}
@@ -1,15 +1,19 @@
 package net.cofront.solarsystem;
 
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
 import java.lang.Thread.UncaughtExceptionHandler;
-import java.text.DateFormat;
-import java.text.SimpleDateFormat;
+import java.text.DateFormatSymbols;
 import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.HashMap;
 import java.util.List;
+import java.util.ResourceBundle;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.Future;
-import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.function.Function;
 import java.util.logging.FileHandler;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -17,14 +21,21 @@ import java.util.logging.SimpleFormatter;
 
 import javax.vecmath.Vector3d;
 
+import net.cofront.jme3.FrameMetrics;
+import net.cofront.jme3.FrameScheduler;
 import net.cofront.jme3.FutureAssetLoaderState;
+import net.cofront.jme3.InputRecorder;
+import net.cofront.jme3.InputReplayer;
+import net.cofront.jme3.LoadPriority;
+import net.cofront.jme3.SkyState;
+import net.cofront.jme3.TextureStreamer;
+import net.cofront.jme3.Trace;
 import net.cofront.jme3.UserListener;
 import net.cofront.jme3.UserListener.UserAction;
 
-import com.jme3.asset.AssetKey;
 import com.jme3.bounding.BoundingSphere;
 import com.jme3.font.BitmapFont;
-import com.jme3.font.BitmapText;
+import com.jme3.font.BitmapFont.Align;
 import com.jme3.input.KeyInput;
 import com.jme3.input.MouseInput;
 import com.jme3.input.controls.KeyTrigger;
@@ -33,10 +44,10 @@ import com.jme3.input.controls.Trigger;
 import com.jme3.light.AmbientLight;
 import com.jme3.light.PointLight;
 import com.jme3.material.Material;
-import com.jme3.material.MaterialDef;
 import com.jme3.math.ColorRGBA;
 import com.jme3.math.FastMath;
 import com.jme3.math.Quaternion;
+import com.jme3.math.Vector2f;
 import com.jme3.math.Vector3f;
 import com.jme3.post.FilterPostProcessor;
 import com.jme3.post.filters.BloomFilter;
@@ -45,7 +56,6 @@ import com.jme3.scene.Geometry;
 import com.jme3.scene.Node;
 import com.jme3.scene.Spatial;
 import com.jme3.scene.Spatial.CullHint;
-import com.jme3.scene.shape.Quad;
 import com.jme3.scene.shape.Sphere;
 import com.jme3.system.AppSettings;
 import com.jme3.texture.Texture;
@@ -61,6 +71,26 @@ import com.jme3.util.TangentBinormalGenerator;
 public class Main extends AbstractLoadingApp {
 	
 	private final static Logger log = Logger.getLogger(Main.class.getName());
+	
+	// the width textures are loaded at before they're streamed in.
+	private final static int PLACEHOLDER_SIZE = 64;
+	// the memory streamed textures may take up, in MB. Set -Dsolarsystem.textureBudget for low-memory machines.
+	private final static long TEXTURE_BUDGET = Long.getLong("solarsystem.textureBudget", 256);
+	// set -Dsolarsystem.record to a file to record the session's input and frame times, and 
+	// -Dsolarsystem.replay to play one back, e.g. to profile a stutter a user saw.
+	private final static String RECORD = System.getProperty("solarsystem.record");
+	private final static String REPLAY = System.getProperty("solarsystem.replay");
+	// the fly cam's mappings, recorded with the user actions
+	private final static String[] FLYCAM_MAPPINGS = new String[] {
+		"FLYCAM_Left", "FLYCAM_Right", "FLYCAM_Up", "FLYCAM_Down",
+		"FLYCAM_StrafeLeft", "FLYCAM_StrafeRight", "FLYCAM_Forward", "FLYCAM_Backward",
+		"FLYCAM_ZoomIn", "FLYCAM_ZoomOut", "FLYCAM_RotateDrag", "FLYCAM_Rise", "FLYCAM_Lower"
+	};
+	
+	private final FrameMetrics.Histogram ephemerisStage = metrics.stage("ephemeris");
+	private final FrameMetrics.Counter bodiesUpdated = metrics.counter("bodiesUpdated");
+	// never committed, only asked whether the flight recorder wants ephemeris events.
+	private final EphemerisEvent ephemerisEvents = new EphemerisEvent();
 
 	static {
 		Thread.setDefaultUncaughtExceptionHandler(new UncaughtExceptionHandler() {
@@ -78,11 +108,19 @@ public class Main extends AbstractLoadingApp {
 
 	private Node sunNode = new Node();
 	private Node planetsNode = new Node();
-	private Node orbitsNode = new Node();
-	private Node indicatorsNode = new Node();
+	private OrbitBatch orbits;	// render thread
+	private IndicatorLayer indicators;
+	private TextureStreamer streamer;
+	private UserListener userActions;
+	private InputRecorder recorder;
+	private InputReplayer replayer;
+	
+	private BodyIndex bodyIndex;	// render thread
+	private int[] inside;
+	private SceneIndex sceneIndex;	// render thread
 	
 	private Vector3d v3dtmp1 = new Vector3d();	// render thread
-	private Vector3d v3dtmp2 = new Vector3d();  // not-render thread 
+	private Vector3d v3dtmp2 = new Vector3d();  // render thread, orbits
 	
 	private float sr_scale;	// sun radius scale
 	private float pr_scale;	// planet raidus scale
@@ -93,19 +131,23 @@ public class Main extends AbstractLoadingApp {
 	private Calendar date;
 	private boolean slow;
 	
-	private DateFormat df = new SimpleDateFormat("EEE, d MMM yyyy");
-	private Vector3f dateLoc = new Vector3f();
+	// the date readout, "EEE, d MMM yyyy" formatted again only when the date changes
+	private final String[] weekdays = DateFormatSymbols.getInstance().getShortWeekdays();
+	private final String[] months = DateFormatSymbols.getInstance().getShortMonths();
+	private long dateShown = Long.MIN_VALUE;
+	private Vector3f iLoc = new Vector3f();
 	
 	private Future<BitmapFont> f_font;
 	private Future<Material> f_indicator;
 	
-	private Spatial currentSky;
-	private Spatial skyMilkyway;
-	private Spatial skyClear;
+	private final static String SKY_MILKYWAY = "milkyway";
+	private final static String SKY_CLEAR = "clear";
+	private SkyState skies;
 	
 	private BloomFilter bf;
 	
-	private BitmapText dateText;
+	private HudLayer hud;
+	private int dateLine;
 	
 	private float minBlur = 0f;
 	private float maxBlur = 2.7f;
@@ -130,7 +172,14 @@ public class Main extends AbstractLoadingApp {
 
 	@Override
 	public void simpleInitApp() {
+		final long started = Trace.begin();
 		super.simpleInitApp();
+		loader.setPlaceholderSize(PLACEHOLDER_SIZE);
+		streamer = new TextureStreamer(loader, cam);
+		streamer.setBudget(TEXTURE_BUDGET * 1024 * 1024);
+		streamer.track(sunNode);
+		streamer.track(planetsNode);
+		stateManager.attach(streamer);
 		guiNode.detachAllChildren();
 		loadFPSText();
 
@@ -141,7 +190,13 @@ public class Main extends AbstractLoadingApp {
 				
 		rootNode.attachChild(sunNode);
 		rootNode.attachChild(planetsNode);
-		rootNode.attachChild(orbitsNode);
+		
+		Material orbitMaterial = new Material(assetManager, "Common/MatDefs/Misc/Unshaded.j3md");
+		orbitMaterial.setBoolean("VertexColor", true);
+		orbits = new OrbitBatch("Orbits", orbitMaterial);
+		orbits.setCullHint(CullHint.Never);
+		rootNode.attachChild(orbits);
+		sceneIndex = new SceneIndex(orbits);
 		
 		flyCam.setMoveSpeed(camSpeed);
 		flyCam.setDragToRotate(true);
@@ -171,54 +226,79 @@ public class Main extends AbstractLoadingApp {
 		date = Calendar.getInstance();
 		// Technically, the date should be UTC, but it doesn't really matter.
 		//date.setTimeZone(TimeZone.getTimeZone("UTC"));
+		initRecording();
 		
-		f_font = monitor(loader.loadFont("Interface/Fonts/Default.fnt"));
-		f_indicator = monitor(loader.loadMaterial("Materials/Indicators.j3m"));
-		
-		initDateText();
-		
-		// setup the sky
-		final Future<MaterialDef> f_clearSkyDef = loader.loadAsset(new AssetKey<MaterialDef>("Common/MatDefs/Misc/Sky.j3md"));
-		final Future<Texture> f_clearSkyTex = loader.loadTexture("Textures/Sky/GenericStars/face.jpg");
-		
-		final Future<Texture> f_skyTex_west = loadTexture("Textures/Sky/Milkyway/med/west.jpg");
-		final Future<Texture> f_skyTex_east = loadTexture("Textures/Sky/Milkyway/med/east.jpg");
-		final Future<Texture> f_skyTex_north = loadTexture("Textures/Sky/Milkyway/med/north.jpg");
-		final Future<Texture> f_skyTex_south = loadTexture("Textures/Sky/Milkyway/med/south.jpg");
-		final Future<Texture> f_skyTex_up = loadTexture("Textures/Sky/Milkyway/med/up.jpg");
-		final Future<Texture> f_skyTex_down = loadTexture("Textures/Sky/Milkyway/med/down.jpg");
-		
-		// attach the sky, indicators, and goto the main screen
-		// after everything as loaded.
-		progress.monitor(futures, progressBar, new Runnable() {
+		// attach the indicators and goto the main screen after everything has
+		// loaded; streamed textures only need their placeholders.
+		loading = progress.monitor(progressBar, new Runnable() {
 			public void run()  {
 				try {
-					Material skyMat = new Material(f_clearSkyDef.get());
-					skyClear = makeSingleSidedSky(f_clearSkyTex.get(), skyMat);				
-					skyMilkyway = SkyFactory.createSky(assetManager, 
-						f_skyTex_west.get(), 
-						f_skyTex_east.get(), 
-						f_skyTex_north.get(), 
-						f_skyTex_south.get(), 
-						f_skyTex_up.get(), 
-						f_skyTex_down.get(),
-						Vector3f.UNIT_XYZ
-					);
-					currentSky = skyMilkyway;
-					guiNode.attachChild(indicatorsNode);
+					long t = Trace.begin();
+					initIndicators();
+					Trace.end("initIndicators", "startup", t);
 					nifty.gotoScreen("main");
-					currentSky.updateGeometricState();
-					viewPort.attachScene(currentSky);
-					
-					// we're done with this.
-					loader.getExecutor().shutdown();
-					
+					Trace.end("startup", "startup", started);
 				} catch (Exception e) {
 					log.log(Level.SEVERE, "Error while executing post-loading tasks.", e);
 				}
 			}
 		});
 
+		f_font = monitor("Interface/Fonts/Default.fnt", loader.loadFont("Interface/Fonts/Default.fnt"));
+		f_indicator = monitor("Materials/Indicators.j3m", loader.loadMaterial("Materials/Indicators.j3m"));
+		
+		initDateText();
+		
+		// setup the sky. Only the one shown is loaded; the milky way loads after everything else.
+		skies = new SkyState(viewPort);
+		skies.add(SKY_MILKYWAY, new SkyState.Sky() {
+			@Override
+			public Future<Spatial> load() {
+				LoadPriority previous = loader.setCurrentPriority(new LoadPriority(-1));
+				final CompletableFuture<Texture> west = loader.loadTexture("Textures/Sky/Milkyway/med/west.jpg");
+				final CompletableFuture<Texture> east = loader.loadTexture("Textures/Sky/Milkyway/med/east.jpg");
+				final CompletableFuture<Texture> north = loader.loadTexture("Textures/Sky/Milkyway/med/north.jpg");
+				final CompletableFuture<Texture> south = loader.loadTexture("Textures/Sky/Milkyway/med/south.jpg");
+				final CompletableFuture<Texture> up = loader.loadTexture("Textures/Sky/Milkyway/med/up.jpg");
+				final CompletableFuture<Texture> down = loader.loadTexture("Textures/Sky/Milkyway/med/down.jpg");
+				loader.setCurrentPriority(previous);
+				return CompletableFuture.allOf(west, east, north, south, up, down).thenApply(new Function<Void, Spatial>() {
+					public Spatial apply(Void v) {
+						long t = Trace.begin();
+						Spatial sky = SkyFactory.createSky(assetManager, west.join(), east.join(), north.join(), 
+							south.join(), up.join(), down.join(), Vector3f.UNIT_XYZ);
+						Trace.end(SKY_MILKYWAY, "sky", t);
+						return sky;
+					}
+				});
+			}
+			@Override
+			public void release() {
+				for (String face : new String[] { "west", "east", "north", "south", "up", "down" }) {
+					loader.unloadTexture("Textures/Sky/Milkyway/med/" + face + ".jpg");
+				}
+			}
+		});
+		skies.add(SKY_CLEAR, new SkyState.Sky() {
+			@Override
+			public Future<Spatial> load() {
+				return loader.loadTexture("Textures/Sky/GenericStars/face.jpg").thenApply(new Function<Texture, Spatial>() {
+					public Spatial apply(Texture face) {
+						long t = Trace.begin();
+						Spatial sky = makeSharedFaceSky(face);
+						Trace.end(SKY_CLEAR, "sky", t);
+						return sky;
+					}
+				});
+			}
+			@Override
+			public void release() {
+				loader.unloadTexture("Textures/Sky/GenericStars/face.jpg");
+			}
+		});
+		stateManager.attach(skies);
+		skies.show(SKY_MILKYWAY);
+		
 		String[] planets = new String[] {
 			"Mercury",
 			"Venus",
@@ -239,8 +319,10 @@ public class Main extends AbstractLoadingApp {
 		clouds.add("Earth");
 		
 		// create the sun
+		long t = Trace.begin();
 		Sphere s = new Sphere(128, 128, OrbitalElements.Sun.radius * sr_scale);
 		TangentBinormalGenerator.generate(s);
+		Trace.end("Sun", "tessellate", t);
 		s.setTextureMode(Sphere.TextureMode.Projected);
 		Geometry sun = new Geometry("Sun", s) {
 			Quaternion r = new Quaternion();
@@ -252,6 +334,8 @@ public class Main extends AbstractLoadingApp {
 			}
 		};
 		sun.rotate(Planet.Z_ADJUSTMENT);
+		// the streamer only upgrades the textures of the sun and the planets, so only they start as placeholders.
+		boolean placeholders = loader.setLoadingPlaceholders(true);
 		loadMaterial("Materials/Sun.j3m", sun, sunNode);
 		
 		// blur filter for the sun
@@ -266,12 +350,15 @@ public class Main extends AbstractLoadingApp {
 		fpp.addFilter(bf);
 		viewPort.addProcessor(fpp);
 
-		// borrow the executor
-		ScheduledThreadPoolExecutor ex = loader.getExecutor();
+		ResourceBundle orbitColors = ResourceBundle.getBundle("Materials/Orbits");
 		for (final String name : planets) {
 			final Planet p = new Planet(name, getOrbitalElements(name), pr_scale);
 			p.adjustLocation(date, d_scale, v3dtmp1);
 			planetsNode.attachChild(p);
+			sceneIndex.addBody(p);
+			
+			// everything the planet loads follows its priority.
+			LoadPriority previous = loader.setCurrentPriority(p.getLoadPriority());
 			
 			// Load the planet material. Set the material to the geometry and attach the geo to the planet node
 			// in the render thread.
@@ -279,13 +366,15 @@ public class Main extends AbstractLoadingApp {
 			
 			// Load the rings and attach it in the render thread after it loads.
 			if (rings.containsKey(p.getName())) {
-				monitor(loader.loadMaterial("Materials/" + p.getName() + "-Rings.j3m", new FutureAssetLoaderState.Callback<Material>() {
+				String ringsName = "Materials/" + p.getName() + "-Rings.j3m";
+				monitor(ringsName, loader.loadMaterial(ringsName, new FutureAssetLoaderState.Callback<Material>() {
 					@Override
 					public void run() {
-						enqueue(new Callable<Void>() {
+						schedule(new Callable<Void>() {
 							@Override
 							public Void call() throws Exception {
 								p.addRings(get(), rings.get(name).floatValue());
+								sceneIndex.bodiesChanged();
 								return null;
 							}
 						});
@@ -295,55 +384,57 @@ public class Main extends AbstractLoadingApp {
 			
 			// Load the clouds and attach it in the render thread after it loads.
 			if (clouds.contains(p.getName())) {
-				monitor(loader.loadMaterial("Materials/" + p.getName() + "-Clouds.j3m", new FutureAssetLoaderState.Callback<Material>() {
+				String cloudsName = "Materials/" + p.getName() + "-Clouds.j3m";
+				monitor(cloudsName, loader.loadMaterial(cloudsName, new FutureAssetLoaderState.Callback<Material>() {
 					@Override
 					public void run() {
-						enqueue(new Callable<Void>() {
+						schedule(new Callable<Void>() {
 							@Override
 							public Void call() throws Exception {
 								p.addClouds(get());
+								sceneIndex.bodiesChanged();
 								return null;
 							}
-						});
+						}, FrameScheduler.Lane.LOW);
 					}
 				}));
 			}
 			
-			// Load the orbit and attach it in the render thread after it loads.
-			monitor(loader.loadMaterial("Materials/" + p.getName() + "-Orbit.j3m", new FutureAssetLoaderState.Callback<Material>() {
+			// Build the orbit and add it to the batch in the render thread after the first frames.
+			final ColorRGBA color = parseColor(orbitColors.getString(p.getName()));
+			schedule(new Callable<Void>() {
 				@Override
-				public void run() {
-					final Geometry orbit = p.createOrbit(date, v3dtmp2, d_scale);
-					orbit.setCullHint(CullHint.Never);
-					enqueue(new Callable<Void>() {
-						@Override
-						public Void call() throws Exception {
-							orbit.setMaterial(get());
-							orbitsNode.attachChild(orbit);
-							return null;
-						}
-					});
+				public Void call() throws Exception {
+					long t = Trace.begin();
+					float[] points = p.createOrbit(date, v3dtmp2, d_scale);
+					Trace.end(p.getName(), "orbit", t);
+					int o = orbits.add(points, color);
+					sceneIndex.addOrbit(p, o, points);
+					return null;
 				}
-			}));
+			}, FrameScheduler.Lane.LOW);
 			
-			// Add the indicator
-			monitor(ex.submit(new Runnable() {
-				@Override
-				public void run() {
-				    try {
-				    	p.setIndicator(createIndicator(p.getName()));
-				    } catch (Exception e) {
-				    	String name = "Unknown";
-				    	if (p != null) {
-				    		name = p.getName();
-				    	}
-				    	log.log(Level.SEVERE, "Error while setting indicator for: " + name, e);
-					}
-				}
-			}));			
+			loader.setCurrentPriority(previous);
 		} // for(Planets)
+		loader.setLoadingPlaceholders(placeholders);
+		
+		// ids in the body index are the planet's child index in planetsNode
+		bodyIndex = new BodyIndex();
+		for (Spatial child : planetsNode.getChildren()) {
+			Planet p = (Planet)child;
+			Vector3f loc = p.getLocalTranslation();
+			bodyIndex.add(loc.x, loc.y, loc.z, p.getBoundingSphere().getRadius());
+		}
+		inside = new int[bodyIndex.size()];
+		Trace.end("simpleInitApp", "startup", started);
 	} // simpleInitApp() 
 	
+	// a color written as red, green, blue and alpha separated by spaces.
+	private static ColorRGBA parseColor(String s) {
+		String[] c = s.trim().split("\\s+");
+		return new ColorRGBA(Float.parseFloat(c[0]), Float.parseFloat(c[1]), Float.parseFloat(c[2]), Float.parseFloat(c[3]));
+	}
+
 	public OrbitalElements getOrbitalElements(String name) {
 		Class<OrbitalElements> oeClass = OrbitalElements.class;
 		OrbitalElements oe = null;
@@ -359,7 +450,7 @@ public class Main extends AbstractLoadingApp {
 	 * Add all of the user actions.
 	 */
 	protected void setupInput() {
-		UserListener userActions = new UserListener();
+		userActions = new UserListener();
 		userActions.register(new UserAction() {
 			@Override
 			public String getName() {
@@ -473,6 +564,25 @@ public class Main extends AbstractLoadingApp {
 			}
 			
 		});
+		userActions.register(new UserAction() {
+			@Override
+			public String getName() {
+				return "select";
+			}
+			@Override
+			public Trigger[] getTriggers() {
+				return new Trigger[] { new MouseButtonTrigger(MouseInput.BUTTON_RIGHT) };
+			}
+			@Override
+			public void onAction(boolean isPressed, float tpf) {
+				if (isPressed == false) {
+					Planet p = pickPlanet();
+					if (p != null) {
+						lookAtPlanet(p);
+					}
+				}
+			}
+		});
 		userActions.register(new UserAction() {
 			@Override
 			public String getName() {
@@ -652,13 +762,7 @@ public class Main extends AbstractLoadingApp {
 			@Override
 			public void onAction(boolean isPressed, float tpf) {
 				if (isPressed) {
-					synchronized(date) {
-						date.add(Calendar.DAY_OF_YEAR, 1);
-						for(Spatial s : planetsNode.getChildren()) {
-							Planet p = (Planet)s;
-							p.adjustLocation(date, d_scale, v3dtmp1);
-						}
-					}
+					advanceDate(1);
 				}
 				else {
 					time = 0;
@@ -670,13 +774,7 @@ public class Main extends AbstractLoadingApp {
 				time += tpf;
 				stepTime += tpf;
 				if (time > threshold && stepTime > step) {
-					synchronized(date) {
-						date.add(Calendar.DAY_OF_YEAR, 1);
-						for(Spatial s : planetsNode.getChildren()) {
-							Planet p = (Planet)s;
-							p.adjustLocation(date, d_scale, v3dtmp1);
-						}
-					}
+					advanceDate(1);
 					stepTime = 0;
 				}
 			}
@@ -698,13 +796,7 @@ public class Main extends AbstractLoadingApp {
 			@Override
 			public void onAction(boolean isPressed, float tpf) {
 				if (isPressed) {
-					synchronized(date) {
-						date.add(Calendar.DAY_OF_YEAR, -1);
-						for(Spatial s : planetsNode.getChildren()) {
-							Planet p = (Planet)s;
-							p.adjustLocation(date, d_scale, v3dtmp1);
-						}
-					}
+					advanceDate(-1);
 				}
 				else {
 					time = 0;
@@ -716,13 +808,7 @@ public class Main extends AbstractLoadingApp {
 				time += tpf;
 				stepTime += tpf;
 				if (time > threshold && stepTime > step) {
-					synchronized(date) {
-						date.add(Calendar.DAY_OF_YEAR, -1);
-						for(Spatial s : planetsNode.getChildren()) {
-							Planet p = (Planet)s;
-							p.adjustLocation(date, d_scale, v3dtmp1);
-						}
-					}
+					advanceDate(-1);
 					stepTime = 0;
 				}
 			}
@@ -732,6 +818,118 @@ public class Main extends AbstractLoadingApp {
 		userActions.bind(inputManager);
 	}
 	
+	/**
+	 * Starts recording or replaying the session, if asked to. A replay starts at the recorded date
+	 * and takes the keyboard and mouse away from the camera and the user actions.
+	 */
+	protected void initRecording() {
+		String[] actions = userActions.getUserActions().keySet().toArray(new String[0]);
+		try {
+			if (REPLAY != null) {
+				replayer = InputReplayer.read(new File(REPLAY));
+				date.setTimeInMillis(replayer.getStartMillis());
+				userActions.unbind(inputManager);
+				inputManager.removeListener(flyCam);
+				replayer.replay(userActions, actions);
+				replayer.replay(flyCam, FLYCAM_MAPPINGS);
+				timer = replayer;
+			}
+			else if (RECORD != null) {
+				recorder = new InputRecorder(timer, inputManager, new FileOutputStream(RECORD), date.getTimeInMillis());
+				recorder.record(actions);
+				recorder.record(FLYCAM_MAPPINGS);
+				timer = recorder;
+			}
+		} catch (IOException e) {
+			log.log(Level.SEVERE, "Couldn't start recording or replaying the session.", e);
+		}
+	}
+	
+	/**
+	 * Moves the date by the given number of days and moves the planets accordingly.
+	 * @param days
+	 */
+	public void advanceDate(int days) {
+		long start = System.nanoTime();
+		EphemerisEvent event = null;
+		if (ephemerisEvents.isEnabled()) {
+			event = new EphemerisEvent();
+			event.begin();
+		}
+		synchronized(date) {
+			date.add(Calendar.DAY_OF_YEAR, days);
+			for(Spatial s : planetsNode.getChildren()) {
+				Planet p = (Planet)s;
+				p.adjustLocation(date, d_scale, v3dtmp1);
+			}
+		}
+		updateBodyIndex();
+		sceneIndex.bodiesChanged();
+		ephemerisStage.record(System.nanoTime() - start);
+		bodiesUpdated.add(planetsNode.getQuantity());
+		if (event != null) {
+			event.end();
+			if (event.shouldCommit()) {
+				event.bodies = planetsNode.getQuantity();
+				event.days = days;
+				event.commit();
+			}
+		}
+	}
+	
+	/**
+	 * Sets the date and moves the planets to it.
+	 * @param c
+	 */
+	public void setDate(Calendar c) {
+		synchronized(date) {
+			date.setTimeInMillis(c.getTimeInMillis());
+		}
+		advanceDate(0);
+	}
+	
+	// ids in the body index are the planet's child index in planetsNode
+	private void updateBodyIndex() {
+		List<Spatial> planets = planetsNode.getChildren();
+		for (int i = 0; i < planets.size(); i++) {
+			Planet p = (Planet)planets.get(i);
+			Vector3f loc = p.getLocalTranslation();
+			bodyIndex.set(i, loc.x, loc.y, loc.z, p.getBoundingSphere().getRadius());
+		}
+	}
+	
+	/**
+	 * Returns the planet with the given name, e.g. <code>Earth</code>.
+	 * @param name
+	 * @return The planet, or <code>null</code> if there's none by that name.
+	 */
+	public Planet getPlanet(String name) {
+		return (Planet)planetsNode.getChild(name);
+	}
+	
+	/**
+	 * Returns the planet closest to the camera.
+	 * @return
+	 */
+	public Planet getNearestPlanet() {
+		Vector3f camLoc = cam.getLocation();
+		int i = bodyIndex.findNearest(camLoc.x, camLoc.y, camLoc.z);
+		return i == -1 ? null : (Planet)planetsNode.getChild(i);
+	}
+	
+	/**
+	 * Returns the planet (or the planet of the orbit) under the cursor, or under the 
+	 * center of the screen when the mouse is aiming the camera.
+	 * @return
+	 */
+	public Planet pickPlanet() {
+		if (flyCam.isDragToRotate()) {
+			Vector2f cursor = replayer != null ? replayer.getCursorPosition() : inputManager.getCursorPosition();
+			return sceneIndex.pick(cam, cursor.x, cursor.y);
+		}
+		return sceneIndex.pick(cam, cam.getWidth() / 2f, cam.getHeight() / 2f);
+	}
+	
 	public void lookAtPlanet(Planet p) {		
 		Vector3f pLoc = p.getLocalTranslation().clone();
 		Vector3f dir = pLoc.clone().normalizeLocal();
@@ -747,8 +945,27 @@ public class Main extends AbstractLoadingApp {
 		cam.lookAt(p.getLocalTranslation(), Vector3f.UNIT_Y);
 	}
 	
+	/**
+	 * Loads the planets in view first, largest on screen first, then the rest by their apparent size.
+	 */
+	private void updateLoadPriorities() {
+		Vector3f camLoc = cam.getLocation();
+		List<Spatial> planets = planetsNode.getChildren();
+		for (int n = 0; n < planets.size(); n++) {
+			Planet p = (Planet)planets.get(n);
+			float size = p.getExtent() / Math.max(p.getLocalTranslation().distance(camLoc), FastMath.ZERO_TOLERANCE);
+			boolean visible = p.getCullHint() != CullHint.Always;
+			p.getLoadPriority().set(visible ? 1 + size : size / (1 + size));
+		}
+	}
+	
 	@Override
 	public void simpleUpdate(float tpf) {
+		metrics.mark(statesStage);
+		if (replayer != null && replayer.isDone()) {
+			log.log(Level.INFO, "Replayed " + replayer.getFrames() + " frames.");
+			stop();
+		}
 		updateDateText();
 		
 		boolean outside = cam.contains(sunNode.getWorldBound()).equals( FrustumIntersect.Outside );
@@ -766,36 +983,42 @@ public class Main extends AbstractLoadingApp {
 			bf.setEnabled(true);
 		}
 		
+		sceneIndex.cull(cam);
+		
+		if (loader.getQueueDepth() > 0) {
+			updateLoadPriorities();
+		}
+		
 		Vector3f camLoc = cam.getLocation();		
 		float newSpeed = camSpeed;
 		
-		for(Spatial s : planetsNode.getChildren()) {
-			if (s instanceof Planet) {
-				// adjust cam speed
-				Planet p = (Planet)s;
-				BoundingSphere bs = p.getBoundingSphere();
-				boolean bound = bs.contains(camLoc);
-				if (bound) {
-					float d = bs.distanceTo(camLoc);
-					float dlogd = FastMath.pow(d, 2f) * FastMath.log(d);
-					float rlogr = FastMath.pow(bs.getRadius(), 2f) * FastMath.log(bs.getRadius());
-					newSpeed *= dlogd / rlogr;
-				}
-				
-				// update indicators
-				Node i = p.getIndicator();
-				if (i != null) {
-					Vector3f pLoc = p.getWorldTranslation();
-					Vector3f iLoc = cam.getScreenCoordinates(pLoc);
-					i.setLocalTranslation(iLoc);
-					// close to the planet or it's behind the camera
-					if (bound || iLoc.z > 1) {
-						i.removeFromParent();
-					}
-					else if (! indicatorsNode.hasChild(i) ) {
-						indicatorsNode.attachChild(i);
-					}
-					i.setLocalTranslation(iLoc);
+		// adjust cam speed for each planet the camera is approaching
+		bodyIndex.update();
+		// bodies may have been added since the last frame, and the store must hold them all.
+		if (inside.length < bodyIndex.size()) {
+			inside = new int[Math.max(bodyIndex.size(), inside.length * 2)];
+		}
+		int insideCount = bodyIndex.findContaining(camLoc.x, camLoc.y, camLoc.z, inside);
+		for (int k = 0; k < insideCount; k++) {
+			Planet p = (Planet)planetsNode.getChild(inside[k]);
+			BoundingSphere bs = p.getBoundingSphere();
+			float d = p.getLocalTranslation().distance(camLoc);
+			float dlogd = FastMath.pow(d, 2f) * FastMath.log(d);
+			float rlogr = FastMath.pow(bs.getRadius(), 2f) * FastMath.log(bs.getRadius());
+			newSpeed *= dlogd / rlogr;
+		}
+		
+		// update indicators
+		if (indicators != null) {
+			List<Spatial> planets = planetsNode.getChildren();
+			for (int n = 0; n < planets.size(); n++) {
+				Planet p = (Planet)planets.get(n);
+				int i = p.getIndicator();
+				if (i != -1) {
+					cam.getScreenCoordinates(p.getWorldTranslation(), iLoc);
+					indicators.setScreenLocation(i, iLoc.x, iLoc.y);
+					// hide when close to the planet or it's behind the camera
+					indicators.setVisible(i, !(isInside(n, insideCount) || iLoc.z > 1));
 				}
 			}
 		}
@@ -809,17 +1032,39 @@ public class Main extends AbstractLoadingApp {
 			newSpeed = minSpeed;
 		}
 		flyCam.setMoveSpeed(newSpeed);
+		metrics.mark(updateStage);
+	}
+	
+	/* (non-Javadoc)
+	 * @see net.cofront.solarsystem.AbstractLoadingApp#destroy()
+	 */
+	@Override
+	public void destroy() {
+		if (recorder != null) {
+			recorder.close();
+		}
+		super.destroy();
+	}
+	
+	// whether the camera is inside the planet's sphere of influence this frame
+	private boolean isInside(int planet, int insideCount) {
+		for (int k = 0; k < insideCount; k++) {
+			if (inside[k] == planet) {
+				return true;
+			}
+		}
+		return false;
 	}
 	
 	/**
 	 * Sets the display of the orbital paths on and off.
 	 */
 	public void toggleOrbits() {
-		if (rootNode.hasChild(orbitsNode)) {
-			orbitsNode.removeFromParent();
+		if (orbits.getCullHint() == CullHint.Always) {
+			orbits.setCullHint(CullHint.Never);
 		}
 		else {
-			rootNode.attachChild(orbitsNode);
+			orbits.setCullHint(CullHint.Always);
 		}
 	}
 	
@@ -827,11 +1072,14 @@ public class Main extends AbstractLoadingApp {
 	 * Sets the display of the planet indicators on and off.
 	 */
 	public void toggleIndicators() {
-		if (guiNode.hasChild(indicatorsNode)) {
-			indicatorsNode.removeFromParent();
+		if (indicators == null) {
+			return;
+		}
+		if (indicators.getCullHint() == CullHint.Always) {
+			indicators.setCullHint(CullHint.Inherit);
 		}
 		else {
-			guiNode.attachChild(indicatorsNode);
+			indicators.setCullHint(CullHint.Always);
 		}
 	}
 	
@@ -852,51 +1100,33 @@ public class Main extends AbstractLoadingApp {
 	}
 	
 	/**
-	 * Swaps between the milky way and a clear sky.
+	 * Swaps between the milky way and a clear sky. The sky that was shown is released.
 	 */
 	public void toggleSky() {
-		viewPort.detachScene(currentSky);
-		if (currentSky == skyMilkyway) {
-			currentSky = skyClear;
-		}
-		else {
-			currentSky = skyMilkyway;
-		}
-		currentSky.updateGeometricState();
-		viewPort.attachScene(currentSky);
+		skies.show(skies.getNext());
 	}
 	
 	/**
-	 * Creates the gui indicator for a planet.
+	 * Creates the indicator layer and adds an indicator for each planet.
 	 * 
-	 * @param planetName
-	 * @return
 	 * @throws Exception
 	 */
-	protected Node createIndicator(String planetName) throws Exception {
-		Material m = f_indicator.get();
-		Texture t = m.getTextureParam("ColorMap").getTextureValue();
-		int w = t.getImage().getWidth();
-		int h = t.getImage().getHeight();
-		Quad q = new Quad(w, h);
-		Geometry g = new Geometry(planetName + "-Indicatotr", q);
-		g.setMaterial(m);
-		
-		BitmapText bt = new BitmapText(f_font.get(), false);
-		bt.setText(rb.getString(planetName));
-	    bt.setLocalTranslation(-1 * bt.getLineWidth() / 2 , h/2 + bt.getLineHeight(), 0);
-	    
-	    final Node indicator = new Node(g.getName());
-	    indicator.attachChild(bt);
-	    indicator.attachChild(g.center());
-	    
-	    return indicator;
+	protected void initIndicators() throws Exception {
+		indicators = new IndicatorLayer("Indicators", f_font.get(), f_indicator.get());
+		for(Spatial s : planetsNode.getChildren()) {
+			Planet p = (Planet)s;
+			// larger bodies win when indicators overlap
+			p.setIndicator(indicators.add(rb.getString(p.getName()), p.getOrbitalElements().getRadius()));
+		}
+		indicators.setDecluttering(true);
+		guiNode.attachChild(indicators);
 	}
 
 	protected void initDateText() {
 		try {
-			dateText = new BitmapText(f_font.get(), false);
-			guiNode.attachChild(dateText);
+			hud = new HudLayer("Hud", f_font.get());
+			dateLine = hud.add(32, Align.Right);
+			guiNode.attachChild(hud);
 		} catch (Exception e) {
 			log.log(Level.SEVERE, "Error initializing date text.", e);
 		}
@@ -905,13 +1135,28 @@ public class Main extends AbstractLoadingApp {
 	
 	public void updateDateText() {
 		if (date != null) {
-			String s = df.format(date.getTime());
-			dateText.setText(s);
-			int w = viewPort.getCamera().getWidth();
-			int dw = (int)dateText.getLineWidth();
-			int dh = (int)dateText.getLineHeight();
-			dateLoc.set(w - dw - 5, dh, 0);
-			dateText.setLocalTranslation(dateLoc);
+			synchronized(date) {
+				long millis = date.getTimeInMillis();
+				if (millis != dateShown) {
+					appendDate(hud.edit(dateLine), date);
+					hud.commit(dateLine);
+					dateShown = millis;
+				}
+			}
+			// right aligned, 5 pixels from the edge
+			hud.setScreenLocation(dateLine, viewPort.getCamera().getWidth() - 5, hud.getLineHeight());
+		}
+	}
+	
+	// same as SimpleDateFormat("EEE, d MMM yyyy") without the garbage
+	private StringBuilder appendDate(StringBuilder sb, Calendar c) {
+		sb.append(weekdays[c.get(Calendar.DAY_OF_WEEK)]).append(", ");
+		sb.append(c.get(Calendar.DAY_OF_MONTH)).append(' ');
+		sb.append(months[c.get(Calendar.MONTH)]).append(' ');
+		int year = c.get(Calendar.YEAR);
+		for (int d = 1000; d > 1 && year < d; d /= 10) {
+			sb.append('0');
 		}
+		return sb.append(year);
 	}
 }
@@ -0,0 +1,238 @@
+package net.cofront.solarsystem;
+
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+
+import com.jme3.material.Material;
+import com.jme3.math.ColorRGBA;
+import com.jme3.scene.Geometry;
+import com.jme3.scene.Mesh;
+import com.jme3.scene.VertexBuffer;
+import com.jme3.scene.VertexBuffer.Type;
+import com.jme3.util.BufferUtils;
+
+/**
+ * Every orbit in one line mesh, drawn with a single draw call. Each orbit owns a range of
+ * vertices (position and color) and the range of line indices connecting them.
+ * <p>
+ * An orbit's points can be rewritten in place with {@link #set(int, float[])}; the orbit only
+ * moves to a new range if it grows past the range it was given. Hiding an orbit collapses its
+ * index range onto a single vertex, so nothing in the mesh layout or the scene graph changes.
+ * The buffers are pushed to the renderer from {@link #updateLogicalState(float)}, and only
+ * the ones that changed.
+ * <p>
+ * The material must use vertex colors, e.g. <code>Unshaded.j3md</code> with <code>VertexColor</code> set.
+ * Must only be used from the render thread.
+ */
+public class OrbitBatch extends Geometry {
+
+	private final static int INITIAL_VERTICES = 1024;
+	private final static int INITIAL_ORBITS = 16;
+
+	private FloatBuffer positions;
+	private FloatBuffer colors;
+	private IntBuffer indices;
+	private int vertexCapacity;
+	private int vertices;
+
+	// per orbit: first vertex, reserved vertices, used vertices, visibility
+	private int[] first = new int[INITIAL_ORBITS];
+	private int[] reserved = new int[INITIAL_ORBITS];
+	private int[] used = new int[INITIAL_ORBITS];
+	private boolean[] visible = new boolean[INITIAL_ORBITS];
+	private int orbits;
+
+	private boolean positionsDirty;
+	private boolean colorsDirty;
+	private boolean indicesDirty;
+
+	public OrbitBatch(String name, Material material) {
+		super(name, new Mesh());
+		mesh.setMode(Mesh.Mode.Lines);
+		setMaterial(material);
+		allocate(INITIAL_VERTICES);
+	}
+
+	/**
+	 * Adds a visible orbit.
+	 * @param points The orbit as a polyline (x, y, z per point). Close the orbit by repeating the first point.
+	 * @param color
+	 * @return The orbit's index.
+	 */
+	public int add(float[] points, ColorRGBA color) {
+		if (orbits == first.length) {
+			int capacity = orbits * 2;
+			first = copyOf(first, capacity);
+			reserved = copyOf(reserved, capacity);
+			used = copyOf(used, capacity);
+			boolean[] v = new boolean[capacity];
+			System.arraycopy(visible, 0, v, 0, orbits);
+			visible = v;
+		}
+		int o = orbits++;
+		visible[o] = true;
+		reserve(o, points.length / 3);
+		write(o, points);
+		setColor(o, color);
+		return o;
+	}
+
+	/**
+	 * Rewrites an orbit's points.
+	 * @param orbit
+	 * @param points
+	 */
+	public void set(int orbit, float[] points) {
+		int count = points.length / 3;
+		if (count > reserved[orbit]) {
+			// the old range is abandoned; it stays collapsed so it draws nothing.
+			ColorRGBA color = getColor(orbit, new ColorRGBA());
+			collapse(orbit);
+			reserve(orbit, count);
+			setColor(orbit, color);
+		}
+		write(orbit, points);
+	}
+
+	/**
+	 * Sets the color of every vertex of an orbit.
+	 * @param orbit
+	 * @param color
+	 */
+	public void setColor(int orbit, ColorRGBA color) {
+		for (int v = first[orbit]; v < first[orbit] + reserved[orbit]; v++) {
+			colors.put(v * 4, color.r).put(v * 4 + 1, color.g).put(v * 4 + 2, color.b).put(v * 4 + 3, color.a);
+		}
+		colorsDirty = true;
+	}
+
+	public ColorRGBA getColor(int orbit, ColorRGBA store) {
+		int v = first[orbit] * 4;
+		store.set(colors.get(v), colors.get(v + 1), colors.get(v + 2), colors.get(v + 3));
+		return store;
+	}
+
+	/**
+	 * Shows or hides an orbit.
+	 * @param orbit
+	 * @param visible
+	 */
+	public void setVisible(int orbit, boolean visible) {
+		if (this.visible[orbit] != visible) {
+			this.visible[orbit] = visible;
+			writeIndices(orbit);
+		}
+	}
+
+	public boolean isVisible(int orbit) {
+		return visible[orbit];
+	}
+
+	public int size() {
+		return orbits;
+	}
+
+	/* (non-Javadoc)
+	 * @see com.jme3.scene.Spatial#updateLogicalState(float)
+	 */
+	@Override
+	public void updateLogicalState(float tpf) {
+		super.updateLogicalState(tpf);
+		if (positionsDirty) {
+			mesh.getBuffer(Type.Position).updateData(positions);
+			mesh.updateBound();
+			updateModelBound();
+			positionsDirty = false;
+		}
+		if (colorsDirty) {
+			mesh.getBuffer(Type.Color).updateData(colors);
+			colorsDirty = false;
+		}
+		if (indicesDirty) {
+			mesh.getBuffer(Type.Index).updateData(indices);
+			indicesDirty = false;
+		}
+	}
+
+	private void reserve(int orbit, int count) {
+		if (vertices + count > vertexCapacity) {
+			allocate(Math.max(vertexCapacity * 2, vertices + count));
+		}
+		first[orbit] = vertices;
+		reserved[orbit] = count;
+		used[orbit] = 0;
+		vertices += count;
+	}
+
+	private void write(int orbit, float[] points) {
+		int v0 = first[orbit];
+		int count = points.length / 3;
+		for (int i = 0; i < points.length; i++) {
+			positions.put(v0 * 3 + i, points[i]);
+		}
+		// park unused vertices on the last point so the bound stays tight
+		for (int v = count; v < reserved[orbit]; v++) {
+			for (int a = 0; a < 3; a++) {
+				positions.put((v0 + v) * 3 + a, points[points.length - 3 + a]);
+			}
+		}
+		used[orbit] = count;
+		positionsDirty = true;
+		writeIndices(orbit);
+	}
+
+	// a line per pair of consecutive points, or every index on the first vertex when hidden
+	private void writeIndices(int orbit) {
+		int v0 = first[orbit];
+		for (int s = 0; s < reserved[orbit] - 1; s++) {
+			int i = (v0 + s) * 2;
+			if (visible[orbit] && s < used[orbit] - 1) {
+				indices.put(i, v0 + s).put(i + 1, v0 + s + 1);
+			}
+			else {
+				indices.put(i, v0).put(i + 1, v0);
+			}
+		}
+		indicesDirty = true;
+	}
+
+	private void collapse(int orbit) {
+		boolean v = visible[orbit];
+		visible[orbit] = false;
+		writeIndices(orbit);
+		visible[orbit] = v;
+	}
+
+	private void allocate(int capacity) {
+		FloatBuffer p = BufferUtils.createFloatBuffer(capacity * 3);
+		FloatBuffer c = BufferUtils.createFloatBuffer(capacity * 4);
+		// one line index pair per vertex; the last vertex of every orbit leaves its pair collapsed
+		IntBuffer ib = BufferUtils.createIntBuffer(capacity * 2);
+		for (int i = 0; i < vertices * 3; i++) {
+			p.put(i, positions.get(i));
+		}
+		for (int i = 0; i < vertices * 4; i++) {
+			c.put(i, colors.get(i));
+		}
+		for (int i = 0; i < vertices * 2; i++) {
+			ib.put(i, indices.get(i));
+		}
+		positions = p;
+		colors = c;
+		indices = ib;
+		vertexCapacity = capacity;
+		mesh.setBuffer(Type.Position, 3, positions);
+		mesh.setBuffer(Type.Color, 4, colors);
+		mesh.setBuffer(Type.Index, 2, indices);
+		mesh.getBuffer(Type.Position).setUsage(VertexBuffer.Usage.Dynamic);
+		mesh.updateCounts();
+		mesh.updateBound();
+		updateModelBound();
+	}
+
+	private static int[] copyOf(int[] a, int length) {
+		int[] b = new int[length];
+		System.arraycopy(a, 0, b, 0, Math.min(a.length, length));
+		return b;
+	}
+}
@@ -0,0 +1,23 @@
+package net.cofront.solarsystem;
+
+import jdk.jfr.Category;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * A flight recorder event for sampling a planet's orbit.
+ */
+@Name("net.cofront.OrbitBuild")
+@Label("Orbit Build")
+@Category({"Solar System", "Ephemeris"})
+@StackTrace(false)
+class OrbitEvent extends Event {
+
+	@Label("Body")
+	String body;
+
+	@Label("Points")
+	int points;
+}
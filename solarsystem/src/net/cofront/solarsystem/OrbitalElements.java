@@ -409,6 +409,18 @@ public class OrbitalElements {
 	 * @param flipAxes x=y, y=z, z=x
 	 */
 	public void getHeliocentricPosition(Calendar c, Vector3d store, boolean flipAxes) {
+		getHeliocentricPosition(getDaysJ2000(c), store, flipAxes);
+	}
+	/**
+	 * Calculates the x, y, and z heliocentric coordinates at the given time, without
+	 * reading a {@link Calendar}.
+	 * 
+	 * @param t the number of days since epoch J2000, see {@link #getDaysJ2000(Calendar)}.
+	 * @param store the vector to store the x, y, and z coordinates.
+	 * @param flipAxes x=y, y=z, z=x
+	 * @see #getHeliocentricPosition(Calendar, Vector3d, boolean)
+	 */
+	public void getHeliocentricPosition(double t, Vector3d store, boolean flipAxes) {
 		/*
 		double a = semimajor_axis;
 		double e = eccentricity;
@@ -419,9 +431,6 @@ public class OrbitalElements {
 		double P = orbital_period;
 		*/
 		
-		// fractional days
-		double t = getDaysJ2000(c);
-		
 		// T0 = 0
 		// M = M0 + ( TWO_PI * ( t - T0 ) / P )
 		double M = M0 + ( TWO_PI * ( t ) / P );
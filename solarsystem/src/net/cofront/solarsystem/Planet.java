@@ -4,18 +4,19 @@ import java.util.Calendar;
 
 import javax.vecmath.Vector3d;
 
+import net.cofront.jme3.LoadPriority;
+import net.cofront.jme3.Trace;
+
 import com.jme3.bounding.BoundingSphere;
 import com.jme3.material.Material;
 import com.jme3.math.FastMath;
 import com.jme3.math.Quaternion;
-import com.jme3.math.Spline;
 import com.jme3.math.Vector3f;
 import com.jme3.renderer.queue.RenderQueue.Bucket;
 import com.jme3.renderer.queue.RenderQueue.ShadowMode;
 import com.jme3.scene.Geometry;
 import com.jme3.scene.Node;
 import com.jme3.scene.Spatial;
-import com.jme3.scene.shape.Curve;
 import com.jme3.scene.shape.Quad;
 import com.jme3.scene.shape.Sphere;
 import com.jme3.scene.shape.Sphere.TextureMode;
@@ -34,18 +35,23 @@ public class Planet extends Node {
 	private String name;
 	private Geometry g;
 	private BoundingSphere bs;
-	private Node indicator;
+	private int indicator = -1;
 	private float r_scale;
+	private float extent;
 	private Geometry clouds;
 	private float time;
+	private final LoadPriority loadPriority = new LoadPriority();
 	
 	public Planet(String name, final OrbitalElements oe, float r_scale) {
 		this.name = name;
 		this.oe = oe;
 		this.r_scale = r_scale;
 		this.time = 0;
+		long t = Trace.begin();
 		Sphere s = new Sphere(64, 64, r_scale * oe.radius);
+		extent = r_scale * oe.radius;
 		TangentBinormalGenerator.generate(s);
+		Trace.end(name, "tessellate", t);
 		s.setTextureMode(TextureMode.Projected);
 		// this is used to slow down the camera as it approaches.
 		bs = new BoundingSphere(oe.radius * r_scale * 20, getWorldTranslation());
@@ -110,11 +116,19 @@ public class Planet extends Node {
 		return g;
 	}
 	
-	public void setIndicator(Node indicator) {
+	/**
+	 * Sets the planet's slot in the {@link IndicatorLayer}.
+	 * @param indicator
+	 */
+	public void setIndicator(int indicator) {
 		this.indicator = indicator;
 	}
 	
-	public Node getIndicator() {
+	/**
+	 * The planet's slot in the {@link IndicatorLayer} or <code>-1</code> if it has no indicator.
+	 * @return
+	 */
+	public int getIndicator() {
 		return indicator;
 	}
 
@@ -130,6 +144,23 @@ public class Planet extends Node {
 		return oe;
 	}
 	
+	/**
+	 * The radius of a sphere around the planet's center that encloses the planet, 
+	 * its clouds and its rings.
+	 * @return
+	 */
+	public float getExtent() {
+		return extent;
+	}
+	
+	/**
+	 * The priority of the planet's assets that are still loading.
+	 * @return
+	 */
+	public LoadPriority getLoadPriority() {
+		return loadPriority;
+	}
+	
 	public void adjustLocation(Calendar c, float d_scale, Vector3d tmp) {
 		if (tmp == null) {
 			tmp = new Vector3d();
@@ -148,6 +179,8 @@ public class Planet extends Node {
 		float size = r_scale * ringMaxRadius;
 		// Box q = new Box(size, size, size);
 		Quad q = new Quad(size, size);
+		// half the diagonal of the ring quad
+		extent = Math.max(extent, size * FastMath.sqrt(2) / 2);
 		Geometry g = new Geometry(name + "-Rings", q);
 		g.setMaterial(m);
 		g.rotate(Z_ADJUSTMENT);
@@ -158,7 +191,10 @@ public class Planet extends Node {
 	}
 	
 	public void addClouds(Material m) {
+		long t = Trace.begin();
 		Sphere s = new Sphere(64, 64, r_scale * oe.radius * 1.01f);
+		Trace.end(name, "tessellate clouds", t);
+		extent = Math.max(extent, r_scale * oe.radius * 1.01f);
 		Geometry g = new Geometry(name + "-Clouds", s);
 		g.setMaterial(m);
 		g.rotate(Z_ADJUSTMENT);
@@ -210,8 +246,18 @@ public class Planet extends Node {
 	}
 	*/
 	
-	public Geometry createOrbit(Calendar c, Vector3d v3dtmp2, float d_scale) {
-		Geometry g = null;
+	/**
+	 * Samples one full orbit starting at the given date.
+	 * 
+	 * @param c
+	 * @param v3dtmp2
+	 * @param d_scale
+	 * @return The orbit as a closed polyline (x, y, z per point); the last point repeats the first.
+	 * @see OrbitBatch
+	 */
+	public float[] createOrbit(Calendar c, Vector3d v3dtmp2, float d_scale) {
+		OrbitEvent event = new OrbitEvent();
+		event.begin();
 		synchronized(v3dtmp2) {
 			c = (Calendar)c.clone();
 			double lastStep = oe.getOrbitalPeriod();
@@ -220,24 +266,39 @@ public class Planet extends Node {
 			int step = (int)oe.getOrbitalPeriod() / 365;
 			if (step < 1) step = 1;
 			
-			Spline spline = new Spline();
+			int count = 2;
+			for (int i=step;i<=lastStep;i+=step) {
+				count++;
+			}
+			float[] points = new float[count * 3];
+			
 			oe.getHeliocentricPosition(c, v3dtmp2, true);
 			v3dtmp2.scale(d_scale);
-			Vector3f nowPos = v3f(v3dtmp2, null);
-			spline.addControlPoint(nowPos);	
+			put(v3dtmp2, points, 0);
 			
+			int n = 1;
 			for (int i=step;i<=lastStep;i+=step) {
 				c.add(Calendar.DAY_OF_YEAR, step);
 				oe.getHeliocentricPosition(c, v3dtmp2, true);
 				v3dtmp2.scale(d_scale);
-				Vector3f pos = v3f(v3dtmp2, null);
-				spline.addControlPoint(pos);
+				put(v3dtmp2, points, n++);
 			}
-			spline.addControlPoint(nowPos);	
-			Curve curve = new Curve(spline, 1);
-			g = new Geometry(null, curve);
+			// close the orbit
+			System.arraycopy(points, 0, points, n * 3, 3);
+			event.end();
+			if (event.shouldCommit()) {
+				event.body = name;
+				event.points = count;
+				event.commit();
+			}
+			return points;
 		}
-		return g;
+	}
+	
+	private static void put(Vector3d v3d, float[] store, int point) {
+		store[point * 3] = (float)v3d.x;
+		store[point * 3 + 1] = (float)v3d.y;
+		store[point * 3 + 2] = (float)v3d.z;
 	}
 	
 	
@@ -258,8 +319,5 @@ public class Planet extends Node {
 	public void updateLogicalState(float tpf) {
 		super.updateLogicalState(tpf);
 		bs.setCenter(getWorldTranslation());
-		if (indicator != null) {
-			
-		}
 	}
 }
@@ -0,0 +1,244 @@
+package net.cofront.solarsystem;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import net.cofront.jme3.BoundingVolumeHierarchy;
+
+import com.jme3.math.FastMath;
+import com.jme3.math.Ray;
+import com.jme3.math.Vector2f;
+import com.jme3.math.Vector3f;
+import com.jme3.renderer.Camera;
+import com.jme3.scene.Spatial.CullHint;
+
+/**
+ * Culls and picks planets and their orbits with one {@link BoundingVolumeHierarchy}.
+ * Each planet is one item; each orbit is split into runs of {@value #ORBIT_RUN} line
+ * segments so a picked or culled orbit only tests the part of the curve near the ray or
+ * the frustum.
+ * <p>
+ * Planets move when the date changes; {@link #bodiesChanged()} refits the hierarchy
+ * instead of rebuilding it. Orbits don't move. Culling only touches the planets and orbits
+ * that came into or went out of view, so a still camera costs little more than the walk
+ * down the hierarchy.
+ * <p>
+ * Must only be used from the render thread.
+ */
+public class SceneIndex {
+
+	/** Number of orbit line segments per item. */
+	public final static int ORBIT_RUN = 16;
+
+	/** Pick tolerance in pixels for orbits and small planets. */
+	public final static float PICK_PIXELS = 4;
+
+	private final BoundingVolumeHierarchy bvh = new BoundingVolumeHierarchy();
+
+	private final List<Planet> bodies = new ArrayList<Planet>();
+	private final OrbitBatch orbits;
+
+	// per item: the planet, orbit index (-1 for bodies), and the first orbit vertex
+	private final List<Planet> itemPlanet = new ArrayList<Planet>();
+	private int[] itemOrbit = new int[16];
+	private int[] itemStart = new int[16];
+	private int[] bodyItem = new int[16];
+	// per orbit in the batch
+	private final List<float[]> orbitPoints = new ArrayList<float[]>();
+
+	// per orbit in the batch: the number of its items in view
+	private int[] orbitRunsVisible = new int[16];
+
+	private final Ray ray = new Ray();
+	private final Vector2f screen = new Vector2f();
+	private final Vector3f near = new Vector3f();
+	private final Vector3f far = new Vector3f();
+
+	private final BoundingVolumeHierarchy.RayTest rayTest = new BoundingVolumeHierarchy.RayTest() {
+		@Override
+		public float intersect(int item, Ray ray, float tolerance) {
+			if (itemOrbit[item] == -1) {
+				return intersectBody(itemPlanet.get(item), ray, tolerance);
+			}
+			return intersectOrbit(orbitPoints.get(itemOrbit[item]), itemStart[item], ray, tolerance);
+		}
+	};
+
+	private final BoundingVolumeHierarchy.VisibilityListener visibilityListener = new BoundingVolumeHierarchy.VisibilityListener() {
+		@Override
+		public void visibilityChanged(int item, boolean visible) {
+			int o = itemOrbit[item];
+			if (o == -1) {
+				itemPlanet.get(item).setCullHint(visible ? CullHint.Inherit : CullHint.Always);
+			}
+			else {
+				orbitRunsVisible[o] += visible ? 1 : -1;
+				orbits.setVisible(o, orbitRunsVisible[o] > 0);
+			}
+		}
+	};
+
+	/**
+	 * @param orbits The batch holding the orbits that will be added.
+	 */
+	public SceneIndex(OrbitBatch orbits) {
+		this.orbits = orbits;
+	}
+
+	/**
+	 * Adds a planet. It's hidden until it's culled into view.
+	 * @param p
+	 */
+	public void addBody(Planet p) {
+		Vector3f c = p.getLocalTranslation();
+		float r = p.getExtent();
+		int item = bvh.add(c.x - r, c.y - r, c.z - r, c.x + r, c.y + r, c.z + r);
+		ensureItems(item + 1);
+		itemPlanet.add(p);
+		itemOrbit[item] = -1;
+		if (bodies.size() == bodyItem.length) {
+			bodyItem = grow(bodyItem);
+		}
+		bodyItem[bodies.size()] = item;
+		bodies.add(p);
+		p.setCullHint(CullHint.Always);
+	}
+
+	/**
+	 * Adds a planet's orbit. It's hidden until it's culled into view.
+	 * @param p
+	 * @param o The orbit's index in the {@link OrbitBatch}. Orbits must be added in batch order.
+	 * @param points The orbit's points in world coordinates.
+	 */
+	public void addOrbit(Planet p, int o, float[] points) {
+		orbitPoints.add(points);
+		if (o >= orbitRunsVisible.length) {
+			orbitRunsVisible = Arrays.copyOf(orbitRunsVisible, Math.max(o + 1, orbitRunsVisible.length * 2));
+		}
+		orbits.setVisible(o, false);
+		int vertices = points.length / 3;
+		for (int start = 0; start < vertices - 1; start += ORBIT_RUN) {
+			int end = Math.min(start + ORBIT_RUN, vertices - 1);
+			float minX = Float.POSITIVE_INFINITY, minY = minX, minZ = minX;
+			float maxX = Float.NEGATIVE_INFINITY, maxY = maxX, maxZ = maxX;
+			for (int v = start; v <= end; v++) {
+				minX = Math.min(minX, points[v * 3]); maxX = Math.max(maxX, points[v * 3]);
+				minY = Math.min(minY, points[v * 3 + 1]); maxY = Math.max(maxY, points[v * 3 + 1]);
+				minZ = Math.min(minZ, points[v * 3 + 2]); maxZ = Math.max(maxZ, points[v * 3 + 2]);
+			}
+			int item = bvh.add(minX, minY, minZ, maxX, maxY, maxZ);
+			ensureItems(item + 1);
+			itemPlanet.add(p);
+			itemOrbit[item] = o;
+			itemStart[item] = start;
+		}
+	}
+
+	/**
+	 * Must be called after planets moved or changed size (e.g. rings were added).
+	 */
+	public void bodiesChanged() {
+		for (int b = 0; b < bodies.size(); b++) {
+			Planet p = bodies.get(b);
+			Vector3f c = p.getLocalTranslation();
+			float r = p.getExtent();
+			bvh.set(bodyItem[b], c.x - r, c.y - r, c.z - r, c.x + r, c.y + r, c.z + r);
+		}
+	}
+
+	/**
+	 * Culls the planets and orbits outside of the camera's frustum. Planets coming into view
+	 * inherit their cull hint; orbits are shown or hidden in the {@link OrbitBatch}.
+	 * @param cam
+	 * @return The number of visible items.
+	 */
+	public int cull(Camera cam) {
+		return bvh.cull(cam.getViewProjectionMatrix(), visibilityListener);
+	}
+
+	/**
+	 * Picks the planet or orbit under the given screen location.
+	 * @param cam
+	 * @param x Screen x.
+	 * @param y Screen y.
+	 * @return The planet that was hit, or the planet of the orbit that was hit, or <code>null</code>.
+	 */
+	public Planet pick(Camera cam, float x, float y) {
+		screen.set(x, y);
+		cam.getWorldCoordinates(screen, 0, near);
+		cam.getWorldCoordinates(screen, 1, far);
+		far.subtractLocal(near).normalizeLocal();
+		ray.setOrigin(near);
+		ray.setDirection(far);
+		// world size of a pixel at a distance of one
+		float pixel = (cam.getFrustumTop() - cam.getFrustumBottom()) / cam.getFrustumNear() / cam.getHeight();
+		int item = bvh.pick(ray, PICK_PIXELS * pixel, rayTest);
+		return item == -1 ? null : itemPlanet.get(item);
+	}
+
+	private static float intersectBody(Planet p, Ray ray, float tolerance) {
+		Vector3f c = p.getLocalTranslation();
+		Vector3f o = ray.origin;
+		Vector3f d = ray.direction;
+		float cx = c.x - o.x, cy = c.y - o.y, cz = c.z - o.z;
+		float t = cx * d.x + cy * d.y + cz * d.z;
+		if (t < 0) {
+			return Float.POSITIVE_INFINITY;
+		}
+		float distSq = cx * cx + cy * cy + cz * cz - t * t;
+		// small or distant planets can still be hit within the pixel tolerance
+		float r = Math.max(p.getExtent(), tolerance * t);
+		return distSq <= r * r ? t : Float.POSITIVE_INFINITY;
+	}
+
+	private static float intersectOrbit(float[] points, int start, Ray ray, float tolerance) {
+		int end = Math.min(start + ORBIT_RUN, points.length / 3 - 1);
+		float best = Float.POSITIVE_INFINITY;
+		for (int v = start; v < end; v++) {
+			float t = raySegment(ray, points, v * 3, (v + 1) * 3, tolerance);
+			best = Math.min(best, t);
+		}
+		return best;
+	}
+
+	/*
+	 * Closest approach between the ray and the segment a-b. Returns the distance along the
+	 * ray if the segment passes within the tolerance there.
+	 */
+	private static float raySegment(Ray ray, float[] p, int a, int b, float tolerance) {
+		Vector3f o = ray.origin;
+		Vector3f d = ray.direction;
+		float ux = p[b] - p[a], uy = p[b + 1] - p[a + 1], uz = p[b + 2] - p[a + 2];
+		float wx = o.x - p[a], wy = o.y - p[a + 1], wz = o.z - p[a + 2];
+		float uu = ux * ux + uy * uy + uz * uz;
+		float ud = ux * d.x + uy * d.y + uz * d.z;
+		float uw = ux * wx + uy * wy + uz * wz;
+		float dw = d.x * wx + d.y * wy + d.z * wz;
+		float denom = uu - ud * ud;
+		float s = denom > FastMath.ZERO_TOLERANCE ? (uw - ud * dw) / denom : 0;
+		s = FastMath.clamp(s, 0, 1);
+		// closest point on the ray to the clamped segment point
+		float qx = p[a] + s * ux, qy = p[a + 1] + s * uy, qz = p[a + 2] + s * uz;
+		float t = (qx - o.x) * d.x + (qy - o.y) * d.y + (qz - o.z) * d.z;
+		if (t < 0) {
+			return Float.POSITIVE_INFINITY;
+		}
+		float ex = o.x + t * d.x - qx, ey = o.y + t * d.y - qy, ez = o.z + t * d.z - qz;
+		float r = tolerance * t;
+		return ex * ex + ey * ey + ez * ez <= r * r ? t : Float.POSITIVE_INFINITY;
+	}
+
+	private void ensureItems(int count) {
+		if (count > itemOrbit.length) {
+			itemOrbit = grow(itemOrbit);
+			itemStart = grow(itemStart);
+		}
+	}
+
+	private static int[] grow(int[] a) {
+		int[] b = new int[a.length * 2];
+		System.arraycopy(a, 0, b, 0, a.length);
+		return b;
+	}
+}